@@ -8,6 +8,7 @@ import java.util.ArrayList;
 
 import terra.shell.command.BasicCommand;
 import terra.shell.emulation.concurrency.math.cluster.ConnectionManager.NodeInfo;
+import terra.shell.emulation.concurrency.math.cluster.NodeStats;
 import terra.shell.launch.Launch;
 import terra.shell.utils.JProcess;
 import terra.shell.utils.perms.Permissions;
@@ -72,8 +73,10 @@ public class ClusterManagement extends BasicCommand {
 			getLogger().log("Adding Node: " + ip);
 			try {
 				InetAddress ip4 = InetAddress.getByName(ip);
-				Launch.getConnectionMan().addNode((Inet4Address) ip4);
-				getLogger().log("Node Added");
+				if (Launch.getConnectionMan().addNode((Inet4Address) ip4))
+					getLogger().log("Node Added");
+				else
+					getLogger().log("Node already known");
 				return true;
 			} catch (UnknownHostException e) {
 				getLogger().log("Failed to add node: " + e.getMessage());
@@ -99,8 +102,29 @@ public class ClusterManagement extends BasicCommand {
 				return true;
 			}
 		} else if (hasArgument("checkLoad")) {
-			// Node work load check not yet implemented in ConnectionManager
-			getLogger().log("Node work load checking not yet implemented!");
+			// Load as reported by each Node with its last PONG
+			NodeInfo[] nodes = Launch.getConnectionMan().nodes();
+			for (NodeInfo ni : nodes) {
+				String state = ni.isQuarantined() ? " (quarantined)" : ni.isSuspect() ? " (suspect)" : "";
+				getLogger().log(ni.getIp() + state + " | " + String.format("%.2f", ni.latency()) + "ms | phi "
+						+ String.format("%.1f", ni.phi()) + " | in flight " + ni.inFlight() + " | " + ni.getLoad());
+			}
+			getLogger().log(nodes.length + " nodes");
+			return true;
+		} else if (hasArgument("stats")) {
+			// Counters and latencies of the traffic with each Node, to find bottlenecks
+			NodeStats[] stats = Launch.getConnectionMan().stats();
+			for (NodeStats st : stats) {
+				getLogger().log(st.getHost() + " | dispatched " + st.getDispatches() + " | failed "
+						+ st.getFailures() + " | out " + st.getBytesOut() + "B | in " + st.getBytesIn() + "B");
+				getLogger().log("  serialize   " + st.getSerialize());
+				getLogger().log("  deserialize " + st.getDeserialize());
+				getLogger().log("  class ship  " + st.getClassShip());
+				getLogger().log("  queue wait  " + st.getQueueWait());
+				getLogger().log("  execution   " + st.getExecution());
+				getLogger().log("  return      " + st.getReturnLatency());
+			}
+			getLogger().log(stats.length + " nodes");
 			return true;
 		} else if (hasArgument("listProcesses")) {
 			JProcess[] procs = Launch.getConnectionMan().activeProcesses();
@@ -117,7 +141,7 @@ public class ClusterManagement extends BasicCommand {
 			getLogger().log("Help:");
 			getLogger().log("Version: " + getVersion());
 			getLogger().endln();
-			getLogger().log("clusterman <add|remove|checkLoad|listProcesses|listNodes>");
+			getLogger().log("clusterman <add|remove|checkLoad|stats|listProcesses|listNodes>");
 		}
 		return true;
 	}
@@ -0,0 +1,154 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.io.File;
+import java.util.Hashtable;
+
+/**
+ * Assets staged on this Node by other Nodes, ahead of the JProcesses which use
+ * them. Only the newest version of each asset is kept. Assets are held in
+ * memory, or in the file they were received into if they were sent as a file.
+ * The total size of the assets in memory is bounded, staging beyond the bound
+ * is refused rather than silently evicting assets which processes are about to
+ * use.
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+final class AssetStore {
+	private final long maxBytes;
+	private final Hashtable<String, Asset> assets = new Hashtable<String, Asset>();
+	private long bytes;
+
+	/**
+	 * @param maxBytes Maximum total size of the assets held in memory, in bytes
+	 */
+	public AssetStore(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Stage a version of an asset, replacing any older version
+	 *
+	 * @param key     Key of the asset
+	 * @param version Version of the asset
+	 * @param data    Content of the asset
+	 * @return STAGED, STALE if a newer version is already staged, or OVER_LIMIT
+	 *         if the asset does not fit
+	 */
+	public synchronized String put(String key, long version, byte[] data) {
+		Asset old = assets.get(key);
+		if (old != null && old.version > version)
+			return "STALE";
+		long size = bytes - (old == null ? 0 : old.memorySize()) + data.length;
+		if (size > maxBytes)
+			return "OVER_LIMIT";
+		replace(key, new Asset(version, data, null));
+		return "STAGED";
+	}
+
+	/**
+	 * Stage a version of an asset received as a file, replacing any older version.
+	 * The store takes over the file, and deletes it once the asset is replaced or
+	 * removed
+	 *
+	 * @param key     Key of the asset
+	 * @param version Version of the asset
+	 * @param file    File holding the content of the asset
+	 * @return STAGED, or STALE if a newer version is already staged
+	 */
+	public synchronized String put(String key, long version, File file) {
+		Asset old = assets.get(key);
+		if (old != null && old.version > version) {
+			file.delete();
+			return "STALE";
+		}
+		replace(key, new Asset(version, null, file));
+		return "STAGED";
+	}
+
+	private void replace(String key, Asset a) {
+		Asset old = assets.put(key, a);
+		bytes += a.memorySize();
+		if (old != null)
+			old.discard();
+	}
+
+	/**
+	 * Get a version of an asset
+	 *
+	 * @param key     Key of the asset
+	 * @param version Version of the asset
+	 * @return The asset, or NULL if this version is not staged
+	 */
+	public synchronized Asset get(String key, long version) {
+		Asset a = assets.get(key);
+		if (a == null || a.version != version)
+			return null;
+		return a;
+	}
+
+	/**
+	 * Drop an asset, whichever version is staged
+	 *
+	 * @param key Key of the asset
+	 * @return True if the asset was staged
+	 */
+	public synchronized boolean remove(String key) {
+		Asset a = assets.remove(key);
+		if (a == null)
+			return false;
+		a.discard();
+		return true;
+	}
+
+	public synchronized int count() {
+		return assets.size();
+	}
+
+	/**
+	 * Total size of the assets held in memory
+	 */
+	public synchronized long bytes() {
+		return bytes;
+	}
+
+	/**
+	 * A staged version of an asset, either in memory or in a file
+	 */
+	final class Asset {
+		private final long version;
+		private final byte[] data;
+		private final File file;
+
+		private Asset(long version, byte[] data, File file) {
+			this.version = version;
+			this.data = data;
+			this.file = file;
+		}
+
+		/**
+		 * @return The content of the asset, or NULL if it is held in a file
+		 */
+		byte[] getData() {
+			return data;
+		}
+
+		/**
+		 * @return The file holding the asset, or NULL if it is held in memory
+		 */
+		File getFile() {
+			return file;
+		}
+
+		private long memorySize() {
+			return data == null ? 0 : data.length;
+		}
+
+		// Must hold the lock on the store
+		private void discard() {
+			bytes -= memorySize();
+			if (file != null)
+				file.delete();
+		}
+	}
+}
@@ -0,0 +1,285 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import terra.shell.utils.JProcess;
+
+/**
+ * The bytecode a JProcess needs in order to be realized on a remote Node: its
+ * main class and its dependencies, each class following its bundled
+ * supertypes. Dependencies are those the process declares, and the application
+ * classes its bytecode refers to. A bundle is identified by the SHA-256 hash of
+ * its contents, so that equal bundles share one identity on every Node,
+ * regardless of when or by whom they were sent.
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+final class ClassBundle {
+	private final String[] names, packages;
+	private final byte[][] classes;
+	// Index of the main class
+	private final int main;
+	private final String hash;
+
+	/**
+	 * Create a bundle from its classes, each class must follow those of its
+	 * supertypes which are bundled, as they are defined in order
+	 *
+	 * @param names    Fully qualified class names
+	 * @param packages Package of each class
+	 * @param classes  Bytecode of each class
+	 * @param main     Index of the main class
+	 */
+	public ClassBundle(String[] names, String[] packages, byte[][] classes, int main) {
+		if (names.length == 0 || names.length != packages.length || names.length != classes.length || main < 0
+				|| main >= names.length)
+			throw new IllegalArgumentException("Malformed class bundle");
+		this.main = main;
+		this.names = names;
+		this.packages = packages;
+		this.classes = classes;
+		this.hash = computeHash();
+	}
+
+	/**
+	 * Gather the bundle of a JProcess class, its dependencies are taken from its
+	 * Depends annotation
+	 *
+	 * @param main JProcess class
+	 * @return Bundle containing the dependencies and the main class
+	 * @throws IOException If the bytecode of a class cannot be found
+	 */
+	public static ClassBundle of(Class<?> main) throws IOException {
+		Class<?>[] deps = new Class<?>[0];
+		if (main.isAnnotationPresent(JProcess.Depends.class))
+			deps = main.getAnnotation(JProcess.Depends.class).dependencies();
+		return of(main, deps);
+	}
+
+	/**
+	 * Gather the bundle of a JProcess class and the given dependencies, along with
+	 * every application class they refer to, directly or transitively. The
+	 * classes are ordered so that each comes after its superclass and interfaces,
+	 * as the remote Node defines them in order. The nest host of a nested class
+	 * is bundled too, as nested classes need it to access each other's private
+	 * members, but the classes it refers to are not, as those would include every
+	 * class nested alongside
+	 *
+	 * @param main JProcess class
+	 * @param deps Dependency classes, see JProcess.getDependencies()
+	 * @return Bundle containing the dependencies and the main class
+	 * @throws IOException If the bytecode of a class cannot be found
+	 */
+	public static ClassBundle of(Class<?> main, Class<?>[] deps) throws IOException {
+		// Declared dependencies are always shipped, found ones only if not already on
+		// every Node
+		LinkedHashMap<Class<?>, byte[]> found = new LinkedHashMap<Class<?>, byte[]>();
+		ArrayDeque<Class<?>> queue = new ArrayDeque<Class<?>>();
+		for (Class<?> d : deps)
+			if (d != main && !found.containsKey(d)) {
+				found.put(d, bytecodeOf(d));
+				queue.add(d);
+			}
+		found.put(main, bytecodeOf(main));
+		queue.add(main);
+		ClassLoader loader = main.getClassLoader();
+		while (!queue.isEmpty()) {
+			DependencyScanner scan = new DependencyScanner(found.get(queue.poll()));
+			for (String name : scan.references()) {
+				Class<?> c = load(name, loader);
+				if (c != null && !found.containsKey(c) && DependencyScanner.isShippable(c)) {
+					found.put(c, bytecodeOf(c));
+					queue.add(c);
+				}
+			}
+			if (scan.getNestHost() != null)
+				addHost(load(scan.getNestHost(), loader), found);
+		}
+		ArrayList<Class<?>> ordered = new ArrayList<Class<?>>();
+		for (Class<?> c : found.keySet())
+			order(c, found, ordered);
+		String[] names = new String[ordered.size()];
+		String[] packages = new String[ordered.size()];
+		byte[][] classes = new byte[ordered.size()][];
+		for (int i = 0; i < ordered.size(); i++) {
+			Class<?> c = ordered.get(i);
+			names[i] = c.getName();
+			packages[i] = c.getPackage() == null ? "" : c.getPackage().getName();
+			classes[i] = found.get(c);
+		}
+		return new ClassBundle(names, packages, classes, ordered.indexOf(main));
+	}
+
+	/**
+	 * Load a class referred to by a bundled class, without initializing it
+	 *
+	 * @return The class, or NULL if it cannot be loaded
+	 */
+	private static Class<?> load(String name, ClassLoader loader) {
+		try {
+			return Class.forName(name, false, loader);
+		} catch (ClassNotFoundException | LinkageError e) {
+			// Not needed unless the code referring to it runs, which fails the same way on
+			// this Node
+			return null;
+		}
+	}
+
+	/**
+	 * Bundle a nest host and its supertypes, without the classes they refer to
+	 */
+	private static void addHost(Class<?> c, Map<Class<?>, byte[]> found) throws IOException {
+		if (c == null || found.containsKey(c) || !DependencyScanner.isShippable(c))
+			return;
+		found.put(c, bytecodeOf(c));
+		addHost(c.getSuperclass(), found);
+		for (Class<?> i : c.getInterfaces())
+			addHost(i, found);
+	}
+
+	/**
+	 * Add "c" to "ordered" after those of its supertypes which are bundled
+	 */
+	private static void order(Class<?> c, Map<Class<?>, byte[]> bundled, ArrayList<Class<?>> ordered) {
+		if (c == null || !bundled.containsKey(c) || ordered.contains(c))
+			return;
+		order(c.getSuperclass(), bundled, ordered);
+		for (Class<?> i : c.getInterfaces())
+			order(i, bundled, ordered);
+		ordered.add(c);
+	}
+
+	private static byte[] bytecodeOf(Class<?> c) throws IOException {
+		InputStream in = c.getClassLoader().getResourceAsStream(c.getName().replace('.', '/') + ".class");
+		if (in == null)
+			throw new IOException("Failed to find resource: " + c.getName());
+		try {
+			return in.readAllBytes();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read a bundle in the format written by write()
+	 *
+	 * @param in       Stream to read from
+	 * @param maxBytes Largest number of bytecode bytes to accept, a bundle is
+	 *                 rejected before anything is allocated for a larger one
+	 * @return The bundle read
+	 * @throws IOException
+	 */
+	public static ClassBundle read(DataInputStream in, int maxBytes) throws IOException {
+		int n = in.readInt();
+		if (n <= 0 || n > 0xFFFF)
+			throw new IOException("Invalid class count: " + n);
+		int main = in.readInt();
+		if (main < 0 || main >= n)
+			throw new IOException("Invalid main class: " + main);
+		String[] names = new String[n];
+		String[] packages = new String[n];
+		byte[][] classes = new byte[n][];
+		for (int i = 0; i < n; i++) {
+			names[i] = in.readUTF();
+			packages[i] = in.readUTF();
+			int len = in.readInt();
+			if (len < 0 || len > maxBytes)
+				throw new IOException("Invalid class length: " + len);
+			maxBytes -= len;
+			classes[i] = new byte[len];
+			in.readFully(classes[i]);
+		}
+		return new ClassBundle(names, packages, classes, main);
+	}
+
+	/**
+	 * Write this bundle to a stream, the stream is not flushed
+	 *
+	 * @param out Stream to write to
+	 * @throws IOException
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(names.length);
+		out.writeInt(main);
+		for (int i = 0; i < names.length; i++) {
+			out.writeUTF(names[i]);
+			out.writeUTF(packages[i]);
+			out.writeInt(classes[i].length);
+			out.write(classes[i]);
+		}
+	}
+
+	private String computeHash() {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every JVM is required to provide SHA-256
+			throw new IllegalStateException(e);
+		}
+		md.update(intBytes(main));
+		for (int i = 0; i < names.length; i++) {
+			md.update(names[i].getBytes(StandardCharsets.UTF_8));
+			md.update((byte) 0);
+			md.update(intBytes(classes[i].length));
+			md.update(classes[i]);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : md.digest())
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+
+	private static byte[] intBytes(int v) {
+		return new byte[] { (byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v };
+	}
+
+	/**
+	 * Hex encoded SHA-256 hash of the class names, bytecode and main class of this
+	 * bundle
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	public String getName(int i) {
+		return names[i];
+	}
+
+	public String getPackage(int i) {
+		return packages[i];
+	}
+
+	public byte[] getClassBytes(int i) {
+		return classes[i];
+	}
+
+	/**
+	 * Total number of bytecode bytes in this bundle
+	 */
+	public long byteSize() {
+		long size = 0;
+		for (byte[] b : classes)
+			size += b.length;
+		return size;
+	}
+
+	public String getMainName() {
+		return names[main];
+	}
+}
@@ -0,0 +1,239 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import terra.shell.logging.LogManager;
+import terra.shell.logging.Logger;
+import terra.shell.utils.system.JSHClassLoader;
+
+/**
+ * Content-addressed store of the ClassBundles received from other Nodes. Each
+ * bundle is persisted under its hash, so a restarted Node still knows every
+ * bundle it has received before. Bundles are realized into their own
+ * JSHClassLoader on first use, and both the realized loaders and the bundles on
+ * disk are evicted least recently used first.
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+final class ClassBundleCache {
+	private static final String SUFFIX = ".bundle";
+
+	private final File dir;
+	private final long maxDiskBytes;
+	private final int maxLoaders;
+	private final Logger log = LogManager.getLogger("ClassBundleCache");
+	// Access ordered, the eldest entry is the least recently used one
+	private final LinkedHashMap<String, JSHClassLoader> loaders = new LinkedHashMap<String, JSHClassLoader>(16,
+			0.75f, true);
+	private final LinkedHashMap<String, Long> onDisk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long diskBytes;
+
+	/**
+	 * Open the cache stored in "dir", creating the directory if needed
+	 *
+	 * @param dir          Directory to persist bundles in
+	 * @param maxDiskBytes Maximum number of bytes to keep on disk
+	 * @param maxLoaders   Maximum number of bundles to keep realized in memory
+	 */
+	public ClassBundleCache(File dir, long maxDiskBytes, int maxLoaders) {
+		this.dir = dir;
+		this.maxDiskBytes = maxDiskBytes;
+		this.maxLoaders = Math.max(1, maxLoaders);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			log.err("Unable to create bundle cache at " + dir);
+		loadIndex();
+	}
+
+	/**
+	 * Rebuild the LRU order of the bundles on disk from their modification times,
+	 * which are refreshed whenever a bundle is used
+	 */
+	private void loadIndex() {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		for (File f : files) {
+			String name = f.getName();
+			if (!f.isFile() || !name.endsWith(SUFFIX))
+				continue;
+			String hash = name.substring(0, name.length() - SUFFIX.length());
+			if (!isValidHash(hash))
+				continue;
+			onDisk.put(hash, f.length());
+			diskBytes += f.length();
+		}
+		log.debug("Found " + onDisk.size() + " cached bundles, " + diskBytes + " bytes");
+		evictDisk();
+	}
+
+	/**
+	 * Whether or not "hash" has the form of a bundle hash, hashes received from
+	 * other Nodes are used as file names and must be checked first
+	 */
+	public static boolean isValidHash(String hash) {
+		return hash != null && hash.matches("[0-9a-f]{64}");
+	}
+
+	/**
+	 * Whether or not the bundle with the given hash is available, in memory or on
+	 * disk
+	 */
+	public synchronized boolean contains(String hash) {
+		return loaders.containsKey(hash) || onDisk.containsKey(hash);
+	}
+
+	/**
+	 * Get the ClassLoader holding the classes of a bundle, realizing the bundle
+	 * from disk if it is not loaded yet
+	 *
+	 * @param hash Hash of the bundle
+	 * @return The bundle's ClassLoader, or NULL if the bundle is unknown
+	 */
+	public synchronized JSHClassLoader getLoader(String hash) {
+		JSHClassLoader loader = loaders.get(hash);
+		if (loader != null) {
+			touch(hash);
+			return loader;
+		}
+		if (!onDisk.containsKey(hash))
+			return null;
+		ClassBundle b;
+		try {
+			b = readBundle(hash);
+		} catch (IOException e) {
+			log.err("Dropping unreadable bundle " + hash + ": " + e.getMessage());
+			remove(hash);
+			return null;
+		}
+		if (!b.getHash().equals(hash)) {
+			log.err("Dropping corrupt bundle " + hash);
+			remove(hash);
+			return null;
+		}
+		touch(hash);
+		return realize(b);
+	}
+
+	/**
+	 * Store a bundle received from another Node, and realize it
+	 *
+	 * @param b Bundle to store
+	 * @return The bundle's ClassLoader
+	 */
+	public synchronized JSHClassLoader put(ClassBundle b) {
+		JSHClassLoader loader = loaders.get(b.getHash());
+		if (loader != null)
+			return loader;
+		if (!onDisk.containsKey(b.getHash())) {
+			try {
+				writeBundle(b);
+			} catch (IOException e) {
+				// The bundle is still usable, it is only re-sent after a restart
+				log.err("Unable to persist bundle " + b.getHash() + ": " + e.getMessage());
+			}
+		}
+		return realize(b);
+	}
+
+	private JSHClassLoader realize(ClassBundle b) {
+		JSHClassLoader loader;
+		try {
+			loader = new JSHClassLoader(new URL[] { new URL("file:///modules") });
+		} catch (MalformedURLException e) {
+			throw new IllegalStateException(e);
+		}
+		for (int i = 0; i < b.size(); i++) {
+			String pkg = b.getPackage(i);
+			loader.setPackageAssertionStatus(pkg, true);
+			Class<?> c = loader.getClass(b.getName(i), pkg, b.getClassBytes(i));
+			log.debug("Loaded class: " + c.getName());
+		}
+		loaders.put(b.getHash(), loader);
+		Iterator<Map.Entry<String, JSHClassLoader>> it = loaders.entrySet().iterator();
+		while (loaders.size() > maxLoaders && it.hasNext()) {
+			// Processes still running keep their classes reachable, the loader is only
+			// realized again on the next use
+			it.next();
+			it.remove();
+		}
+		return loader;
+	}
+
+	private ClassBundle readBundle(String hash) throws IOException {
+		File f = fileOf(hash);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			// A bundle cannot hold more bytecode than its file
+			return ClassBundle.read(in, (int) Math.min(Integer.MAX_VALUE, f.length()));
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeBundle(ClassBundle b) throws IOException {
+		File tmp = new File(dir, b.getHash() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			b.write(out);
+		} finally {
+			out.close();
+		}
+		File f = fileOf(b.getHash());
+		// Only complete bundles ever carry the bundle suffix
+		if (!tmp.renameTo(f)) {
+			tmp.delete();
+			throw new IOException("Unable to rename " + tmp);
+		}
+		onDisk.put(b.getHash(), f.length());
+		diskBytes += f.length();
+		evictDisk();
+	}
+
+	private void touch(String hash) {
+		if (onDisk.get(hash) != null)
+			fileOf(hash).setLastModified(System.currentTimeMillis());
+	}
+
+	private void remove(String hash) {
+		Long size = onDisk.remove(hash);
+		if (size != null) {
+			diskBytes -= size;
+			fileOf(hash).delete();
+		}
+	}
+
+	private void evictDisk() {
+		Iterator<Map.Entry<String, Long>> it = onDisk.entrySet().iterator();
+		while (diskBytes > maxDiskBytes && onDisk.size() > 1 && it.hasNext()) {
+			Map.Entry<String, Long> e = it.next();
+			it.remove();
+			diskBytes -= e.getValue();
+			fileOf(e.getKey()).delete();
+			log.debug("Evicted bundle " + e.getKey());
+		}
+	}
+
+	private File fileOf(String hash) {
+		return new File(dir, hash + SUFFIX);
+	}
+}
@@ -0,0 +1,88 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ClassBundleTest {
+
+	interface Marker {
+	}
+
+	static class Base {
+	}
+
+	static class Sub extends Base implements Marker {
+	}
+
+	static class SubSub extends Sub {
+	}
+
+	private static List<String> namesOf(ClassBundle b) {
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < b.size(); i++)
+			names.add(b.getName(i));
+		return names;
+	}
+
+	private static ClassBundle copyOf(ClassBundle b) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		b.write(new DataOutputStream(bout));
+		return ClassBundle.read(new DataInputStream(new ByteArrayInputStream(bout.toByteArray())), Frame.MAX_PAYLOAD);
+	}
+
+	@Test
+	public void testSupertypesPrecedeMain() throws IOException {
+		List<String> names = namesOf(ClassBundle.of(Sub.class, new Class<?>[] { Marker.class, Base.class }));
+		assertTrue(names.indexOf(Base.class.getName()) < names.indexOf(Sub.class.getName()));
+		assertTrue(names.indexOf(Marker.class.getName()) < names.indexOf(Sub.class.getName()));
+	}
+
+	@Test
+	public void testSubclassesOfMainFollowIt() throws IOException {
+		ClassBundle b = ClassBundle.of(Base.class, new Class<?>[] { SubSub.class, Sub.class });
+		List<String> names = namesOf(b);
+		assertTrue(names.indexOf(Base.class.getName()) < names.indexOf(Sub.class.getName()));
+		assertTrue(names.indexOf(Sub.class.getName()) < names.indexOf(SubSub.class.getName()));
+		assertEquals(Base.class.getName(), b.getMainName());
+	}
+
+	@Test
+	public void testReadWriteRoundTrip() throws IOException {
+		ClassBundle b = ClassBundle.of(Base.class, new Class<?>[] { Sub.class, Marker.class });
+		ClassBundle copy = copyOf(b);
+		assertEquals(b.getHash(), copy.getHash());
+		assertEquals(b.getMainName(), copy.getMainName());
+		assertEquals(namesOf(b), namesOf(copy));
+	}
+
+	@Test
+	public void testMainIsPartOfHash() {
+		String[] names = { "a.A", "a.B" };
+		String[] packages = { "a", "a" };
+		byte[][] classes = { { 1, 2 }, { 3, 4 } };
+		assertNotEquals(new ClassBundle(names, packages, classes, 0).getHash(),
+				new ClassBundle(names, packages, classes, 1).getHash());
+		assertEquals(new ClassBundle(names, packages, classes, 1).getHash(),
+				new ClassBundle(names, packages, classes, 1).getHash());
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsInvalidMainIndex() throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bout);
+		out.writeInt(1);
+		out.writeInt(1);
+		ClassBundle.read(new DataInputStream(new ByteArrayInputStream(bout.toByteArray())), Frame.MAX_PAYLOAD);
+	}
+}
@@ -0,0 +1,660 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import terra.shell.config.Configuration;
+import terra.shell.logging.LogManager;
+import terra.shell.logging.Logger;
+import terra.shell.utils.JProcess;
+import terra.shell.utils.ReturnValue;
+
+/**
+ * Runs a cluster of several Nodes in one JVM, so that changes to the protocol
+ * and the scheduler can be measured without real machines. Each Node is a
+ * ConnectionManager of its own, Node i serves on 127.0.0.(i+1).
+ * <p>
+ * Node i reaches Node j through a Link listening on 127.1.i.j, which connects
+ * on to Node j from 127.1.j.i, the address Node j reaches Node i at. Every Node
+ * therefore sees each other Node at a single address, and all traffic between
+ * two Nodes passes a Link, which can delay it, lose it or cut it off. As the
+ * traffic is TCP, a lost chunk is not dropped but delivered after a
+ * retransmission timeout, as TCP would.
+ * <p>
+ * Links copy every byte through two threads, which adds some latency of its own
+ * even when no latency is injected. Measurements are only comparable between
+ * runs of the simulator.
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+public final class ClusterSimulator {
+	/**
+	 * Delay of a lost chunk, the minimum TCP retransmission timeout
+	 */
+	private static final long RETRANSMIT = 200;
+
+	private final Logger log = LogManager.getLogger("ClusterSimulator");
+	private final int port;
+	private final File home;
+	private final ConnectionManager[] nodes;
+	private final Link[][] links;
+
+	/**
+	 * Start a simulated cluster, every Node is added to every other Node
+	 *
+	 * @param n       Number of Nodes, between 2 and 254
+	 * @param port    Port every Node serves on, at its own address
+	 * @param options ClusterService configuration values, such as "compression",
+	 *                which override the defaults for every Node. May be NULL
+	 * @throws IOException If a Node or Link could not be started, or the Nodes
+	 *                     could not reach each other
+	 */
+	public ClusterSimulator(int n, int port, Map<String, Object> options) throws IOException {
+		if (n < 2 || n > 254)
+			throw new IllegalArgumentException("Cannot simulate " + n + " Nodes");
+		this.port = port;
+		home = Files.createTempDirectory("jsh-sim").toFile();
+		nodes = new ConnectionManager[n];
+		links = new Link[n][n];
+		try {
+			for (int i = 0; i < n; i++) {
+				nodes[i] = new ConnectionManager(config(options), nodeAddress(i), new File(home, "node" + i));
+				for (int j = 0; j < n; j++)
+					if (i != j)
+						links[i][j] = new Link(i, j);
+			}
+			for (int i = 0; i < n; i++)
+				for (int j = 0; j < n; j++)
+					if (i != j && !nodes[i].addNode((Inet4Address) linkAddress(i, j)))
+						throw new IOException("Node " + i + " could not add Node " + j);
+		} catch (IOException e) {
+			shutdown();
+			throw e;
+		}
+		log.log("Simulating " + n + " Nodes on port " + port);
+	}
+
+	/**
+	 * Configuration of a simulated Node, held in memory only. Values are kept as
+	 * text, as they would be read from a configuration file
+	 */
+	private Configuration config(Map<String, Object> options) {
+		Hashtable<String, Object> values = new Hashtable<String, Object>();
+		values.put("port", port);
+		values.put("ipformat", "127.0.0.X");
+		values.put("activeProcessLimit", 20);
+		values.put("passiveProcessLimit", 10);
+		values.put("connectionLimit", 5);
+		values.put("handshakeTimeout", 2000);
+		values.put("nodeCheckInterval", 60);
+		values.put("ipScanRangeMin", 1);
+		values.put("ipScanRangeMax", 0);
+		values.put("discoveryBeacon", 0);
+		values.put("scanOnStart", 0);
+		if (options != null)
+			values.putAll(options);
+		Configuration conf = new Configuration() {
+		};
+		for (Map.Entry<String, Object> e : values.entrySet())
+			conf.setValue(e.getKey(), String.valueOf(e.getValue()));
+		return conf;
+	}
+
+	private static InetAddress nodeAddress(int i) throws IOException {
+		return InetAddress.getByAddress(new byte[] { 127, 0, 0, (byte) (i + 1) });
+	}
+
+	/**
+	 * Address Node "from" reaches Node "to" at
+	 */
+	private static InetAddress linkAddress(int from, int to) throws IOException {
+		return InetAddress.getByAddress(new byte[] { 127, 1, (byte) from, (byte) to });
+	}
+
+	/**
+	 * Get a simulated Node
+	 *
+	 * @param i Index of the Node
+	 * @return The Node's ConnectionManager
+	 */
+	public ConnectionManager getNode(int i) {
+		return nodes[i];
+	}
+
+	public int size() {
+		return nodes.length;
+	}
+
+	/**
+	 * Delay all traffic between two Nodes
+	 *
+	 * @param a       Index of one Node
+	 * @param b       Index of the other Node
+	 * @param latency One way delay, in MS
+	 */
+	public void setLatency(int a, int b, long latency) {
+		links[a][b].latency = latency;
+		links[b][a].latency = latency;
+	}
+
+	/**
+	 * Delay all traffic between every two Nodes
+	 *
+	 * @param latency One way delay, in MS
+	 */
+	public void setLatency(long latency) {
+		for (int a = 0; a < nodes.length; a++)
+			for (int b = 0; b < a; b++)
+				setLatency(a, b, latency);
+	}
+
+	/**
+	 * Lose part of the traffic between two Nodes, each lost chunk of data is
+	 * delayed by a retransmission timeout
+	 *
+	 * @param a    Index of one Node
+	 * @param b    Index of the other Node
+	 * @param loss Chance of losing each chunk, between 0 and 1
+	 */
+	public void setLoss(int a, int b, double loss) {
+		links[a][b].loss = loss;
+		links[b][a].loss = loss;
+	}
+
+	/**
+	 * Lose part of the traffic between every two Nodes
+	 *
+	 * @param loss Chance of losing each chunk, between 0 and 1
+	 */
+	public void setLoss(double loss) {
+		for (int a = 0; a < nodes.length; a++)
+			for (int b = 0; b < a; b++)
+				setLoss(a, b, loss);
+	}
+
+	/**
+	 * Cut off two Nodes from each other, their open connections are reset and new
+	 * ones refused until heal() is called
+	 *
+	 * @param a Index of one Node
+	 * @param b Index of the other Node
+	 */
+	public void cut(int a, int b) {
+		links[a][b].cut();
+		links[b][a].cut();
+	}
+
+	/**
+	 * Reconnect two Nodes cut off by cut()
+	 */
+	public void heal(int a, int b) {
+		links[a][b].cut = false;
+		links[b][a].cut = false;
+	}
+
+	/**
+	 * Submit "jobs" processes from Node 0 to the other Nodes, keeping at most
+	 * "concurrency" of them in flight, and measure how they fare
+	 *
+	 * @param workload    Creates the processes to submit
+	 * @param jobs        Number of processes to submit
+	 * @param concurrency Processes in flight at once
+	 * @return Measurements of the run
+	 * @throws InterruptedException
+	 */
+	public Report run(Workload workload, int jobs, int concurrency) throws InterruptedException {
+		final long[] latencies = new long[jobs];
+		final AtomicInteger failed = new AtomicInteger();
+		final Semaphore inFlight = new Semaphore(concurrency);
+		long bytes = bytesSent();
+		long start = System.nanoTime();
+		for (int i = 0; i < jobs; i++) {
+			inFlight.acquire();
+			final int job = i;
+			final long submitted = System.nanoTime();
+			nodes[0].submit(workload.create(i)).whenComplete(new BiConsumer<ReturnValue<?>, Throwable>() {
+				public void accept(ReturnValue<?> rv, Throwable t) {
+					latencies[job] = System.nanoTime() - submitted;
+					if (t != null)
+						failed.incrementAndGet();
+					inFlight.release();
+				}
+			});
+		}
+		inFlight.acquire(concurrency);
+		long elapsed = System.nanoTime() - start;
+		inFlight.release(concurrency);
+		return new Report(jobs, failed.get(), elapsed, latencies, bytesSent() - bytes);
+	}
+
+	/**
+	 * Bytes sent by all Nodes, as written to their sockets
+	 */
+	private long bytesSent() {
+		long total = 0;
+		for (ConnectionManager cm : nodes)
+			if (cm != null)
+				for (NodeStats s : cm.stats())
+					total += s.getBytesOut();
+		return total;
+	}
+
+	/**
+	 * Stop every Node and Link, and delete the files of the Nodes
+	 */
+	public void shutdown() {
+		for (ConnectionManager cm : nodes)
+			if (cm != null)
+				cm.shutdown();
+		for (Link[] row : links)
+			for (Link l : row)
+				if (l != null)
+					l.close();
+		delete(home);
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null)
+			for (File c : children)
+				delete(c);
+		f.delete();
+	}
+
+	/**
+	 * Creates the processes submitted by run()
+	 */
+	public interface Workload {
+		/**
+		 * @param i Index of the process within the run
+		 * @return Process to submit
+		 */
+		JProcess create(int i);
+	}
+
+	/**
+	 * Measurements of one run()
+	 */
+	public static final class Report {
+		private final int jobs, failed;
+		private final long elapsed, p50, p99, bytes;
+
+		Report(int jobs, int failed, long elapsed, long[] latencies, long bytes) {
+			this.jobs = jobs;
+			this.failed = failed;
+			this.elapsed = elapsed;
+			this.bytes = bytes;
+			long[] sorted = latencies.clone();
+			Arrays.sort(sorted);
+			p50 = percentile(sorted, 50);
+			p99 = percentile(sorted, 99);
+		}
+
+		private static long percentile(long[] sorted, double p) {
+			if (sorted.length == 0)
+				return 0;
+			int i = (int) Math.ceil(p / 100 * sorted.length) - 1;
+			return sorted[Math.max(0, i)];
+		}
+
+		public int getJobs() {
+			return jobs;
+		}
+
+		/**
+		 * Processes which failed, or could not be delivered
+		 */
+		public int getFailed() {
+			return failed;
+		}
+
+		/**
+		 * Duration of the run, in NS
+		 */
+		public long getElapsed() {
+			return elapsed;
+		}
+
+		/**
+		 * Processes completed per second
+		 */
+		public double getThroughput() {
+			return jobs * 1e9 / Math.max(1, elapsed);
+		}
+
+		/**
+		 * Median time from submitting a process to its completion, in NS
+		 */
+		public long getP50() {
+			return p50;
+		}
+
+		/**
+		 * 99th percentile of the time from submitting a process to its completion, in
+		 * NS
+		 */
+		public long getP99() {
+			return p99;
+		}
+
+		/**
+		 * Bytes sent by all Nodes during the run per process, including heartbeats
+		 */
+		public long getBytesPerJob() {
+			return jobs == 0 ? 0 : bytes / jobs;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d jobs, %d failed, %.0f jobs/s, p50 %.2fms, p99 %.2fms, %d bytes/job", jobs, failed,
+					getThroughput(), p50 / 1e6, p99 / 1e6, getBytesPerJob());
+		}
+	}
+
+	/**
+	 * A process of the built in workload, carrying "payload" bytes and busy for
+	 * "work" MS on the Node it is run on
+	 */
+	@JProcess.ReturnType(getReturnType = terra.shell.utils.system.ReturnType.VOID)
+	@JProcess.Depends(dependencies = { ClusterSimulator.class })
+	public static class Job extends JProcess {
+		private static final long serialVersionUID = 3874121209554163387L;
+
+		private final byte[] payload;
+		private final long work;
+
+		public Job(int payload, long work) {
+			this.payload = new byte[payload];
+			this.work = work;
+		}
+
+		@Override
+		public String getName() {
+			return "SimulatedJob";
+		}
+
+		@Override
+		public boolean start() {
+			long until = System.nanoTime() + work * 1000000L;
+			while (System.nanoTime() < until)
+				;
+			return true;
+		}
+
+		protected int size() {
+			return payload.length;
+		}
+	}
+
+	/**
+	 * A Job which returns its payload size asynchronously
+	 */
+	@JProcess.ReturnType(getReturnType = terra.shell.utils.system.ReturnType.ASYNCHRONOUS)
+	@JProcess.Depends(dependencies = { ClusterSimulator.class, Job.class, JobReturn.class })
+	public static class ReturningJob extends Job {
+		private static final long serialVersionUID = -2178416209446355780L;
+
+		private JobReturn rv;
+
+		public ReturningJob(int payload, long work) {
+			super(payload, work);
+		}
+
+		@Override
+		public void createReturn() {
+			rv = new JobReturn(this);
+		}
+
+		@Override
+		public JobReturn getReturn() {
+			return rv;
+		}
+
+		@Override
+		public boolean start() {
+			rv.setValues(size());
+			return super.start();
+		}
+	}
+
+	public static final class JobReturn extends ReturnValue<Integer> {
+		private static final long serialVersionUID = 5061370542155016791L;
+
+		private Integer value;
+
+		public JobReturn(JProcess p) {
+			super(p);
+		}
+
+		/**
+		 * @deprecated Use {@link #setValues(Integer)} instead
+		 */
+		@Deprecated
+		@Override
+		public boolean processReturn(Object... values) {
+			if (values.length != 1 || !(values[0] instanceof Integer))
+				return false;
+			return setValues((Integer) values[0]);
+		}
+
+		@Override
+		public boolean setValues(Integer values) {
+			value = values;
+			return true;
+		}
+
+		@Override
+		public Integer getReturnValue() {
+			return value;
+		}
+	}
+
+	/**
+	 * Carries the connections Node "from" opens to Node "to", listening on the
+	 * address Node "from" knows Node "to" by
+	 */
+	private final class Link implements Runnable {
+		private final ServerSocket server;
+		private final InetAddress source;
+		private final InetSocketAddress target;
+		private final Vector<Socket> open = new Vector<Socket>();
+		private final Random random = new Random();
+		private volatile long latency;
+		private volatile double loss;
+		private volatile boolean cut;
+
+		Link(int from, int to) throws IOException {
+			source = linkAddress(to, from);
+			target = new InetSocketAddress(nodeAddress(to), port);
+			server = new ServerSocket();
+			server.setReuseAddress(true);
+			server.bind(new InetSocketAddress(linkAddress(from, to), port));
+			Thread t = new Thread(this);
+			t.setName("SimLink-" + from + "-" + to);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		public void run() {
+			while (!server.isClosed()) {
+				try {
+					Socket in = server.accept();
+					if (cut) {
+						in.close();
+						continue;
+					}
+					Socket out = new Socket();
+					try {
+						out.bind(new InetSocketAddress(source, 0));
+						out.connect(target);
+					} catch (IOException e) {
+						in.close();
+						out.close();
+						continue;
+					}
+					in.setTcpNoDelay(true);
+					out.setTcpNoDelay(true);
+					open.add(in);
+					open.add(out);
+					pipe(in, out);
+					pipe(out, in);
+				} catch (IOException e) {
+					if (!server.isClosed())
+						log.debug("Link on " + server.getLocalSocketAddress() + " failed: " + e.getMessage());
+				}
+			}
+		}
+
+		/**
+		 * Copy everything "from" receives to "to", each chunk is held back by the
+		 * latency of the Link, and by the retransmission timeout if it is lost
+		 */
+		private void pipe(final Socket from, final Socket to) {
+			final LinkedBlockingQueue<Object[]> chunks = new LinkedBlockingQueue<Object[]>();
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					byte[] buf = new byte[64 * 1024];
+					long last = 0;
+					try {
+						InputStream in = from.getInputStream();
+						int n;
+						while ((n = in.read(buf)) >= 0) {
+							long due = System.currentTimeMillis() + latency;
+							if (loss > 0 && random.nextDouble() < loss)
+								due += RETRANSMIT;
+							// Delivered in order, a late chunk holds back the ones behind it
+							last = Math.max(last, due);
+							chunks.put(new Object[] { last, Arrays.copyOf(buf, n) });
+						}
+					} catch (Exception e) {
+					}
+					chunks.add(new Object[] { 0L, null });
+				}
+			});
+			Thread writer = new Thread(new Runnable() {
+				public void run() {
+					try {
+						OutputStream out = to.getOutputStream();
+						while (true) {
+							Object[] chunk = chunks.take();
+							if (chunk[1] == null)
+								break;
+							long wait = (Long) chunk[0] - System.currentTimeMillis();
+							if (wait > 0)
+								Thread.sleep(wait);
+							out.write((byte[]) chunk[1]);
+						}
+					} catch (Exception e) {
+					}
+					close(from);
+					close(to);
+				}
+			});
+			reader.setDaemon(true);
+			writer.setDaemon(true);
+			reader.start();
+			writer.start();
+		}
+
+		private void close(Socket s) {
+			open.remove(s);
+			try {
+				s.close();
+			} catch (IOException e) {
+			}
+		}
+
+		void cut() {
+			cut = true;
+			for (Socket s : open.toArray(new Socket[0]))
+				close(s);
+		}
+
+		void close() {
+			try {
+				server.close();
+			} catch (IOException e) {
+			}
+			cut();
+		}
+	}
+
+	/**
+	 * Benchmark a simulated cluster, options are given as key=value: nodes (3),
+	 * jobs (2000), concurrency (64), latency in MS (0), loss (0), payload in bytes
+	 * (0), work in MS (0), returns (false), port (21000), and process, the name of
+	 * a JProcess class with a no argument constructor to submit instead of the
+	 * built in Job. Any other option is passed to the configuration of the Nodes
+	 */
+	public static void main(String[] args) throws Exception {
+		Hashtable<String, String> opts = new Hashtable<String, String>();
+		for (String a : args) {
+			int eq = a.indexOf('=');
+			if (eq < 0)
+				throw new IllegalArgumentException("Expected key=value, got " + a);
+			opts.put(a.substring(0, eq), a.substring(eq + 1));
+		}
+		int n = Integer.parseInt(take(opts, "nodes", "3"));
+		final int jobs = Integer.parseInt(take(opts, "jobs", "2000"));
+		int concurrency = Integer.parseInt(take(opts, "concurrency", "64"));
+		long latency = Long.parseLong(take(opts, "latency", "0"));
+		double loss = Double.parseDouble(take(opts, "loss", "0"));
+		final int payload = Integer.parseInt(take(opts, "payload", "0"));
+		final long work = Long.parseLong(take(opts, "work", "0"));
+		final boolean returns = Boolean.parseBoolean(take(opts, "returns", "false"));
+		int port = Integer.parseInt(take(opts, "port", "21000"));
+		String process = take(opts, "process", null);
+		final Class<?> c = process == null ? null : Class.forName(process);
+		Hashtable<String, Object> options = new Hashtable<String, Object>();
+		for (Map.Entry<String, String> e : opts.entrySet())
+			options.put(e.getKey(), e.getValue());
+
+		ClusterSimulator sim = new ClusterSimulator(n, port, options);
+		try {
+			sim.setLatency(latency);
+			sim.setLoss(loss);
+			Workload w = new Workload() {
+				public JProcess create(int i) {
+					if (c != null) {
+						try {
+							return (JProcess) c.getConstructor().newInstance();
+						} catch (Exception e) {
+							throw new IllegalArgumentException("Cannot create " + c.getName(), e);
+						}
+					}
+					return returns ? new ReturningJob(payload, work) : new Job(payload, work);
+				}
+			};
+			// Warm up class shipping, connections and the JIT before measuring
+			sim.run(w, Math.min(jobs, 200), concurrency);
+			Report r = sim.run(w, jobs, concurrency);
+			LogManager.out.println(r.toString());
+		} finally {
+			sim.shutdown();
+		}
+		System.exit(0);
+	}
+
+	private static String take(Hashtable<String, String> opts, String key, String def) {
+		String v = opts.remove(key);
+		return v == null ? def : v;
+	}
+}
@@ -0,0 +1,383 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+import terra.shell.utils.ReturnValue;
+
+/**
+ * Data-parallel operations across the Nodes of the cluster, in the style of
+ * java.util.stream. The source collection or range is split into shards, each
+ * shard is run through the stream's map and filter stages by a ShardProcess on
+ * a remote Node, and the partial results are combined at the origin as they
+ * arrive.
+ * <p>
+ * Streams are immutable, every stage returns a new stream. Stages and elements
+ * are serialized and sent to the Nodes, along with the bytecode of their
+ * classes. Stages must therefore not capture anything which cannot be
+ * serialized, such as an enclosing instance, so they are best declared as
+ * static nested classes, or anonymous classes in a static context. The classes
+ * they refer to are found and sent along with them, only classes a stage loads
+ * by name, such as with Class.forName(), must be declared with depends().
+ *
+ * <pre>
+ * long sum = ClusterStream.range(cm, 0, 1000000).map(new Square()).reduce(0L, new Sum()).get();
+ * </pre>
+ *
+ * @author schirripad@moravian.edu
+ *
+ * @param <T> Type of the elements of the stream
+ */
+public final class ClusterStream<T> {
+	// Shards per Node, unless set with shards()
+	private static final int SHARDS_PER_NODE = 4;
+
+	private final ConnectionManager cm;
+	// Either the source elements, or the range [from, to)
+	private final List<?> source;
+	private final long from, to;
+	private final List<Object> stages;
+	private final List<Class<?>> deps;
+	private final int shards;
+	private final ProcessPriority priority;
+
+	private ClusterStream(ConnectionManager cm, List<?> source, long from, long to, List<Object> stages,
+			List<Class<?>> deps, int shards, ProcessPriority priority) {
+		this.cm = cm;
+		this.source = source;
+		this.from = from;
+		this.to = to;
+		this.stages = stages;
+		this.deps = deps;
+		this.shards = shards;
+		this.priority = priority;
+	}
+
+	/**
+	 * Stream the elements of a collection
+	 *
+	 * @param cm   ConnectionManager to dispatch the shards with
+	 * @param data Elements of the stream, which must be Serializable
+	 * @return A new stream
+	 */
+	public static <T> ClusterStream<T> of(ConnectionManager cm, Collection<? extends T> data) {
+		return new ClusterStream<T>(cm, new ArrayList<T>(data), 0, 0, new ArrayList<Object>(),
+				new ArrayList<Class<?>>(), 0, ProcessPriority.MEDIUM);
+	}
+
+	/**
+	 * Stream the numbers from "from" up to, but not including, "to". Only the
+	 * bounds of each shard are sent to its Node
+	 *
+	 * @param cm   ConnectionManager to dispatch the shards with
+	 * @param from First number of the range
+	 * @param to   Number following the last number of the range
+	 * @return A new stream
+	 */
+	public static ClusterStream<Long> range(ConnectionManager cm, long from, long to) {
+		return new ClusterStream<Long>(cm, null, from, Math.max(from, to), new ArrayList<Object>(),
+				new ArrayList<Class<?>>(), 0, ProcessPriority.MEDIUM);
+	}
+
+	/**
+	 * Transform every element of the stream
+	 *
+	 * @param f Transformation, run on the Nodes
+	 * @return A new stream of the transformed elements
+	 */
+	public <R> ClusterStream<R> map(Mapper<? super T, ? extends R> f) {
+		return new ClusterStream<R>(cm, source, from, to, append(stages, f), deps, shards, priority);
+	}
+
+	/**
+	 * Keep only the elements of the stream which pass a test
+	 *
+	 * @param f Test, run on the Nodes
+	 * @return A new stream of the elements passing the test
+	 */
+	public ClusterStream<T> filter(Filter<? super T> f) {
+		return new ClusterStream<T>(cm, source, from, to, append(stages, f), deps, shards, priority);
+	}
+
+	/**
+	 * Declare classes which the stages load by name, and which must be sent to the
+	 * Nodes along with them. Classes the stages refer to are sent without being
+	 * declared
+	 *
+	 * @param classes Classes used by the stages
+	 * @return A new stream
+	 */
+	public ClusterStream<T> depends(Class<?>... classes) {
+		ArrayList<Class<?>> d = new ArrayList<Class<?>>(deps);
+		d.addAll(Arrays.asList(classes));
+		return new ClusterStream<T>(cm, source, from, to, stages, d, shards, priority);
+	}
+
+	/**
+	 * Set the number of shards the stream is split into. By default the stream is
+	 * split into a few shards per Node
+	 *
+	 * @param n Number of shards
+	 * @return A new stream
+	 */
+	public ClusterStream<T> shards(int n) {
+		return new ClusterStream<T>(cm, source, from, to, stages, deps, Math.max(1, n), priority);
+	}
+
+	/**
+	 * Set the priority the shards are run with on their Nodes
+	 *
+	 * @param p Priority of the shards
+	 * @return A new stream
+	 */
+	public ClusterStream<T> priority(ProcessPriority p) {
+		return new ClusterStream<T>(cm, source, from, to, stages, deps, shards, p);
+	}
+
+	/**
+	 * Reduce the stream to a single value. Every shard is reduced on its Node, and
+	 * the partial results are combined in the order they arrive, so "op" must be
+	 * associative and commutative
+	 *
+	 * @param identity Identity of "op"
+	 * @param op       Operation combining two values
+	 * @return Future of the reduced value
+	 */
+	public CompletableFuture<T> reduce(T identity, Reducer<T> op) {
+		return reduce(identity, new ReducingAccumulator<T>(op), op);
+	}
+
+	/**
+	 * Fold the stream into a result of another type. Every shard is folded into a
+	 * partial result on its Node with "acc", and the partial results are combined
+	 * in the order they arrive with "combiner", which must be associative and
+	 * commutative
+	 *
+	 * @param identity Initial result of every shard, and identity of "combiner"
+	 * @param acc      Folds an element into a partial result, run on the Nodes
+	 * @param combiner Combines two partial results, run at the origin
+	 * @return Future of the combined result
+	 */
+	@SuppressWarnings("unchecked")
+	public <R> CompletableFuture<R> reduce(final R identity, Accumulator<R, ? super T> acc,
+			final Reducer<R> combiner) {
+		final CompletableFuture<R> result = new CompletableFuture<R>();
+		final List<CompletableFuture<ReturnValue<?>>> parts = dispatch(identity,
+				(Accumulator<Object, Object>) (Accumulator<?, ?>) acc, result);
+		final Object lock = new Object();
+		final Object[] total = { identity };
+		final int[] remaining = { parts.size() };
+		for (CompletableFuture<ReturnValue<?>> part : parts) {
+			part.whenComplete(new BiConsumer<ReturnValue<?>, Throwable>() {
+				public void accept(ReturnValue<?> rv, Throwable t) {
+					if (t != null) {
+						result.completeExceptionally(t);
+						return;
+					}
+					synchronized (lock) {
+						try {
+							total[0] = combiner.apply((R) total[0], (R) rv.getReturnValue());
+						} catch (RuntimeException e) {
+							result.completeExceptionally(e);
+							return;
+						}
+						if (--remaining[0] == 0)
+							result.complete((R) total[0]);
+					}
+				}
+			});
+		}
+		if (parts.isEmpty())
+			result.complete(identity);
+		return result;
+	}
+
+	/**
+	 * Collect the elements of the stream, in the order of the source
+	 *
+	 * @return Future of the list of elements
+	 */
+	public CompletableFuture<List<T>> collect() {
+		final CompletableFuture<List<T>> result = new CompletableFuture<List<T>>();
+		final List<CompletableFuture<ReturnValue<?>>> parts = dispatch(null, null, result);
+		final ArrayList<List<T>> lists = new ArrayList<List<T>>(Collections.nCopies(parts.size(), (List<T>) null));
+		final int[] remaining = { parts.size() };
+		for (int i = 0; i < parts.size(); i++) {
+			final int shard = i;
+			parts.get(i).whenComplete(new BiConsumer<ReturnValue<?>, Throwable>() {
+				public void accept(ReturnValue<?> rv, Throwable t) {
+					if (t != null) {
+						result.completeExceptionally(t);
+						return;
+					}
+					// Each shard returns the list of its elements
+					@SuppressWarnings("unchecked")
+					List<T> elements = (List<T>) rv.getReturnValue();
+					synchronized (lists) {
+						lists.set(shard, elements);
+						if (--remaining[0] > 0)
+							return;
+					}
+					ArrayList<T> all = new ArrayList<T>();
+					for (List<T> l : lists)
+						all.addAll(l);
+					result.complete(all);
+				}
+			});
+		}
+		if (parts.isEmpty())
+			result.complete(new ArrayList<T>());
+		return result;
+	}
+
+	/**
+	 * Count the elements of the stream
+	 *
+	 * @return Future of the number of elements
+	 */
+	public CompletableFuture<Long> count() {
+		return reduce(0L, new CountAccumulator(), new SumReducer());
+	}
+
+	/**
+	 * Split the stream into shards and submit them, the Nodes are chosen per shard
+	 * by the ConnectionManager
+	 *
+	 * @param identity Initial partial result of every shard
+	 * @param acc      Accumulator of the shards, NULL to collect the elements
+	 * @param result   Future of the operation, cancelling it cancels the shards
+	 * @return Futures of the shards' ReturnValues, in the order of the source
+	 */
+	private List<CompletableFuture<ReturnValue<?>>> dispatch(Object identity, Accumulator<Object, Object> acc,
+			CompletableFuture<?> result) {
+		long size = source != null ? source.size() : to - from;
+		int n = shards > 0 ? shards : Math.max(1, cm.numberOfNodes()) * SHARDS_PER_NODE;
+		n = (int) Math.min(n, size);
+		Class<?>[] classes = classesOf(identity, acc);
+		final List<CompletableFuture<ReturnValue<?>>> parts = new ArrayList<CompletableFuture<ReturnValue<?>>>(n);
+		for (int i = 0; i < n; i++) {
+			long start = size * i / n, end = size * (i + 1) / n;
+			ShardProcess p;
+			if (source != null)
+				p = new ShardProcess(new ArrayList<Object>(source.subList((int) start, (int) end)), 0, 0, stages,
+						identity, acc, classes);
+			else
+				p = new ShardProcess(null, from + start, from + end, stages, identity, acc, classes);
+			parts.add(cm.submit(p, priority, null));
+		}
+		result.whenComplete(new BiConsumer<Object, Throwable>() {
+			public void accept(Object r, Throwable t) {
+				// Cancelled by the caller, or failed, the remaining shards are not needed
+				if (t != null)
+					for (CompletableFuture<ReturnValue<?>> part : parts)
+						part.cancel(true);
+			}
+		});
+		return parts;
+	}
+
+	private static List<Object> append(List<Object> stages, Object stage) {
+		ArrayList<Object> s = new ArrayList<Object>(stages);
+		s.add(stage);
+		return s;
+	}
+
+	/**
+	 * Classes which must be sent to the Nodes along with the shards: those of the
+	 * stages, the accumulator, the identity and the source elements, unless they
+	 * belong to the JVM, or to this package, which every Node has
+	 */
+	private Class<?>[] classesOf(Object identity, Object acc) {
+		LinkedHashSet<Class<?>> classes = new LinkedHashSet<Class<?>>(deps);
+		LinkedHashSet<Class<?>> seen = new LinkedHashSet<Class<?>>();
+		ArrayList<Object> objects = new ArrayList<Object>(stages);
+		objects.add(identity);
+		objects.add(acc);
+		if (source != null)
+			objects.addAll(source);
+		for (Object o : objects) {
+			if (o == null || !seen.add(o.getClass()))
+				continue;
+			Class<?> c = o.getClass();
+			ClassLoader l = c.getClassLoader();
+			if (l != null && l != ClassLoader.getPlatformClassLoader() && !c.isArray()
+					&& c.getPackage() != ClusterStream.class.getPackage())
+				classes.add(c);
+		}
+		return classes.toArray(new Class<?>[0]);
+	}
+
+	/**
+	 * Transformation of the elements of a stream
+	 */
+	public interface Mapper<T, R> extends Serializable {
+		R apply(T t);
+	}
+
+	/**
+	 * Test deciding which elements of a stream are kept
+	 */
+	public interface Filter<T> extends Serializable {
+		boolean test(T t);
+	}
+
+	/**
+	 * Associative operation combining two values into one
+	 */
+	public interface Reducer<T> extends Serializable {
+		T apply(T a, T b);
+	}
+
+	/**
+	 * Folds an element into a partial result
+	 */
+	public interface Accumulator<R, T> extends Serializable {
+		R apply(R acc, T t);
+	}
+
+	/**
+	 * Folds with a Reducer, for reductions whose result is of the element type
+	 */
+	private static final class ReducingAccumulator<T> implements Accumulator<T, T> {
+		private static final long serialVersionUID = -1520873623498112950L;
+
+		private final Reducer<T> op;
+
+		private ReducingAccumulator(Reducer<T> op) {
+			this.op = op;
+		}
+
+		public T apply(T acc, T t) {
+			return op.apply(acc, t);
+		}
+	}
+
+	/**
+	 * Counts the elements of a shard
+	 */
+	private static final class CountAccumulator implements Accumulator<Long, Object> {
+		private static final long serialVersionUID = -3378214093474539113L;
+
+		public Long apply(Long acc, Object t) {
+			return acc + 1;
+		}
+	}
+
+	/**
+	 * Adds up two counts
+	 */
+	private static final class SumReducer implements Reducer<Long> {
+		private static final long serialVersionUID = 8807012981662102528L;
+
+		public Long apply(Long a, Long b) {
+			return a + b;
+		}
+	}
+}
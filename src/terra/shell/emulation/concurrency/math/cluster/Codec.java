@@ -0,0 +1,156 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression codecs Frame payloads can be sent with. Which codecs a Node
+ * accepts is announced in its handshake line.
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+enum Codec {
+	/**
+	 * Payload is sent as is
+	 */
+	NONE(0, 1) {
+		byte[] compress(byte[] raw) {
+			return raw;
+		}
+
+		byte[] decompress(byte[] b, int off, int len, int rawLen) {
+			return Arrays.copyOfRange(b, off, off + len);
+		}
+	},
+	/**
+	 * The in-tree LZ codec, fast with a moderate ratio. Each byte of a match
+	 * length adds at most 255 bytes, so data cannot expand more than 255 times
+	 */
+	LZ(1, 255) {
+		byte[] compress(byte[] raw) {
+			return LZCodec.compress(raw);
+		}
+
+		byte[] decompress(byte[] b, int off, int len, int rawLen) throws IOException {
+			return LZCodec.decompress(b, off, len, rawLen);
+		}
+	},
+	/**
+	 * java.util.zip Deflate, slower with a better ratio. Deflate cannot expand data
+	 * more than 1032 times
+	 */
+	DEFLATE(2, 1032) {
+		byte[] compress(byte[] raw) {
+			Deflater d = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			try {
+				d.setInput(raw);
+				d.finish();
+				byte[] out = new byte[raw.length + raw.length / 1000 + 64];
+				int n = 0;
+				while (!d.finished()) {
+					if (n == out.length)
+						out = Arrays.copyOf(out, out.length * 2);
+					n += d.deflate(out, n, out.length - n);
+				}
+				return Arrays.copyOf(out, n);
+			} finally {
+				d.end();
+			}
+		}
+
+		byte[] decompress(byte[] b, int off, int len, int rawLen) throws IOException {
+			Inflater i = new Inflater(true);
+			try {
+				i.setInput(b, off, len);
+				byte[] out = new byte[rawLen];
+				int n = 0;
+				while (n < rawLen && !i.finished()) {
+					int r = i.inflate(out, n, rawLen - n);
+					if (r == 0 && (i.needsInput() || i.needsDictionary()))
+						break;
+					n += r;
+				}
+				if (n != rawLen)
+					throw new IOException("Deflate data decompressed to " + n + " bytes, expected " + rawLen);
+				// The stream has to end right there, neither truncated nor holding more
+				if (!i.finished() && (i.inflate(new byte[1]) != 0 || !i.finished()))
+					throw new IOException("Deflate data does not end after " + rawLen + " bytes");
+				return out;
+			} catch (DataFormatException e) {
+				throw new IOException("Malformed Deflate data", e);
+			} finally {
+				i.end();
+			}
+		}
+	};
+
+	private final byte id;
+	private final int maxRatio;
+
+	Codec(int id, int maxRatio) {
+		this.id = (byte) id;
+		this.maxRatio = maxRatio;
+	}
+
+	public byte asByte() {
+		return id;
+	}
+
+	/**
+	 * Largest ratio of decompressed to compressed length this Codec can produce.
+	 * A peer announcing more is not to be believed
+	 */
+	int maxRatio() {
+		return maxRatio;
+	}
+
+	/**
+	 * Compress a payload
+	 *
+	 * @param raw Payload to compress
+	 * @return Compressed payload, which may be larger than "raw"
+	 */
+	abstract byte[] compress(byte[] raw);
+
+	/**
+	 * Decompress a payload
+	 *
+	 * @param b      Buffer holding the compressed payload
+	 * @param off    Offset of the compressed payload
+	 * @param len    Length of the compressed payload
+	 * @param rawLen Length of the payload once decompressed
+	 * @return Decompressed payload
+	 * @throws IOException If the payload is malformed
+	 */
+	abstract byte[] decompress(byte[] b, int off, int len, int rawLen) throws IOException;
+
+	/**
+	 * Find the Codec which is represented by the given id
+	 *
+	 * @param id Id read from the wire
+	 * @return Codec for this id, or NULL if the id is unknown
+	 */
+	public static Codec fromByte(byte id) {
+		for (Codec c : values())
+			if (c.id == id)
+				return c;
+		return null;
+	}
+
+	/**
+	 * Find the Codec with the given name, ignoring case
+	 *
+	 * @param name Name of the codec, as in a handshake line or configuration
+	 * @return Codec of this name, or NULL if the name is unknown
+	 */
+	public static Codec fromName(String name) {
+		for (Codec c : values())
+			if (c.name().equalsIgnoreCase(name.trim()))
+				return c;
+		return null;
+	}
+}
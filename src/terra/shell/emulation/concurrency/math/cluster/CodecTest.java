@@ -0,0 +1,148 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CodecTest {
+
+	private static final Codec[] CODECS = { Codec.LZ, Codec.DEFLATE };
+
+	private static byte[] text(int length) {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < length)
+			sb.append("process ").append(sb.length() % 97).append(" returned to node ").append(sb.length() % 13)
+					.append('\n');
+		return Arrays.copyOf(sb.toString().getBytes(StandardCharsets.UTF_8), length);
+	}
+
+	private static byte[] random(int length) {
+		byte[] b = new byte[length];
+		new Random(length).nextBytes(b);
+		return b;
+	}
+
+	private static byte[] roundTrip(Codec codec, byte[] raw) throws IOException {
+		byte[] packed = codec.compress(raw);
+		assertTrue(raw.length <= (long) Math.max(1, packed.length) * codec.maxRatio());
+		return codec.decompress(packed, 0, packed.length, raw.length);
+	}
+
+	@Test
+	public void testRoundTrips() throws IOException {
+		byte[][] inputs = { new byte[0], new byte[] { 7 }, text(12), text(100000), random(100000),
+				new byte[1 << 20] };
+		for (Codec codec : CODECS)
+			for (byte[] raw : inputs)
+				assertArrayEquals(codec + " of " + raw.length + " bytes", raw, roundTrip(codec, raw));
+	}
+
+	@Test
+	public void testCompressesRepetitiveData() {
+		byte[] raw = text(100000);
+		for (Codec codec : CODECS)
+			assertTrue(codec.toString(), codec.compress(raw).length < raw.length / 4);
+	}
+
+	@Test
+	public void testDecompressAtOffset() throws IOException {
+		byte[] raw = text(5000);
+		byte[] packed = LZCodec.compress(raw);
+		byte[] framed = new byte[packed.length + 10];
+		System.arraycopy(packed, 0, framed, 7, packed.length);
+		assertArrayEquals(raw, LZCodec.decompress(framed, 7, packed.length, raw.length));
+	}
+
+	@Test
+	public void testTruncatedInputIsRejected() {
+		byte[] raw = text(20000);
+		for (Codec codec : CODECS) {
+			byte[] packed = codec.compress(raw);
+			for (int len : new int[] { 0, 1, packed.length / 2, packed.length - 1 }) {
+				try {
+					codec.decompress(packed, 0, len, raw.length);
+					throw new AssertionError(codec + " accepted " + len + " of " + packed.length + " bytes");
+				} catch (IOException expected) {
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testWrongLengthIsRejected() {
+		byte[] raw = text(20000);
+		for (Codec codec : CODECS) {
+			byte[] packed = codec.compress(raw);
+			for (int rawLen : new int[] { raw.length - 1, raw.length + 1 }) {
+				try {
+					codec.decompress(packed, 0, packed.length, rawLen);
+					throw new AssertionError(codec + " decompressed to " + rawLen + " bytes");
+				} catch (IOException expected) {
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testCorruptInputIsRejected() {
+		byte[] raw = text(20000);
+		for (Codec codec : CODECS) {
+			byte[] packed = codec.compress(raw);
+			Random r = new Random(1);
+			for (int i = 0; i < 200; i++) {
+				byte[] corrupt = packed.clone();
+				corrupt[r.nextInt(corrupt.length)] ^= (byte) (1 + r.nextInt(255));
+				try {
+					byte[] out = codec.decompress(corrupt, 0, corrupt.length, raw.length);
+					// A flipped literal still decompresses, but never past its bounds
+					assertTrue(out.length == raw.length);
+				} catch (IOException expected) {
+				}
+			}
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testLZOffsetBeforeStartIsRejected() throws IOException {
+		// One literal, then a match reaching 2 bytes back
+		LZCodec.decompress(new byte[] { 0x10, 'a', 2, 0, 0x00 }, 0, 5, 10);
+	}
+
+	@Test(expected = IOException.class)
+	public void testFrameRejectsLengthAboveLimit() throws IOException {
+		byte[] packed = Codec.LZ.compress(new byte[4096]);
+		Frame f = Frame.compressed(FrameType.OUTPUT, Codec.LZ, 4096, packed);
+		ByteBuffer wire = ByteBuffer.allocate(f.wireSize());
+		for (ByteBuffer b : f.toBuffers())
+			wire.put(b);
+		Frame received = Frame.of((byte) (FrameType.OUTPUT.asByte() | Frame.COMPRESSED), FrameType.OUTPUT,
+				Arrays.copyOfRange(wire.array(), Frame.HEADER_SIZE, wire.capacity()), 4095);
+		received.getPayload();
+	}
+
+	@Test(expected = IOException.class)
+	public void testFrameRejectsImplausibleRatio() throws IOException {
+		// 10 bytes of LZ data can never decompress to 1 MB
+		byte[] payload = ByteBuffer.allocate(Frame.COMPRESSION_HEADER_SIZE + 10).put(Codec.LZ.asByte())
+				.putInt(1 << 20).array();
+		Frame.of((byte) (FrameType.OUTPUT.asByte() | Frame.COMPRESSED), FrameType.OUTPUT, payload, Frame.MAX_PAYLOAD)
+				.getPayload();
+	}
+
+	@Test
+	public void testFrameDecompressesWithinLimit() throws IOException {
+		byte[] raw = text(50000);
+		byte[] packed = Codec.DEFLATE.compress(raw);
+		byte[] payload = ByteBuffer.allocate(Frame.COMPRESSION_HEADER_SIZE + packed.length)
+				.put(Codec.DEFLATE.asByte()).putInt(raw.length).put(packed).array();
+		assertArrayEquals(raw, Frame.of((byte) (FrameType.OUTPUT.asByte() | Frame.COMPRESSED), FrameType.OUTPUT,
+				payload, raw.length).getPayload());
+	}
+}
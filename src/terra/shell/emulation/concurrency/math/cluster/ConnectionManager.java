@@ -1,38 +1,55 @@
 package terra.shell.emulation.concurrency.math.cluster;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
 import java.io.OutputStream;
-import java.io.PrintStream;
+import java.io.Serializable;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.MalformedURLException;
 import java.net.NetworkInterface;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketException;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
-import java.util.PriorityQueue;
-import java.util.Queue;
-import java.util.Scanner;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.zip.CRC32;
-import java.util.zip.CheckedInputStream;
+import java.util.UUID;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import terra.shell.config.Configuration;
 import terra.shell.launch.Launch;
@@ -53,31 +70,78 @@ import terra.shell.utils.system.JSHProcesses;
 public final class ConnectionManager {
 
 	/*
-	 * Implement Do-It-Later Programming ConnectionManager expansion. Do-It-Later
-	 * programming: Send base informaton for storage on remote Node Send execution
-	 * message, execute code and send ReturnValue. Example: Send assets to be worked
-	 * on to remote node before execution is necessary In Image editing, send the a
-	 * series of subimages to all Nodes involved before editing is utilized. When an
-	 * edit is made, send an execution command to each Node, and allow the Node to
-	 * edit the image. Upon editing completion, package all the sub-images into a
-	 * ReturnValue and send them back to the origin Node, then compile the
-	 * sub-images into one large image.
+	 * Do-It-Later programming: assets to be worked on are sent to remote Nodes
+	 * before execution is necessary, see stage(). Processes sent later only carry
+	 * a StagedAsset referencing them. In Image editing, the sub-images are staged
+	 * on the Nodes involved before editing is utilized. When an edit is made, a
+	 * small process referencing its sub-image is submitted to each Node, which
+	 * edits the image. Upon editing completion, all the sub-images are packaged
+	 * into a ReturnValue and sent back to the origin Node, which compiles them
+	 * into one large image.
 	 */
 
-	private JSHClassLoader loader;
-	// TODO Categorize Classloaders by UUID in order to allow deloading of classes
-	// by removing the classloader (Possibly serialVersionUID??
-	// TODO Need to reserve UUID slot when passive load call is received, should set
-	// UUID upon request, not instantiation
-	private Hashtable<Long, JSHClassLoader> loadersByUUID = new Hashtable<Long, JSHClassLoader>();
+	private static final String HANDSHAKE_PREFIX = "READY:BIN:";
+	// Largest chunk of process output sent in one Frame
+	private static final int OUTPUT_CHUNK = 8192;
+	private static final int MAX_HANDSHAKE_LENGTH = 64;
+
+	// Classes of passively executed processes, one ClassLoader per ClassBundle
+	private ClassBundleCache bundles;
+	// Bundles of processes sent from this Node, so that their bytecode is only read
+	// and hashed once
+	private Hashtable<List<Class<?>>, ClassBundle> bundlesByClass = new Hashtable<List<Class<?>>, ClassBundle>();
 	private HashSet<String> localAddresses = new HashSet<String>();
 
-	private static Queue<Node> nodes = new PriorityQueue<Node>();
+	private final Vector<Node> nodes = new Vector<Node>();
+	// Address the server and outgoing connections are bound to, NULL for any
+	private final InetAddress bind;
+	private final Random random = new Random();
+	// Keep-alive connections to remote Nodes, by host address
+	private Hashtable<String, NodeConnectionPool> pools = new Hashtable<String, NodeConnectionPool>();
+	// Connections dedicated to pipelined submissions, by host address
+	private Hashtable<String, ProcessPipeline> pipelines = new Hashtable<String, ProcessPipeline>();
+	// Submitted ASYNCHRONOUS processes awaiting their ReturnValue, by process UUID
+	private Hashtable<UUID, CompletableFuture<ReturnValue<?>>> returns = new Hashtable<UUID, CompletableFuture<ReturnValue<?>>>();
+	// Assets staged on this Node by other Nodes
+	private AssetStore assets;
+	// Directory files received from other Nodes are spooled to
+	private File transfers;
+	// Prefix of the keys of assets staged from this Node, so that assets of the
+	// same name staged from different Nodes do not collide
+	private final String stagingPrefix = UUID.randomUUID() + "/";
+	// Last version staged of each asset, by name
+	private Hashtable<String, Long> assetVersions = new Hashtable<String, Long>();
+	// Sends staged assets in the background
+	private ExecutorService staging;
 	private Logger log = LogManager.getLogger("ClusterManager");
 	private LocalServer ls;
-	private String ipFormat = "192.168.1.X";
+	private String ipFormat = "192.168.1.X", beaconGroup = "230.0.0.21", compression = "LZ,DEFLATE",
+			serializer = "COMPACT";
 	private int port = 2100, activeProcessLimit = 20, passiveProcessLimit = 10, connectionLimit = 5, ipScanRangeMin = 1,
-			ipScanRangeMax = 253, handshakeTimeout = 200, nodeCheckInterval = 60;
+			ipScanRangeMax = 253, handshakeTimeout = 200, nodeCheckInterval = 60, connectionIdleTimeout = 120,
+			exchangeTimeout = 30, bundleCacheSize = 64, bundleCacheLoaded = 32, pipelineWindow = 256,
+			passiveQueueLimit = 1024, priorityAgingInterval = 5, scanConcurrency = 32, discoveryBeacon = 1,
+			beaconPort = 2101, scanOnStart = 0, heartbeatInterval = 1000, suspectPhi = 3, evictPhi = 12,
+			compressionThreshold = 512, linkSpeed = 100, outputWindow = 65536, outputLinger = 50, stagingLimit = 256,
+			stagingConcurrency = 4, classAffinity = 25, retryLimit = 3, retryBackoff = 100, retryBackoffMax = 5000, quarantineFaults = 3,
+			quarantineTime = 30, maxFrameSize = Frame.MAX_PAYLOAD / (1024 * 1024);
+	// Largest Frame payload accepted from other Nodes, in bytes
+	private int maxPayload = Frame.MAX_PAYLOAD;
+	// Codecs this Node accepts and compresses with, in order of preference
+	private Codec[] codecs;
+	// ProcessSerializer processes and ReturnValues are written with
+	private int serializerId = ProcessSerializers.COMPACT;
+	// Measured speed of the link to each Node, by host address
+	private Hashtable<String, FrameCompressor.Link> links = new Hashtable<String, FrameCompressor.Link>();
+	// Metrics of the traffic with each Node, by host address
+	private Hashtable<String, NodeMetrics> metrics = new Hashtable<String, NodeMetrics>();
+	// Recent run times of each Speculative process class
+	private Hashtable<Class<?>, RunTimes> runTimes = new Hashtable<Class<?>, RunTimes>();
+	// Processes running as more than one copy, whose extra ReturnValues are dropped
+	private Hashtable<UUID, Boolean> speculating = new Hashtable<UUID, Boolean>();
+	// Probes Nodes, both to discover them and to heartbeat them
+	private ExecutorService discovery;
+	private ServiceBeacon beacon;
 	private Timer checkNodesTimer;
 
 	// TODO
@@ -88,10 +152,23 @@ public final class ConnectionManager {
 	 * Configure ConnectionManager, INIT LocalServer, run serviceScan
 	 */
 	public ConnectionManager() {
+		this(Launch.getConfig("ClusterService"), null, Launch.getConfD().getParentFile());
+	}
+
+	/**
+	 * Configure a ConnectionManager bound to a single address, as used by
+	 * ClusterSimulator to run several Nodes in one JVM. A bound ConnectionManager
+	 * neither announces itself nor scans for Nodes, they are added with addNode()
+	 * 
+	 * @param conf Configuration to use, the ClusterService configuration is
+	 *             generated with defaults if NULL
+	 * @param bind Address to serve on and connect from, NULL for any
+	 * @param home Directory bundles and transferred files are kept under
+	 */
+	ConnectionManager(Configuration conf, InetAddress bind, File home) {
+		this.bind = bind;
 		log.useOut(false);
 		log.log("Starting Connection Manager...");
-		// Try to open conf file
-		Configuration conf = Launch.getConfig("ClusterService");
 		// If conf nonexistent, create one with defaults
 		log.log("Loading  config...");
 		if (conf == null) {
@@ -106,6 +183,36 @@ public final class ConnectionManager {
 			conf.setValue("ipScanRangeMax", 253);
 			conf.setValue("handshakeTimeout", 200);
 			conf.setValue("nodeCheckInterval", 60);
+			conf.setValue("connectionIdleTimeout", 120);
+			conf.setValue("exchangeTimeout", 30);
+			conf.setValue("bundleCacheSize", 64);
+			conf.setValue("bundleCacheLoaded", 32);
+			conf.setValue("pipelineWindow", 256);
+			conf.setValue("passiveQueueLimit", 1024);
+			conf.setValue("priorityAgingInterval", 5);
+			conf.setValue("scanConcurrency", 32);
+			conf.setValue("discoveryBeacon", 1);
+			conf.setValue("beaconGroup", "230.0.0.21");
+			conf.setValue("beaconPort", 2101);
+			conf.setValue("scanOnStart", 0);
+			conf.setValue("heartbeatInterval", 1000);
+			conf.setValue("suspectPhi", 3);
+			conf.setValue("evictPhi", 12);
+			conf.setValue("compression", "LZ,DEFLATE");
+			conf.setValue("serializer", "COMPACT");
+			conf.setValue("compressionThreshold", 512);
+			conf.setValue("linkSpeed", 100);
+			conf.setValue("outputWindow", 65536);
+			conf.setValue("outputLinger", 50);
+			conf.setValue("stagingLimit", 256);
+			conf.setValue("stagingConcurrency", 4);
+			conf.setValue("classAffinity", 25);
+			conf.setValue("retryLimit", 3);
+			conf.setValue("retryBackoff", 100);
+			conf.setValue("retryBackoffMax", 5000);
+			conf.setValue("quarantineFaults", 3);
+			conf.setValue("quarantineTime", 30);
+			conf.setValue("maxFrameSize", maxFrameSize);
 			// TODO Finish setting up Default values
 		} else {
 			// If conf exists, gather configuration options
@@ -117,6 +224,45 @@ public final class ConnectionManager {
 			connectionLimit = conf.getValueAsInt("connectionLimit");
 			handshakeTimeout = conf.getValueAsInt("handshakeTimeout");
 			nodeCheckInterval = conf.getValueAsInt("nodeCheckInterval");
+			connectionIdleTimeout = getConfInt(conf, "connectionIdleTimeout", connectionIdleTimeout);
+			exchangeTimeout = getConfInt(conf, "exchangeTimeout", exchangeTimeout);
+			bundleCacheSize = getConfInt(conf, "bundleCacheSize", bundleCacheSize);
+			bundleCacheLoaded = getConfInt(conf, "bundleCacheLoaded", bundleCacheLoaded);
+			pipelineWindow = getConfInt(conf, "pipelineWindow", pipelineWindow);
+			passiveQueueLimit = getConfInt(conf, "passiveQueueLimit", passiveQueueLimit);
+			priorityAgingInterval = getConfInt(conf, "priorityAgingInterval", priorityAgingInterval);
+			scanConcurrency = getConfInt(conf, "scanConcurrency", scanConcurrency);
+			discoveryBeacon = getConfInt(conf, "discoveryBeacon", discoveryBeacon);
+			beaconPort = getConfInt(conf, "beaconPort", beaconPort);
+			scanOnStart = getConfInt(conf, "scanOnStart", scanOnStart);
+			heartbeatInterval = getConfInt(conf, "heartbeatInterval", heartbeatInterval);
+			suspectPhi = getConfInt(conf, "suspectPhi", suspectPhi);
+			evictPhi = getConfInt(conf, "evictPhi", evictPhi);
+			compressionThreshold = getConfInt(conf, "compressionThreshold", compressionThreshold);
+			linkSpeed = getConfInt(conf, "linkSpeed", linkSpeed);
+			outputWindow = getConfInt(conf, "outputWindow", outputWindow);
+			outputLinger = getConfInt(conf, "outputLinger", outputLinger);
+			stagingLimit = getConfInt(conf, "stagingLimit", stagingLimit);
+			stagingConcurrency = getConfInt(conf, "stagingConcurrency", stagingConcurrency);
+			classAffinity = getConfInt(conf, "classAffinity", classAffinity);
+			retryLimit = getConfInt(conf, "retryLimit", retryLimit);
+			retryBackoff = getConfInt(conf, "retryBackoff", retryBackoff);
+			retryBackoffMax = getConfInt(conf, "retryBackoffMax", retryBackoffMax);
+			quarantineFaults = getConfInt(conf, "quarantineFaults", quarantineFaults);
+			quarantineTime = getConfInt(conf, "quarantineTime", quarantineTime);
+			maxFrameSize = getConfInt(conf, "maxFrameSize", maxFrameSize);
+			if (conf.hasID("compression"))
+				compression = (String) conf.getValue("compression");
+			else
+				conf.setValue("compression", compression);
+			if (conf.hasID("serializer"))
+				serializer = (String) conf.getValue("serializer");
+			else
+				conf.setValue("serializer", serializer);
+			if (conf.hasID("beaconGroup"))
+				beaconGroup = (String) conf.getValue("beaconGroup");
+			else
+				conf.setValue("beaconGroup", beaconGroup);
 
 			int ipScanMin = conf.getValueAsInt("ipScanRangeMin");
 			int ipScanMax = conf.getValueAsInt("ipScanRangeMax");
@@ -126,31 +272,82 @@ public final class ConnectionManager {
 				ipScanRangeMax = ipScanMax;
 			}
 		}
+		codecs = parseCodecs(compression);
+		maxPayload = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, maxFrameSize) * 1024L * 1024L);
+		if (ProcessSerializers.find(serializer) >= 0)
+			serializerId = ProcessSerializers.find(serializer);
+		else
+			log.err("Unknown serializer " + serializer + ", using " + ProcessSerializers.get(serializerId).getName());
 		log.log("Successfully loaded config");
 		// Start LocalServer
+		// Bundles are kept under the JSH home, next to the configuration directory
+		bundles = new ClassBundleCache(new File(home, "cluster/bundles"),
+				bundleCacheSize * 1024L * 1024L, bundleCacheLoaded);
+		assets = new AssetStore(stagingLimit * 1024L * 1024L);
+		// Files received from other Nodes, left over files belong to assets of a
+		// previous run
+		transfers = new File(home, "cluster/transfers");
+		if (!transfers.isDirectory() && !transfers.mkdirs())
+			log.err("Unable to create transfer directory at " + transfers);
+		File[] leftover = transfers.listFiles();
+		if (leftover != null)
+			for (File f : leftover)
+				f.delete();
+		// Needed to stage, unstage and discover even if the server fails to start,
+		// the Node can then still send processes to others
+		discovery = Executors.newFixedThreadPool(Math.max(1, scanConcurrency), new ThreadFactory() {
+			private int count = 0;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setName("ClusterDiscovery-" + (count++));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		staging = Executors.newFixedThreadPool(Math.max(1, stagingConcurrency), new ThreadFactory() {
+			private int count = 0;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setName("ClusterStaging-" + (count++));
+				t.setDaemon(true);
+				return t;
+			}
+		});
 		try {
-			loader = new JSHClassLoader(new URL[] { new URL("file:///modules") });
-		} catch (MalformedURLException e1) {
-			e1.printStackTrace();
+			getLocalAddresses();
+		} catch (SocketException e) {
+			e.printStackTrace();
 		}
 		ls = new LocalServer();
-		if (ls.ss == null) {
+		if (ls.ssc == null) {
 			log.err("Failed to start server on localhost:" + port);
 			log.log("Stopping Connection Manager...");
 			return;
 		}
 		ls.start();
 
-		// Scan for other servers on the LAN
-		try {
-			getLocalAddresses();
-			serviceScan();
-		} catch (Exception e) {
-			e.printStackTrace();
-			log.err("Failed to run service scan: " + e.getMessage());
+		// Announce this Node, Nodes already running answer right away
+		if (discoveryBeacon != 0 && bind == null) {
+			try {
+				beacon = new ServiceBeacon(InetAddress.getByName(beaconGroup), beaconPort,
+						new ServiceBeacon.Listener() {
+							public boolean heard(InetAddress address) {
+								return beaconHeard(address);
+							}
+						});
+				beacon.start();
+			} catch (IOException e) {
+				log.err("Failed to start discovery beacon: " + e.getMessage());
+				beacon = null;
+			}
 		}
+		// Scan for other servers on the LAN, always done if there is no beacon
+		if (bind == null && (scanOnStart != 0 || beacon == null))
+			serviceScan();
 
-		// Create and Schedule a check to ensure each Nodes connection over time
+		// Heartbeat every Node, so that failed Nodes are noticed within seconds
 		checkNodesTimer = new Timer();
 		checkNodesTimer.schedule(new TimerTask() {
 
@@ -159,7 +356,305 @@ public final class ConnectionManager {
 				checkNodesAlive();
 			}
 
-		}, 0, (nodeCheckInterval * 1000));
+		}, heartbeatInterval, Math.max(1, heartbeatInterval));
+
+		// Re-announce, so that Nodes which restarted or missed the first announcement
+		// find this one
+		checkNodesTimer.schedule(new TimerTask() {
+
+			@Override
+			public void run() {
+				if (beacon != null)
+					beacon.announce();
+			}
+
+		}, (nodeCheckInterval * 1000), (nodeCheckInterval * 1000));
+
+		// Close pooled connections which have not been used for a while
+		checkNodesTimer.schedule(new TimerTask() {
+
+			@Override
+			public void run() {
+				reapIdleConnections();
+			}
+
+		}, (connectionIdleTimeout * 500), (connectionIdleTimeout * 500));
+
+		// Stream the output of processes run for other Nodes back to their origin
+		checkNodesTimer.schedule(new TimerTask() {
+
+			@Override
+			public void run() {
+				ls.flushOutputs();
+			}
+
+		}, Math.max(1, outputLinger), Math.max(1, outputLinger));
+	}
+
+	/**
+	 * Read an int value from the configuration, configurations generated before
+	 * the value existed are given the default value
+	 * 
+	 * @param conf Configuration to read from
+	 * @param id   Key of the value
+	 * @param def  Default value
+	 * @return The configured value, or the default
+	 */
+	private int getConfInt(Configuration conf, String id, int def) {
+		if (!conf.hasID(id)) {
+			conf.setValue(id, def);
+			return def;
+		}
+		return conf.getValueAsInt(id);
+	}
+
+	/**
+	 * Get the pool of keep-alive connections to the Node at "host", creating an
+	 * empty pool if none exists yet
+	 * 
+	 * @param host Address of the Node
+	 * @return Connection pool for this Node
+	 */
+	NodeConnectionPool getPool(String host) {
+		synchronized (pools) {
+			NodeConnectionPool pool = pools.get(host);
+			if (pool == null) {
+				pool = new NodeConnectionPool(this, host, connectionLimit);
+				pools.put(host, pool);
+			}
+			return pool;
+		}
+	}
+
+	/**
+	 * Open and handshake a new connection to the Node at "host"
+	 * 
+	 * @param host Address of the Node
+	 * @return The open connection
+	 * @throws IOException If the Node could not be reached, or the handshake failed
+	 */
+	NodeConnection openConnection(String host) throws IOException {
+		NodeConnection c = new NodeConnection(host, port, bind, handshakeTimeout, maxPayload);
+		FrameCompressor compressor = completeHandshake(c.in(), c.out(), c.getSocket().getInetAddress());
+		if (compressor == null) {
+			c.close();
+			throw new IOException("Handshake with " + host + " failed");
+		}
+		c.setCompressor(compressor);
+		c.setMetrics(metricsOf(host));
+		return c;
+	}
+
+	/**
+	 * Parse a comma separated list of Codec names, unknown names are skipped
+	 * 
+	 * @param list Codec names, such as "LZ,DEFLATE"
+	 * @return The codecs, in the order listed, without NONE
+	 */
+	private Codec[] parseCodecs(String list) {
+		ArrayList<Codec> parsed = new ArrayList<Codec>();
+		for (String name : list.split(",")) {
+			if (name.trim().isEmpty())
+				continue;
+			Codec c = Codec.fromName(name);
+			if (c == null)
+				log.debug("Unknown compression codec: " + name);
+			else if (c != Codec.NONE && !parsed.contains(c))
+				parsed.add(c);
+		}
+		return parsed.toArray(new Codec[0]);
+	}
+
+	/**
+	 * Get the link speed estimate of the Node at "host", shared by all connections
+	 * to it
+	 */
+	private FrameCompressor.Link getLink(String host) {
+		synchronized (links) {
+			FrameCompressor.Link link = links.get(host);
+			if (link == null) {
+				// Configured in MBit/s, 125 bytes per MS each
+				link = new FrameCompressor.Link(linkSpeed * 125.0);
+				links.put(host, link);
+			}
+			return link;
+		}
+	}
+
+	/**
+	 * Get the metrics of the traffic with the Node at "host", shared by all
+	 * connections to it
+	 * 
+	 * @param host Address of the Node
+	 * @return Metrics of this Node
+	 */
+	NodeMetrics metricsOf(String host) {
+		synchronized (metrics) {
+			NodeMetrics m = metrics.get(host);
+			if (m == null) {
+				m = new NodeMetrics(host);
+				metrics.put(host, m);
+			}
+			return m;
+		}
+	}
+
+	/**
+	 * Hand a ReturnValue, sent back over the connection its process was sent on, to
+	 * whatever waits for it: the future of a submitted process, or else the process
+	 * with the ReturnValue's SUID
+	 * 
+	 * @param in     The serialized ReturnValue
+	 * @param loader ClassLoader of the process which was sent, which holds the
+	 *               ReturnValue's class
+	 * @param host   Address of the Node the process ran on
+	 */
+	void receiveReturn(InputStream in, ClassLoader loader, String host) {
+		try {
+			long start = System.nanoTime();
+			ReturnValue<?> rv = (ReturnValue<?>) ProcessSerializers.read(in, loader, assets);
+			metricsOf(host).deserialized(System.nanoTime() - start);
+			CompletableFuture<ReturnValue<?>> pending = returns.remove(rv.getProcessID());
+			if (pending != null) {
+				pending.complete(rv);
+				return;
+			}
+			log.debug("Attempting to find Process of ID: " + rv.getProcessID() + " : " + rv.getSUID());
+			JProcess target = rv.getSUID() == null ? null : JSHProcesses.getProcess(rv.getSUID());
+			if (target == null && speculating.containsKey(rv.getProcessID())) {
+				log.debug("Dropping ReturnValue of a losing copy of " + rv.getProcessID());
+				return;
+			}
+			if (target == null)
+				throw new IOException("No process is waiting for ReturnValue of " + rv.getProcessID());
+			target.processReturn(rv);
+		} catch (Exception e) {
+			// Only this ReturnValue is lost, the connection carries on
+			e.printStackTrace();
+			log.err("Unable to receive ReturnValue from " + host + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Take a snapshot of the metrics of every known Node, for finding out where the
+	 * time of remote processes goes
+	 * 
+	 * @return One snapshot per known Node
+	 */
+	public NodeStats[] stats() {
+		Node[] n = nodes.toArray(new Node[0]);
+		NodeStats[] stats = new NodeStats[n.length];
+		for (int i = 0; i < n.length; i++)
+			stats[i] = n[i].metrics.snapshot();
+		return stats;
+	}
+
+	/**
+	 * Close pooled connections which have been idle longer than the configured
+	 * timeout, and drop pools which no longer hold any connection
+	 */
+	private void reapIdleConnections() {
+		synchronized (pools) {
+			Iterator<NodeConnectionPool> it = pools.values().iterator();
+			while (it.hasNext()) {
+				NodeConnectionPool pool = it.next();
+				int reaped = pool.reap(connectionIdleTimeout * 1000L);
+				if (reaped > 0)
+					log.debug("Closed " + reaped + " idle connections to " + pool.getHost());
+				if (pool.openConnections() == 0 && !hasNode(pool.getHost())) {
+					pool.close();
+					it.remove();
+				}
+			}
+		}
+		synchronized (pipelines) {
+			Iterator<ProcessPipeline> it = pipelines.values().iterator();
+			while (it.hasNext()) {
+				ProcessPipeline pipe = it.next();
+				if (!pipe.isOpen() || (pipe.inFlight() == 0
+						&& System.currentTimeMillis() - pipe.lastUsed() > connectionIdleTimeout * 1000L)) {
+					pipe.close();
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop this ConnectionManager, closing its server and every connection to
+	 * other Nodes. Processes still queued for other Nodes are dropped
+	 */
+	public void shutdown() {
+		log.log("Stopping Connection Manager...");
+		if (checkNodesTimer != null)
+			checkNodesTimer.cancel();
+		if (beacon != null)
+			beacon.close();
+		ls.stopServer();
+		synchronized (pipelines) {
+			for (ProcessPipeline pipe : pipelines.values())
+				pipe.close();
+			pipelines.clear();
+		}
+		synchronized (pools) {
+			for (NodeConnectionPool pool : pools.values())
+				pool.close();
+			pools.clear();
+		}
+		if (discovery != null)
+			discovery.shutdownNow();
+		if (staging != null)
+			staging.shutdownNow();
+	}
+
+	/**
+	 * Get the pipeline to the Node at "host", opening a new one if there is none,
+	 * or the last one failed
+	 * 
+	 * @param host Address of the Node
+	 * @return Open pipeline to this Node
+	 * @throws IOException If the Node could not be reached
+	 */
+	private ProcessPipeline getPipeline(String host) throws IOException {
+		synchronized (pipelines) {
+			ProcessPipeline pipe = pipelines.get(host);
+			if (pipe == null || !pipe.isOpen()) {
+				pipe = new ProcessPipeline(this, host, pipelineWindow);
+				pipelines.put(host, pipe);
+			}
+			return pipe;
+		}
+	}
+
+	/**
+	 * Check whether a Node with the given host address is known
+	 * 
+	 * @param host Address of the Node
+	 * @return True if the Node is in the Node queue
+	 */
+	private boolean hasNode(String host) {
+		for (Node n : nodes.toArray(new Node[0]))
+			if (n.ip.getHostAddress().equals(host))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Remove a Node from the Node queue and close its connections
+	 * 
+	 * @param n Node to remove
+	 */
+	private void removeNode(Node n) {
+		nodes.remove(n);
+		synchronized (pools) {
+			NodeConnectionPool pool = pools.remove(n.ip.getHostAddress());
+			if (pool != null)
+				pool.close();
+		}
+		ProcessPipeline pipe = pipelines.remove(n.ip.getHostAddress());
+		if (pipe != null)
+			pipe.close();
+		metrics.remove(n.ip.getHostAddress());
 	}
 
 	/**
@@ -183,8 +678,8 @@ public final class ConnectionManager {
 
 	/**
 	 * Queue a JProcess to be serialized and sent to another Node for processing.
-	 * This uses a sorting algorithm based on each Nodes ping, and delta since last
-	 * usage time, prioritizing low-ping, low-usage nodes.
+	 * The Node is chosen by selectNode(), based on each Node's latency, the load
+	 * it advertises and whether it already holds the process's classes.
 	 * 
 	 * @param p   JProcess to be sent
 	 * @param out
@@ -192,225 +687,1151 @@ public final class ConnectionManager {
 	 * @return True if process is succesfully queued, false otherwise
 	 */
 	public boolean queueProcess(JProcess p, OutputStream out, InputStream in) {
-		// TODO Add node selection
-		try {
-			// Select top Node based on Node.compareTo
-			// Compares Nodes based on overall ping, as well as time since last usage
-			Node n = nodes.poll();
-			boolean success = ls.sendProcess(n.ip, p, ProcessPriority.MEDIUM, out, in);
-			n.updatePing();
-			n.lastUsed = System.currentTimeMillis();
-			nodes.add(n);
-			if (!success)
-				queueProcess(p, out, in);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		return true;
+		return queueProcess(p, ProcessPriority.MEDIUM, out, in);
 	}
 
 	/**
-	 * Send a JProcess to all known Nodes, ignoring the sorting algorithm
+	 * Queue a JProcess to be serialized and sent to another Node for processing,
+	 * the remote Node runs processes of higher priority first. A process which
+	 * cannot be delivered is retried on another Node, after a backoff which grows
+	 * with every attempt, up to "retryLimit" times
 	 * 
-	 * @param p   JProcess to be sent
+	 * @param p        JProcess to be sent
+	 * @param priority Priority of the process on the remote Node
 	 * @param out
 	 * @param in
-	 * @return True if process is sent successfully to all nodes, otherwise false.
-	 *         Can be false if only one out 'n' Nodes fails
+	 * @return True if the process was run by a Node, false if it could not be
+	 *         delivered to any
 	 */
-	public boolean sendToAll(final JProcess p, final OutputStream out, final InputStream in) {
-		for (final Node n : nodes) {
-			JProcess pr = new JProcess() {
-
-				@Override
-				public String getName() {
-					return "SendProc";
+	public boolean queueProcess(JProcess p, ProcessPriority priority, OutputStream out, InputStream in) {
+		String bundle;
+		try {
+			bundle = bundleOf(p).getHash();
+		} catch (IOException e) {
+			log.err("Unable to bundle " + p.getName() + ": " + e.getMessage());
+			return false;
+		}
+		HashSet<Node> tried = new HashSet<Node>();
+		String reason = "No Nodes available";
+		for (int attempt = 1; attempt <= retryLimit + 1; attempt++) {
+			if (attempt > 1) {
+				try {
+					Thread.sleep(backoff(attempt - 1));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
 				}
-
-				@Override
-				public boolean start() {
-					try {
-						ls.sendProcess(n.ip, p, ProcessPriority.MEDIUM, out, in);
-					} catch (Exception e) {
-						e.printStackTrace();
-						return false;
-					}
+			}
+			Node n = selectNode(tried, bundle);
+			if (n == null)
+				break;
+			tried.add(n);
+			boolean success = false;
+			n.dispatched();
+			try {
+				success = ls.sendProcess(n, p, priority, out, in);
+				if (success) {
+					n.delivered();
 					return true;
 				}
-			};
-			pr.run();
+				// Refused by a busy Node, or unable to be read there
+				reason = "refused by " + n.ip.getHostAddress();
+			} catch (IOException e) {
+				n.faulted();
+				reason = e.getMessage();
+			} finally {
+				n.completed(success);
+			}
+			log.debug("Attempt " + attempt + " to deliver " + p.getName() + " failed: " + reason);
 		}
-		return true;
+		log.err("Unable to deliver " + p.getName() + " after " + tried.size() + " attempts: " + reason);
+		return false;
 	}
 
 	/**
-	 * Ping Node at "ip"
+	 * Time to wait before the next attempt to deliver a process. The backoff
+	 * doubles with every attempt up to "retryBackoffMax", and is drawn at random
+	 * below that bound, so that processes which failed together are not retried
+	 * together
 	 * 
-	 * @param ip IP to ping
-	 * @return Latency, in MS
-	 * @throws UnknownHostException
-	 * @throws IOException
+	 * @param failures Attempts which have failed so far
+	 * @return Backoff, in MS
 	 */
-	public long ping(Inet4Address ip) throws UnknownHostException, IOException {
-		return ping(ip.getHostAddress());
+	private long backoff(int failures) {
+		long bound = Math.min(retryBackoffMax, (long) retryBackoff << Math.min(failures - 1, 20));
+		return bound <= 0 ? 0 : 1 + (long) (random.nextDouble() * bound);
 	}
 
 	/**
-	 * Ping node at "ip"
-	 * 
-	 * @param ip
+	 * Pick the Node to send a process to. Two Nodes are drawn at random and the
+	 * better of the two, by cost(), is used. Unlike always taking the best Node,
+	 * this does not pile every process onto one Node between two load reports.
+	 * When some Nodes already hold the process's ClassBundle, the second Node is
+	 * drawn from those, so that a Node which can skip the class transfer is
+	 * always in the running. Nodes the process has already failed on are avoided
+	 * unless no other Node is left
 	 * 
-	 * @return Latency, in MS
-	 * @throws UnknownHostException
-	 * @throws IOException
+	 * @param tried  Nodes to avoid, may be NULL
+	 * @param bundle Hash of the process's ClassBundle, may be NULL
+	 * @return Selected Node, or NULL if no Nodes are available
 	 */
-	public long ping(String ip) throws UnknownHostException, IOException {
-		// Check for valid IP
-		if (ip == null)
-			return -1;
-		log.debug("Sending PING request", 2);
-		Socket s = new Socket();
-		// Connect to Node host
-		s.connect(new InetSocketAddress(ip, port), handshakeTimeout);
-		log.debug("Pinging: " + s.getInetAddress().getHostAddress());
-		// Initialize Socket IO
-		PrintStream out = new PrintStream(s.getOutputStream());
-		Scanner sc = new Scanner(s.getInputStream());
-		// Attempt to handshake with Node
-		if (!completeHandshake(sc, out)) {
-			// If handshake fails, return exit code
-			sc.close();
-			out.close();
-			s.close();
-			return -1;
+	private Node selectNode(Collection<Node> tried, String bundle) {
+		Node[] candidates = healthyNodes();
+		if (tried != null && !tried.isEmpty()) {
+			ArrayList<Node> untried = new ArrayList<Node>(candidates.length);
+			for (Node n : candidates)
+				if (!tried.contains(n))
+					untried.add(n);
+			if (!untried.isEmpty())
+				candidates = untried.toArray(new Node[0]);
 		}
-		// Log start time of ping
-		long startTimeStamp = System.currentTimeMillis();
-		// Send PING query
-		out.println("PING");
-		log.debug("Sent PING\nAwaiting Response..", 2);
-		// Wait for server response, if server responds correctly...
-		if (sc.nextLine().equals("CCSERVER")) {
-			// Log ping finish time
-			long pingTime = System.currentTimeMillis() - startTimeStamp;
-			// Inform Terminal that PING was successful
-			log.debug("Got CCSERVER response, ping is " + pingTime + "ms", 2);
-			// Close Socket and IO
-			s.close();
-			sc.close();
-			return pingTime;
-		}
-		// Cleanup
-		s.close();
-		sc.close();
-		// Return exit code, Ping failed
-		return -1;
+		if (candidates.length == 0)
+			return null;
+		if (candidates.length == 1)
+			return candidates[0];
+		Node a = candidates[random.nextInt(candidates.length)];
+		ArrayList<Node> warm = new ArrayList<Node>();
+		if (bundle != null)
+			for (Node n : candidates)
+				if (n != a && n.holds(bundle))
+					warm.add(n);
+		Node b;
+		if (!warm.isEmpty())
+			b = warm.get(random.nextInt(warm.size()));
+		else {
+			do
+				b = candidates[random.nextInt(candidates.length)];
+			while (b == a);
+		}
+		int c = Double.compare(cost(a, bundle), cost(b, bundle));
+		if (c == 0)
+			c = a.compareTo(b);
+		return c <= 0 ? a : b;
 	}
 
 	/**
-	 * Scan for Node on the LAN
-	 * 
-	 * @throws IOException
+	 * Expected cost of sending a process to a Node, its score discounted by
+	 * "classAffinity" percent if the Node already holds the process's ClassBundle.
+	 * Between Nodes of similar load, the one which skips the class transfer wins
 	 */
-	public void serviceScan() throws IOException {
-		log.log("Running service scan...");
+	private double cost(Node n, String bundle) {
+		double score = n.score();
+		if (bundle != null && n.holds(bundle))
+			score *= 1 - Math.min(100, classAffinity) / 100.0;
+		return score;
+	}
 
-		String ip = ipFormat;
-		// Scan all IP's from range 1-253
-		InetSocketAddress rollingAdd;
-		for (int i = ipScanRangeMin; i <= ipScanRangeMax; i++) {
-			final InetSocketAddress rolling = new InetSocketAddress(ip.replace("X", "" + i), port);
-			if (localAddresses.contains(rolling.getAddress().getHostAddress()))
+	/**
+	 * Nodes which are neither quarantined nor suspected of having failed. If every
+	 * Node that is not quarantined is suspected, all of those are returned, a
+	 * suspected Node is still better than none. Quarantined Nodes are never
+	 * returned
+	 */
+	private Node[] healthyNodes() {
+		Node[] all = nodes.toArray(new Node[0]);
+		ArrayList<Node> healthy = new ArrayList<Node>(all.length);
+		ArrayList<Node> available = new ArrayList<Node>(all.length);
+		for (Node n : all) {
+			if (n.isQuarantined())
 				continue;
-			Thread t = new Thread(new Runnable() {
-				public void run() {
-					try {
-						// Adjust IP to scan next device on network
-						if (rolling.getAddress().isReachable(handshakeTimeout)) {
-							log.log("Host up at " + rolling.toString() + ", checking for JSH");
-							if (ping(rolling.getAddress().getHostAddress()) != -1) {
-								// This is indeed a server, client server handshake is complete
-								addNode((Inet4Address) rolling.getAddress());
-							}
-						}
-					} catch (Exception e) {
-					}
-				}
-			});
-			t.start();
+			available.add(n);
+			if (!n.suspect)
+				healthy.add(n);
 		}
-		log.log("Found: " + nodes.size() + " nodes");
+		return (healthy.isEmpty() ? available : healthy).toArray(new Node[0]);
 	}
 
 	/**
-	 * Add a Node to use for Clustering
+	 * Queue many JProcesses at once. Processes are spread over the known Nodes and
+	 * pipelined to each of them over a single connection, without waiting for one
+	 * process to be acknowledged or completed before sending the next. This method
+	 * only blocks while too many processes are in flight to a Node. Processes
+	 * which cannot be delivered are retried on other Nodes, see Dispatch
 	 * 
-	 * @param ip IP of Node
-	 * @return True if the node was succesfully added, false otherwise
-	 * @throws UnknownHostException
-	 * @throws IOException
+	 * @param ps  JProcesses to be sent
+	 * @param out
+	 * @param in
+	 * @return One future per process, in order, completed with whether or not the
+	 *         process ran successfully. A future completes exceptionally if its
+	 *         process could not be delivered to any Node
 	 */
-	public boolean addNode(Inet4Address ip) throws UnknownHostException, IOException {
-		// Ping the server to check if it exists
-		long ping = ping(ip);
-		if (ping != -1) {
-			// Add the server as Node object
-			nodes.add(new Node(ip, ping));
-			return true;
+	public List<CompletableFuture<Boolean>> queueProcesses(Collection<? extends JProcess> ps, OutputStream out,
+			InputStream in) {
+		return queueProcesses(ps, ProcessPriority.MEDIUM, out, in);
+	}
+
+	/**
+	 * Queue many JProcesses at once, all with the given priority. See
+	 * queueProcesses(Collection, OutputStream, InputStream)
+	 * 
+	 * @param ps       JProcesses to be sent
+	 * @param priority Priority of the processes on the remote Nodes
+	 * @param out
+	 * @param in
+	 * @return One future per process, in order
+	 */
+	public List<CompletableFuture<Boolean>> queueProcesses(Collection<? extends JProcess> ps,
+			ProcessPriority priority, OutputStream out, InputStream in) {
+		ArrayList<CompletableFuture<Boolean>> results = new ArrayList<CompletableFuture<Boolean>>();
+		for (JProcess p : ps) {
+			CompletableFuture<Boolean> result;
+			try {
+				Node n = selectNode(null, bundleOf(p).getHash());
+				if (n == null)
+					throw new IOException("No Nodes available");
+				byte[] dat = serializeProcess(p, priority, out != null ? outputWindow : 0, n.metrics);
+				Dispatch d = new Dispatch(p, null, dat, out);
+				d.send(n);
+				result = d.done;
+			} catch (IOException e) {
+				result = new CompletableFuture<Boolean>();
+				result.completeExceptionally(e);
+			}
+			results.add(result);
 		}
-		return false;
+		return results;
 	}
 
 	/**
-	 * Check to see if a Node exists at a given IP
+	 * Submit a JProcess to be run on another Node, without waiting for it. See
+	 * submit(JProcess, ProcessPriority, OutputStream)
 	 * 
-	 * @param ip IP of node
-	 * @return True if a node is found, false otherwise
-	 * @throws UnknownHostException
-	 * @throws IOException
+	 * @param p JProcess to be sent
+	 * @return Future of the process's ReturnValue
 	 */
-	public boolean checkNodeAt(Inet4Address ip) throws UnknownHostException, IOException {
-		return (ping(ip) != -1);
+	public CompletableFuture<ReturnValue<?>> submit(JProcess p) {
+		return submit(p, ProcessPriority.MEDIUM, null);
 	}
 
 	/**
-	 * Complete handshake between a pair in order to sync the two
+	 * Submit a JProcess to be run on another Node, giving up after "timeout". The
+	 * process is cancelled on its Node once the timeout expires
 	 * 
-	 * @param sc  Scanner of the remote socket
-	 * @param out PrintStream of the remote socket
+	 * @param p        JProcess to be sent
+	 * @param priority Priority of the process on the remote Node
+	 * @param out      Stream to write the process's output to, or NULL
+	 * @param timeout  Time to wait for the process
+	 * @param unit     Unit of "timeout"
+	 * @return Future of the process's ReturnValue, completed exceptionally with a
+	 *         TimeoutException if the process takes too long
 	 */
-	private boolean completeHandshake(Scanner sc, PrintStream out) {
-		log.debug("Starting Handshake");
-		// Send query message to server
-		out.println("READY");
-		// Receive query response
-		String s = sc.nextLine();
-		log.debug("Handshake complete: " + s);
-		return true;
+	public CompletableFuture<ReturnValue<?>> submit(JProcess p, ProcessPriority priority, OutputStream out,
+			long timeout, TimeUnit unit) {
+		return submit(p, priority, out).orTimeout(timeout, unit);
 	}
 
 	/**
-	 * See all Active JProcesses from remote sources
+	 * Submit a JProcess to be run on another Node. The process is pipelined to the
+	 * Node chosen by selectNode(), and this method only blocks while too many
+	 * processes are in flight to that Node, so a single thread can keep thousands
+	 * of processes in flight.
+	 * <p>
+	 * The returned future completes with the ReturnValue of an ASYNCHRONOUS
+	 * process once it arrives, or with NULL for other processes once they
+	 * complete. It completes exceptionally with a RemoteProcessException if the
+	 * process failed, or an IOException if it could not be delivered to any Node.
+	 * A process whose Node is lost is re-dispatched to another Node, so it may
+	 * run more than once. A JProcess.Speculative process may also be dispatched a
+	 * second time while it runs, see Submitted. Cancelling the future, or letting
+	 * a timeout set with orTimeout() expire, cancels the process on its Node.
 	 * 
-	 * @return
+	 * @param p        JProcess to be sent
+	 * @param priority Priority of the process on the remote Node
+	 * @param out      Stream to write the process's output to, or NULL
+	 * @return Future of the process's ReturnValue
 	 */
-	public JProcess[] activeProcesses() {
-		JProcess[] procs = new JProcess[ls.processes.size()];
-		procs = ls.processes.toArray(procs);
-		return procs;
+	public CompletableFuture<ReturnValue<?>> submit(JProcess p, ProcessPriority priority, OutputStream out) {
+		return submit(p, (Node) null, priority, out);
 	}
 
 	/**
-	 * Check the number of available Nodes on the network
+	 * Submit a JProcess to be run on a chosen Node, such as a Node its
+	 * StagedAssets were staged on. The process is only ever retried on that Node.
+	 * See submit(JProcess, ProcessPriority, OutputStream)
 	 * 
-	 * @return Number of total Nodes on the network
+	 * @param p        JProcess to be sent
+	 * @param node     Node to run the process on
+	 * @param priority Priority of the process on the remote Node
+	 * @param out      Stream to write the process's output to, or NULL
+	 * @return Future of the process's ReturnValue
 	 */
-	public int numberOfNodes() {
-		return nodes.size();
+	public CompletableFuture<ReturnValue<?>> submit(JProcess p, NodeInfo node, ProcessPriority priority,
+			OutputStream out) {
+		return submit(p, node.n, priority, out);
 	}
 
-	public NodeInfo[] nodes() {
-		NodeInfo[] t = new NodeInfo[nodes.size()];
+	/**
+	 * @param pinned Node the process must run on, NULL to let selectNode() choose
+	 */
+	private CompletableFuture<ReturnValue<?>> submit(final JProcess p, Node pinned, ProcessPriority priority,
+			OutputStream out) {
+		final boolean async = p.getClass().isAnnotationPresent(JProcess.ReturnType.class)
+				&& p.getClass().getAnnotation(JProcess.ReturnType.class)
+						.getReturnType() == terra.shell.utils.system.ReturnType.ASYNCHRONOUS;
+		final byte[] dat;
+		final Dispatch d;
+		Node n;
+		try {
+			n = pinned != null ? pinned : selectNode(null, bundleOf(p).getHash());
+			if (n == null)
+				throw new IOException("No Nodes available");
+			dat = serializeProcess(p, priority, out != null ? outputWindow : 0, n.metrics);
+			d = new Dispatch(p, pinned, dat, out);
+		} catch (IOException e) {
+			CompletableFuture<ReturnValue<?>> failed = new CompletableFuture<ReturnValue<?>>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		// Creating the ReturnValue while serializing registers the process, which
+		// fixes the UUID its ReturnValue will carry
+		final Submitted s = new Submitted(p, p.getUUID(), async);
+		if (async && returns.putIfAbsent(s.key, s.result) != null) {
+			s.result.completeExceptionally(new IllegalStateException(p.getName() + " is already in flight"));
+			return s.result;
+		}
+		s.add(d);
+		d.send(n);
+		// A process pinned to its Node has nowhere else to run
+		JProcess.Speculative spec = p.getClass().getAnnotation(JProcess.Speculative.class);
+		if (spec != null && pinned == null) {
+			long delay = speculationDelay(p.getClass(), spec);
+			if (delay > 0) {
+				CompletableFuture.runAsync(new Runnable() {
+					public void run() {
+						s.speculate(dat);
+					}
+				}, CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS));
+			}
+		}
+		return s.result;
+	}
+
+	/**
+	 * Time after which a second copy of a Speculative process is dispatched: the
+	 * configured percentile of the run times recently observed for its class, or
+	 * the annotation's fixed delay until enough run times have been observed
+	 * 
+	 * @return Delay, in NS, or 0 to not speculate
+	 */
+	private long speculationDelay(Class<?> c, JProcess.Speculative spec) {
+		RunTimes times = runTimes.get(c);
+		long p = times == null ? -1 : times.percentile(spec.percentile());
+		return p >= 0 ? Math.max(1, p) : TimeUnit.MILLISECONDS.toNanos(spec.delay());
+	}
+
+	private RunTimes runTimesOf(Class<?> c) {
+		synchronized (runTimes) {
+			RunTimes times = runTimes.get(c);
+			if (times == null) {
+				times = new RunTimes();
+				runTimes.put(c, times);
+			}
+			return times;
+		}
+	}
+
+	/**
+	 * A process submitted with submit(), and its copies. A Speculative process
+	 * which runs for longer than its class usually does is dispatched a second
+	 * time, to another Node. The first copy to complete successfully wins, and the
+	 * other is cancelled. The future only fails once every copy has failed
+	 */
+	private class Submitted {
+		final CompletableFuture<ReturnValue<?>> result = new CompletableFuture<ReturnValue<?>>();
+		private final JProcess p;
+		private final UUID key;
+		private final boolean async;
+		private final Vector<Dispatch> copies = new Vector<Dispatch>();
+		private int finished;
+
+		Submitted(JProcess p, UUID key, boolean async) {
+			this.p = p;
+			this.key = key;
+			this.async = async;
+			result.whenComplete(new BiConsumer<ReturnValue<?>, Throwable>() {
+				public void accept(ReturnValue<?> rv, Throwable t) {
+					// Cancelled or timed out by the caller
+					if (t != null) {
+						returns.remove(Submitted.this.key, result);
+						cancelAll(null);
+					}
+				}
+			});
+		}
+
+		void add(final Dispatch d) {
+			copies.add(d);
+			d.done.whenComplete(new BiConsumer<Boolean, Throwable>() {
+				public void accept(Boolean ok, Throwable t) {
+					finished(d, ok, t);
+				}
+			});
+		}
+
+		private synchronized void finished(Dispatch d, Boolean ok, Throwable t) {
+			finished++;
+			if (t == null && ok) {
+				if (p.getClass().isAnnotationPresent(JProcess.Speculative.class))
+					runTimesOf(p.getClass()).record(System.nanoTime() - d.sentAt);
+				cancelAll(d);
+				// The ReturnValue of an ASYNCHRONOUS process is delivered before its DONE, so
+				// an entry still waiting here means the return was lost
+				if (returns.remove(key, result)) {
+					d.node.metrics.failed();
+					result.completeExceptionally(new RemoteProcessException(
+							p.getName() + " completed on " + d.getHost() + " without a return"));
+				} else
+					result.complete(null);
+			} else if (finished == copies.size()) {
+				// Every copy has failed, report the last failure
+				returns.remove(key, result);
+				if (t != null)
+					result.completeExceptionally(t);
+				else
+					result.completeExceptionally(new RemoteProcessException(p.getName() + " failed on " + d.getHost()));
+			}
+			if (finished == copies.size())
+				speculating.remove(key);
+		}
+
+		/**
+		 * Dispatch a second copy of the process, to a Node other than the first
+		 * copy's, unless the process has completed in the meantime
+		 * 
+		 * @param dat Serialized process
+		 */
+		synchronized void speculate(byte[] dat) {
+			if (result.isDone() || copies.size() > 1 || finished > 0)
+				return;
+			Dispatch first = copies.get(0);
+			ArrayList<Node> avoid = new ArrayList<Node>(first.tried);
+			Node n = selectNode(avoid, first.bundle.getHash());
+			if (n == null || avoid.contains(n))
+				return;
+			Dispatch backup;
+			try {
+				// The output of the backup is discarded, the caller's stream only receives
+				// the first copy's output
+				backup = new Dispatch(p, null, dat, first.out == null ? null : new OutputStream() {
+					public void write(int b) {
+					}
+
+					public void write(byte[] b, int off, int len) {
+					}
+				});
+			} catch (IOException e) {
+				return;
+			}
+			log.debug("Speculatively dispatching a second copy of " + p.getName() + " to " + n.ip.getHostAddress());
+			// Both copies carry the same UUID, the losing copy's ReturnValue is dropped
+			if (async)
+				speculating.put(key, Boolean.TRUE);
+			add(backup);
+			backup.send(n);
+		}
+
+		private void cancelAll(Dispatch except) {
+			for (Dispatch d : copies.toArray(new Dispatch[0]))
+				if (d != except && !d.done.isDone())
+					d.cancel();
+		}
+	}
+
+	/**
+	 * A process pipelined to a Node, which is re-dispatched when it cannot be
+	 * delivered. A process is retried after its pipeline failed or its Node
+	 * refused it, up to "retryLimit" times, on a Node it has not been tried on yet
+	 * where possible, and after a growing, randomized backoff so that the
+	 * processes of a failed Node do not all land on the next Node at once
+	 */
+	private class Dispatch {
+		/**
+		 * Completed with whether the process ran successfully on the Node it was
+		 * finally delivered to, exceptionally if it could not be delivered, or
+		 * cancelled. Every way a Dispatch ends completes it
+		 */
+		final CompletableFuture<Boolean> done = new CompletableFuture<Boolean>();
+		private final JProcess p;
+		private final ClassBundle bundle;
+		private final byte[] dat;
+		private final OutputStream out;
+		// Node the process must run on, NULL if any Node will do
+		private final Node pinned;
+		// Nodes the process was sent to, read by Submitted.speculate()
+		private final Vector<Node> tried = new Vector<Node>();
+		private int attempts;
+		// Attempt in progress, and the time it was sent in NS
+		private volatile Node node;
+		private volatile long sentAt;
+		private volatile ProcessPipeline pipe;
+		private volatile CompletableFuture<Boolean> attempt;
+		private volatile boolean cancelled;
+
+		/**
+		 * @param p      Process to dispatch
+		 * @param pinned Node the process must run on, or NULL
+		 * @param dat    Serialized process, see serializeProcess()
+		 * @param out    Stream to write the process's output to, or NULL
+		 * @throws IOException If the ClassBundle of the process cannot be built
+		 */
+		Dispatch(JProcess p, Node pinned, byte[] dat, OutputStream out) throws IOException {
+			this.p = p;
+			this.pinned = pinned;
+			this.bundle = bundleOf(p);
+			this.dat = dat;
+			this.out = out;
+		}
+
+		String getHost() {
+			return node.ip.getHostAddress();
+		}
+
+		/**
+		 * Make an attempt at delivering the process
+		 * 
+		 * @param n Node to deliver the process to
+		 */
+		void send(final Node n) {
+			if (cancelled) {
+				done.cancel(false);
+				return;
+			}
+			attempts++;
+			if (!tried.contains(n))
+				tried.add(n);
+			node = n;
+			try {
+				pipe = getPipeline(n.ip.getHostAddress());
+			} catch (IOException e) {
+				n.faulted();
+				retry(e);
+				return;
+			}
+			final long start = System.nanoTime();
+			sentAt = start;
+			n.dispatched();
+			try {
+				attempt = pipe.submit(bundle, dat, p.getClass().getClassLoader(), out);
+			} catch (IOException e) {
+				n.completed(false);
+				n.faulted();
+				retry(e);
+				return;
+			}
+			attempt.whenComplete(new BiConsumer<Boolean, Throwable>() {
+				public void accept(Boolean ok, Throwable t) {
+					if (t == null) {
+						n.metrics.returned(System.nanoTime() - start);
+						n.delivered();
+						n.holding(bundle.getHash());
+						n.completed(ok);
+						done.complete(ok);
+						return;
+					}
+					n.completed(false);
+					// A busy Node is not at fault
+					if (!(t instanceof ProcessPipeline.RefusedException))
+						n.faulted();
+					retry(t);
+				}
+			});
+		}
+
+		private void retry(Throwable cause) {
+			if (done.isDone())
+				return;
+			// The attempt ended after the process was cancelled, such as by losing its
+			// connection before the CANCEL arrived
+			if (cancelled) {
+				done.cancel(false);
+				return;
+			}
+			if (attempts > retryLimit) {
+				done.completeExceptionally(new IOException(
+						"Unable to deliver " + p.getName() + " after " + attempts + " attempts: " + cause,
+						cause));
+				return;
+			}
+			long delay = backoff(attempts);
+			log.debug("Re-dispatching " + p.getName() + " in " + delay + "ms: " + cause);
+			CompletableFuture.runAsync(new Runnable() {
+				public void run() {
+					Node n = pinned != null ? pinned : selectNode(tried, bundle.getHash());
+					if (n == null)
+						done.completeExceptionally(
+								new IOException("No Nodes available to re-dispatch " + p.getName(), cause));
+					else
+						send(n);
+				}
+			}, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS));
+		}
+
+		/**
+		 * Cancel the process on its Node, and stop re-dispatching it
+		 */
+		void cancel() {
+			cancelled = true;
+			CompletableFuture<Boolean> a = attempt;
+			if (a != null && !a.isDone())
+				pipe.cancel(a);
+			else
+				done.cancel(false);
+		}
+	}
+
+	/**
+	 * Stage an object on remote Nodes ahead of the processes which use it, see
+	 * stage(String, byte[], NodeInfo...). Processes read the object with
+	 * StagedAsset.get()
+	 * 
+	 * @param name    Name of the asset
+	 * @param obj     Object to stage
+	 * @param targets Nodes to stage the asset on, every healthy Node if none are
+	 *                given
+	 * @return Future of the reference to the staged asset
+	 * @throws IOException If the object could not be serialized
+	 */
+	public CompletableFuture<StagedAsset> stage(String name, Serializable obj, NodeInfo... targets)
+			throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bout);
+		out.writeObject(obj);
+		out.close();
+		return stage(name, bout.toByteArray(), targets);
+	}
+
+	/**
+	 * Stage a block of data on remote Nodes ahead of the processes which use it.
+	 * The data is sent in the background, and every staging of the same name is a
+	 * new version, which replaces the previous version on the Nodes. Processes
+	 * hold the returned StagedAsset instead of the data, and must be submitted to
+	 * a Node the asset was staged on.
+	 * 
+	 * @param name    Name of the asset
+	 * @param data    Content of the asset
+	 * @param targets Nodes to stage the asset on, every healthy Node if none are
+	 *                given
+	 * @return Future of the reference to the staged asset, completed once every
+	 *         Node has stored it, or exceptionally with an IOException if any of
+	 *         them did not. Data larger than "maxFrameSize" is refused, and must
+	 *         be staged from a file instead
+	 */
+	public CompletableFuture<StagedAsset> stage(String name, byte[] data, NodeInfo... targets) {
+		return stage(name, data, null, targets);
+	}
+
+	/**
+	 * Stage a file on remote Nodes ahead of the processes which use it, see
+	 * stage(String, byte[], NodeInfo...). The file is sent straight from disk to
+	 * the socket, and received into a file, so that even files larger than the
+	 * heap can be staged. Processes access it with StagedAsset.file() or map()
+	 * 
+	 * @param name    Name of the asset
+	 * @param file    File to stage, which must not change until staged
+	 * @param targets Nodes to stage the asset on, every healthy Node if none are
+	 *                given
+	 * @return Future of the reference to the staged asset
+	 */
+	public CompletableFuture<StagedAsset> stage(String name, File file, NodeInfo... targets) {
+		return stage(name, null, file, targets);
+	}
+
+	private CompletableFuture<StagedAsset> stage(final String name, byte[] data, final File file,
+			NodeInfo[] targets) {
+		Node[] to;
+		if (targets.length == 0)
+			to = healthyNodes();
+		else {
+			to = new Node[targets.length];
+			for (int i = 0; i < targets.length; i++)
+				to[i] = targets[i].n;
+		}
+		long version;
+		synchronized (assetVersions) {
+			Long last = assetVersions.get(name);
+			version = last == null ? 1 : last + 1;
+			assetVersions.put(name, version);
+		}
+		final String[] hosts = new String[to.length];
+		for (int i = 0; i < to.length; i++)
+			hosts[i] = to[i].ip.getHostAddress();
+		final StagedAsset asset = new StagedAsset(stagingPrefix + name, name, version, hosts);
+		if (to.length == 0) {
+			CompletableFuture<StagedAsset> none = new CompletableFuture<StagedAsset>();
+			none.completeExceptionally(new IOException("No Nodes available"));
+			return none;
+		}
+		if (data != null && data.length > maxPayload - 1024) {
+			CompletableFuture<StagedAsset> large = new CompletableFuture<StagedAsset>();
+			large.completeExceptionally(new IOException(name + " is larger than maxFrameSize, stage it from a file"));
+			return large;
+		}
+		final Frame request;
+		try {
+			Frame.Builder b = new Frame.Builder();
+			b.out().writeUTF(asset.getKey());
+			b.out().writeLong(version);
+			b.out().writeBoolean(file != null);
+			if (file == null)
+				b.out().write(data);
+			request = b.build(FrameType.STAGE);
+		} catch (IOException e) {
+			// Writing to memory does not fail
+			throw new IllegalStateException(e);
+		}
+		CompletableFuture<?>[] sent = new CompletableFuture<?>[hosts.length];
+		for (int i = 0; i < hosts.length; i++) {
+			final String host = hosts[i];
+			sent[i] = CompletableFuture.runAsync(new Runnable() {
+				public void run() {
+					String reply;
+					try {
+						reply = getPool(host).execute(new NodeConnectionPool.Exchange<String>() {
+							public String run(NodeConnection c) throws IOException {
+								if (file != null) {
+									FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+									try {
+										c.sendFile(ch, ch.size());
+									} finally {
+										ch.close();
+									}
+								}
+								c.send(request);
+								return c.read().expect(FrameType.STATUS).getString();
+							}
+						});
+					} catch (IOException e) {
+						throw new CompletionException(e);
+					}
+					if (!reply.equals("STAGED"))
+						throw new CompletionException(
+								new IOException("Unable to stage " + asset + " on " + host + ": " + reply));
+					log.debug("Staged " + asset + " on " + host);
+				}
+			}, staging);
+		}
+		return CompletableFuture.allOf(sent).thenApply(new Function<Void, StagedAsset>() {
+			public StagedAsset apply(Void v) {
+				return asset;
+			}
+		});
+	}
+
+	/**
+	 * Drop a staged asset from the Nodes it was staged on, freeing their memory
+	 * 
+	 * @param asset Asset returned by stage()
+	 * @return Future completed once every Node has dropped the asset
+	 */
+	public CompletableFuture<Void> unstage(final StagedAsset asset) {
+		String[] hosts = asset.getHosts();
+		CompletableFuture<?>[] dropped = new CompletableFuture<?>[hosts.length];
+		for (int i = 0; i < hosts.length; i++) {
+			final String host = hosts[i];
+			dropped[i] = CompletableFuture.runAsync(new Runnable() {
+				public void run() {
+					try {
+						getPool(host).execute(new NodeConnectionPool.Exchange<String>() {
+							public String run(NodeConnection c) throws IOException {
+								c.send(Frame.ofString(FrameType.UNSTAGE, asset.getKey()));
+								return c.read().expect(FrameType.STATUS).getString();
+							}
+						});
+					} catch (IOException e) {
+						throw new CompletionException(e);
+					}
+				}
+			}, staging);
+		}
+		return CompletableFuture.allOf(dropped);
+	}
+
+	/**
+	 * Get the ClassBundle of a JProcess, reading and hashing the bytecode of its
+	 * class and dependencies only the first time
+	 * 
+	 * @param p JProcess
+	 * @return Bundle of the process's class and its dependencies
+	 * @throws IOException If the bytecode of a class cannot be found
+	 */
+	private ClassBundle bundleOf(JProcess p) throws IOException {
+		Class<?>[] deps = p.getDependencies();
+		ArrayList<Class<?>> key = new ArrayList<Class<?>>(deps.length + 1);
+		key.addAll(Arrays.asList(deps));
+		key.add(p.getClass());
+		ClassBundle bundle = bundlesByClass.get(key);
+		if (bundle == null) {
+			// Get classes actual bytes in order to reinitialize correctly on host
+			log.debug("Quantizing " + p.getClass().getName());
+			bundle = ClassBundle.of(p.getClass(), deps);
+			bundlesByClass.put(key, bundle);
+		}
+		return bundle;
+	}
+
+	/**
+	 * Serialize a JProcess, preceded by its priority and output window
+	 * 
+	 * @param p        JProcess to serialize
+	 * @param priority Priority of the process on the remote Node
+	 * @param window   Bytes of output the remote Node may stream back before
+	 *                 waiting for credit, 0 if the output is not wanted
+	 * @param m        Metrics of the Node the process is sent to
+	 * @return Priority, output window and serialized process
+	 * @throws IOException
+	 */
+	private byte[] serializeProcess(JProcess p, ProcessPriority priority, int window, NodeMetrics m)
+			throws IOException {
+		long start = System.nanoTime();
+		p.createReturn();
+		p.prepSerialization();
+		log.debug("Serializing Process: " + p.getClass().toString());
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(bout);
+		header.writeInt(priority.asInt());
+		header.writeInt(window);
+		ProcessSerializers.write(serializerId, p, bout);
+		m.serialized(System.nanoTime() - start);
+		return bout.toByteArray();
+	}
+
+	/**
+	 * Send a JProcess to all known Nodes, ignoring the sorting algorithm
+	 * 
+	 * @param p   JProcess to be sent
+	 * @param out
+	 * @param in
+	 * @return True if process is sent successfully to all nodes, otherwise false.
+	 *         Can be false if only one out 'n' Nodes fails
+	 */
+	public boolean sendToAll(final JProcess p, final OutputStream out, final InputStream in) {
+		for (final Node n : nodes) {
+			JProcess pr = new JProcess() {
+
+				@Override
+				public String getName() {
+					return "SendProc";
+				}
+
+				@Override
+				public boolean start() {
+					boolean success = false;
+					n.dispatched();
+					try {
+						success = ls.sendProcess(n, p, ProcessPriority.MEDIUM, out, in);
+					} catch (Exception e) {
+						e.printStackTrace();
+						return false;
+					} finally {
+						n.completed(success);
+					}
+					return true;
+				}
+			};
+			pr.run();
+		}
+		return true;
+	}
+
+	/**
+	 * Ping Node at "ip"
+	 * 
+	 * @param ip IP to ping
+	 * @return Latency, in MS
+	 * @throws UnknownHostException
+	 * @throws IOException
+	 */
+	public long ping(Inet4Address ip) throws UnknownHostException, IOException {
+		return ping(ip.getHostAddress());
+	}
+
+	/**
+	 * Ping node at "ip"
+	 * 
+	 * @param ip
+	 * 
+	 * @return Latency, in MS
+	 * @throws UnknownHostException
+	 * @throws IOException
+	 */
+	public long ping(String ip) throws UnknownHostException, IOException {
+		// Check for valid IP
+		if (ip == null)
+			return -1;
+		return probe(ip).latency / 1000000L;
+	}
+
+	/**
+	 * Ping the Node at "ip", and receive the load it reports along with its PONG
+	 * 
+	 * @param ip IP to ping
+	 * @return Latency and load of the Node
+	 * @throws IOException If the Node could not be reached, or did not respond with
+	 *                     a PONG
+	 */
+	private Probe probe(String ip) throws IOException {
+		return probe(ip, 0);
+	}
+
+	/**
+	 * Ping the Node at "ip", giving up if it does not answer within "timeout"
+	 * 
+	 * @param ip      IP to ping
+	 * @param timeout Time to wait for the PONG, in MS. 0 waits indefinitely
+	 * @return Latency and load of the Node
+	 * @throws IOException If the Node could not be reached, or did not respond with
+	 *                     a PONG in time
+	 */
+	private Probe probe(String ip, final int timeout) throws IOException {
+		log.debug("Sending PING request", 2);
+		// Reuse a pooled connection to the Node host, connecting if none is idle
+		return getPool(ip).execute(new NodeConnectionPool.Exchange<Probe>() {
+			public Probe run(NodeConnection c) throws IOException {
+				c.getSocket().setSoTimeout(timeout);
+				try {
+					return ping(c);
+				} finally {
+					if (timeout != 0 && c.isOpen())
+						c.getSocket().setSoTimeout(0);
+				}
+			}
+
+			private Probe ping(NodeConnection c) throws IOException {
+				log.debug("Pinging: " + c.getSocket().getInetAddress().getHostAddress());
+				// Log start time of ping
+				long startTimeStamp = System.nanoTime();
+				// Send PING query
+				c.send(new Frame(FrameType.PING));
+				log.debug("Sent PING\nAwaiting Response..", 2);
+				// Wait for server response, if server responds correctly...
+				Frame pong = c.read().expect(FrameType.PONG);
+				// Log ping finish time
+				long pingTime = System.nanoTime() - startTimeStamp;
+				// Inform Terminal that PING was successful
+				log.debug("Got PONG response, ping is " + (pingTime / 1000000L) + "ms", 2);
+				return new Probe(pingTime, NodeLoad.read(pong.payloadIn()));
+			}
+		});
+	}
+
+	/**
+	 * Scan for Nodes on the LAN, in the configured address range. At most
+	 * scanConcurrency addresses are probed at once, each with a single connection
+	 * attempt bounded by handshakeTimeout
+	 * 
+	 * @return Future completed with the number of Nodes found once every address
+	 *         has been probed
+	 */
+	public CompletableFuture<Integer> serviceScan() {
+		log.log("Running service scan...");
+		final AtomicInteger found = new AtomicInteger();
+		ArrayList<CompletableFuture<Void>> probes = new ArrayList<CompletableFuture<Void>>();
+		// Scan all IP's from range 1-253
+		for (int i = ipScanRangeMin; i <= ipScanRangeMax; i++) {
+			final String host = ipFormat.replace("X", "" + i);
+			if (localAddresses.contains(host) || hasNode(host))
+				continue;
+			probes.add(CompletableFuture.runAsync(new Runnable() {
+				public void run() {
+					try {
+						// Connecting and handshaking is the check, no ICMP echo is needed first
+						if (addNode((Inet4Address) InetAddress.getByName(host)))
+							found.incrementAndGet();
+					} catch (Exception e) {
+					}
+				}
+			}, discovery));
+		}
+		return CompletableFuture.allOf(probes.toArray(new CompletableFuture<?>[0]))
+				.thenApply(new Function<Void, Integer>() {
+					public Integer apply(Void v) {
+						log.log("Found: " + found.get() + " nodes");
+						return found.get();
+					}
+				});
+	}
+
+	/**
+	 * Called by the beacon for every Node it hears
+	 * 
+	 * @param address Address of the Node
+	 * @return False if the address is one of this Node's own
+	 */
+	private boolean beaconHeard(InetAddress address) {
+		final String host = address.getHostAddress();
+		if (localAddresses.contains(host) || !(address instanceof Inet4Address))
+			return false;
+		if (!hasNode(host)) {
+			final Inet4Address ip = (Inet4Address) address;
+			discovery.execute(new Runnable() {
+				public void run() {
+					try {
+						if (addNode(ip))
+							log.log("Discovered Node at " + host);
+					} catch (IOException e) {
+						log.debug("Beacon from " + host + ", but no JSH found: " + e.getMessage());
+					}
+				}
+			});
+		}
+		return true;
+	}
+
+	/**
+	 * Add a Node to use for Clustering
+	 * 
+	 * @param ip IP of Node
+	 * @return True if the node was newly added, false if it was already known
+	 * @throws UnknownHostException
+	 * @throws IOException          If no Node could be reached at this IP
+	 */
+	public boolean addNode(Inet4Address ip) throws UnknownHostException, IOException {
+		if (hasNode(ip.getHostAddress()))
+			return false;
+		// Ping the server to check if it exists, this also fails with an IOException
+		Probe probe = probe(ip.getHostAddress());
+		// Add the server as Node object
+		synchronized (nodes) {
+			if (hasNode(ip.getHostAddress()))
+				return false;
+			nodes.add(new Node(ip, probe));
+		}
+		return true;
+	}
+
+	/**
+	 * Check to see if a Node exists at a given IP
+	 * 
+	 * @param ip IP of node
+	 * @return True if a node is found, false otherwise
+	 * @throws UnknownHostException
+	 * @throws IOException
+	 */
+	public boolean checkNodeAt(Inet4Address ip) throws UnknownHostException, IOException {
+		return (ping(ip) != -1);
+	}
+
+	/**
+	 * Complete handshake between a pair in order to sync the two. Both sides send
+	 * a READY line carrying the binary protocol version, everything after the
+	 * handshake is sent as Frames. A peer which answers with a bare READY line
+	 * still speaks the old line-based protocol and is refused.
+	 * 
+	 * @param in   DataInputStream of the remote socket
+	 * @param out  DataOutputStream of the remote socket
+	 * @param peer Address of the remote Node
+	 * @return Compressor for the Frames sent to the peer, or NULL if the two sides
+	 *         do not speak the same binary protocol version
+	 * @throws IOException
+	 */
+	private FrameCompressor completeHandshake(DataInputStream in, DataOutputStream out, InetAddress peer)
+			throws IOException {
+		log.debug("Starting Handshake");
+		// Send query message to server
+		out.write((handshakeLine() + "\n").getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+		// Receive query response
+		return checkHandshake(readHandshakeLine(in), peer);
+	}
+
+	/**
+	 * The handshake line this Node sends, announcing its protocol version and the
+	 * compression codecs it accepts, as in READY:BIN:6:LZ,DEFLATE
+	 * 
+	 * @return Handshake line, without line terminator
+	 */
+	private String handshakeLine() {
+		StringBuilder line = new StringBuilder(HANDSHAKE_PREFIX).append(Frame.PROTOCOL_VERSION).append(':');
+		for (int i = 0; i < codecs.length; i++)
+			line.append(i == 0 ? "" : ",").append(codecs[i].name());
+		return line.toString();
+	}
+
+	/**
+	 * Check the handshake line received from a peer, and negotiate compression.
+	 * Frames are only compressed with codecs both sides have enabled, preferring
+	 * the codecs listed first in this Node's configuration
+	 * 
+	 * @param s    Handshake line, without line terminator
+	 * @param peer Address of the peer
+	 * @return Compressor for the Frames sent to the peer, or NULL if the peer does
+	 *         not speak the same binary protocol version
+	 */
+	private FrameCompressor checkHandshake(String s, InetAddress peer) {
+		log.debug("Handshake complete: " + s);
+		if (s.equals("READY")) {
+			log.err("Peer speaks the legacy line protocol, refusing connection");
+			return null;
+		}
+		if (!s.startsWith(HANDSHAKE_PREFIX)) {
+			log.err("Invalid handshake from peer: " + s);
+			return null;
+		}
+		String[] parts = s.substring(HANDSHAKE_PREFIX.length()).split(":", 2);
+		int version;
+		try {
+			version = Integer.parseInt(parts[0]);
+		} catch (NumberFormatException e) {
+			log.err("Invalid protocol version from peer: " + s);
+			return null;
+		}
+		if (version != Frame.PROTOCOL_VERSION) {
+			log.err("Peer speaks protocol version " + version + ", expected " + Frame.PROTOCOL_VERSION);
+			return null;
+		}
+		List<Codec> accepted = Arrays.asList(parseCodecs(parts.length > 1 ? parts[1] : ""));
+		ArrayList<Codec> common = new ArrayList<Codec>();
+		for (Codec c : codecs)
+			if (accepted.contains(c))
+				common.add(c);
+		return new FrameCompressor(common.toArray(new Codec[0]), getLink(peer.getHostAddress()),
+				compressionThreshold);
+	}
+
+	/**
+	 * Read the handshake line without buffering past it, as everything following
+	 * the line belongs to the binary protocol
+	 * 
+	 * @param in Stream to read the line from
+	 * @return The line, without its line terminator
+	 * @throws IOException
+	 */
+	private String readHandshakeLine(DataInputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b == -1)
+				throw new IOException("Connection closed during handshake");
+			if (line.length() >= MAX_HANDSHAKE_LENGTH)
+				throw new IOException("Handshake line too long");
+			if (b != '\r')
+				line.append((char) b);
+		}
+		return line.toString();
+	}
+
+	/**
+	 * See all Active JProcesses from remote sources
+	 * 
+	 * @return
+	 */
+	public JProcess[] activeProcesses() {
+		JProcess[] procs = new JProcess[ls.processes.size()];
+		procs = ls.processes.toArray(procs);
+		return procs;
+	}
+
+	/**
+	 * Check the number of available Nodes on the network
+	 * 
+	 * @return Number of total Nodes on the network
+	 */
+	public int numberOfNodes() {
+		return nodes.size();
+	}
+
+	public NodeInfo[] nodes() {
+		NodeInfo[] t = new NodeInfo[nodes.size()];
 		Node[] n = new Node[t.length];
 		n = nodes.toArray(n);
 		for (int i = 0; i < n.length; i++)
@@ -419,41 +1840,46 @@ public final class ConnectionManager {
 	}
 
 	/**
-	 * Check to see if the available Nodes are still alive on the cluster
+	 * Heartbeat the known Nodes, and judge which of them have failed. A Node whose
+	 * pipeline has received anything since the last heartbeat is not pinged, the
+	 * traffic itself counts as a heartbeat. Nodes which have been silent for
+	 * unusually long are suspected, and no longer chosen for new processes. Nodes
+	 * which stay silent are removed
 	 */
 	private void checkNodesAlive() {
-		final Iterator<Node> nit = nodes.iterator();
-		while (nit.hasNext()) {
-			final Node n = nit.next();
-			new Thread(new Runnable() {
+		long now = System.currentTimeMillis();
+		for (final Node n : nodes.toArray(new Node[0])) {
+			ProcessPipeline pipe = pipelines.get(n.ip.getHostAddress());
+			if (pipe != null)
+				n.detector.heartbeat(pipe.lastHeard());
+			double phi = n.detector.phi(now);
+			if (phi >= evictPhi) {
+				log.log("Node " + n.ip.getHostAddress() + " failed, phi " + (int) phi + ", removing");
+				removeNode(n);
+				continue;
+			}
+			n.setSuspect(phi >= suspectPhi);
+			// Only one heartbeat in flight per Node, a Node which does not answer is
+			// judged by the growing silence rather than by piling up pings
+			if (now - n.detector.lastHeartbeat() < heartbeatInterval || !n.beating.compareAndSet(false, true))
+				continue;
+			discovery.execute(new Runnable() {
 
 				@Override
 				public void run() {
 					try {
-						// Check if the Node is reachable
-						if (!n.getIPv4().isReachable(200)) {
-							nodes.remove(n);
-							return;
-						}
-						// If the Node is reachable, and it has been 5 minutes or more since the last
-						// ping, update the ping
-						if ((System.currentTimeMillis() - n.lastPinged) >= (300000)) {
-							long ping = ping(n.getIPv4());
-							if (ping == -1) {
-								nodes.remove(n);
-							} else {
-								n.lastPinged = System.currentTimeMillis();
-								n.ping = ping;
-							}
-						}
+						// Ping the Node over its pooled connection, this is cheaper than opening a new
+						// connection, or an ICMP echo. The PONG also refreshes the Node's load
+						n.updatePing(Math.max(heartbeatInterval * 2, handshakeTimeout));
 					} catch (IOException e) {
-						nodes.remove(n);
+						log.debug("Heartbeat to " + n.ip.getHostAddress() + " failed: " + e.getMessage());
+					} finally {
+						n.beating.set(false);
 					}
 				}
 
-			}).start();
+			});
 		}
-
 	}
 
 	/**
@@ -464,9 +1890,15 @@ public final class ConnectionManager {
 	 */
 	private class LocalServer extends JProcess {
 		private static final long serialVersionUID = 1414706641471181855L;
-		private final ServerSocket ss = createServer();
+		private final ServerSocketChannel ssc = createServer();
+		private transient Selector selector;
+		private transient ExecutorService workers;
 		private int connections = 0;
-		private ArrayList<JProcess> processes = new ArrayList<JProcess>();
+		private Vector<JProcess> processes = new Vector<JProcess>();
+		// Outputs of running processes which stream back to their origin
+		private Vector<RemoteOutput> outputs = new Vector<RemoteOutput>();
+		// Runs processes received from other Nodes, in order of their priority
+		private transient ProcessScheduler scheduler;
 
 		public LocalServer() {
 			try {
@@ -482,27 +1914,75 @@ public final class ConnectionManager {
 
 		public void startServer() throws IOException {
 			log.log("Starting Local Server");
+			selector = Selector.open();
+			ssc.register(selector, SelectionKey.OP_ACCEPT);
+			// Requests are served by a bounded pool, passive processes are capped by
+			// passiveProcessLimit, leaving the remaining workers for pings and staging
+			workers = Executors.newFixedThreadPool(Math.max(2, activeProcessLimit + passiveProcessLimit),
+					new ThreadFactory() {
+						private int count = 0;
+
+						public synchronized Thread newThread(Runnable r) {
+							Thread t = new Thread(r);
+							t.setName("ClusterWorker-" + (count++));
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			scheduler = new ProcessScheduler(activeProcessLimit, priorityAgingInterval * 1000L, new ThreadFactory() {
+				private int count = 0;
+
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r);
+					t.setName("ClusterProcess-" + (count++));
+					t.setDaemon(true);
+					return t;
+				}
+			});
 			Thread t = new Thread(new Runnable() {
 				public void run() {
-					while (!ss.isClosed()) {
+					// Accepts, reads and writes never block, so one slow client cannot stall the
+					// others
+					// Direct, so that file content read off a socket is written to its file
+					// without a copy on the heap
+					ByteBuffer scratch = ByteBuffer.allocateDirect(64 * 1024);
+					while (ssc.isOpen()) {
 						try {
-
-							final Socket s = ss.accept();
-							Thread t = new Thread(new Runnable() {
-								public void run() {
-									try {
-										handleClient(s);
-									} catch (IOException e) {
-										e.printStackTrace();
-									}
-								}
-							});
-							t.setName(s.toString());
-							t.start();
+							selector.select();
 						} catch (IOException e) {
 							e.printStackTrace();
+							return;
+						}
+						Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+						while (keys.hasNext()) {
+							SelectionKey key = keys.next();
+							keys.remove();
+							if (!key.isValid())
+								continue;
+							if (key.isAcceptable()) {
+								acceptClient();
+								continue;
+							}
+							ServerConnection conn = (ServerConnection) key.attachment();
+							try {
+								if (key.isWritable())
+									conn.flush();
+								if (key.isValid() && key.isReadable())
+									readClient(conn, scratch);
+							} catch (IOException e) {
+								log.debug("Closing connection from " + conn.getRemoteAddress() + ": " + e.getMessage());
+								conn.close();
+							}
 						}
 					}
+					// Stopped, close the connections still open
+					for (SelectionKey key : selector.keys())
+						if (key.attachment() instanceof ServerConnection)
+							((ServerConnection) key.attachment()).close();
+					try {
+						selector.close();
+					} catch (IOException e) {
+					}
 				}
 			});
 
@@ -510,565 +1990,608 @@ public final class ConnectionManager {
 			t.start();
 		}
 
-		private ServerSocket createServer() {
+		/**
+		 * Stop accepting and serving connections, processes waiting to run are dropped
+		 */
+		public void stopServer() {
+			if (ssc == null)
+				return;
+			try {
+				ssc.close();
+			} catch (IOException e) {
+			}
+			if (selector != null)
+				selector.wakeup();
+			if (workers != null)
+				workers.shutdownNow();
+			if (scheduler != null)
+				scheduler.shutdown();
+		}
+
+		private ServerSocketChannel createServer() {
 			try {
-				return new ServerSocket(port);
+				ServerSocketChannel ssc = ServerSocketChannel.open();
+				ssc.bind(new InetSocketAddress(bind, port));
+				ssc.configureBlocking(false);
+				return ssc;
 			} catch (IOException e) {
 				return null;
 			}
 		}
 
 		// CODEAT Client Handling
-		private void handleClient(final Socket s) throws IOException {
+		private void acceptClient() {
+			SocketChannel ch;
+			try {
+				ch = ssc.accept();
+				if (ch == null)
+					return;
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+			try {
+				ServerConnection conn = new ServerConnection(ch, selector, transfers, maxPayload);
+				log.debug("Got connection from " + conn.getRemoteAddress());
+				conn.register();
+				// Both sides send their handshake line straight away
+				conn.sendLine(handshakeLine());
+			} catch (IOException e) {
+				e.printStackTrace();
+				try {
+					ch.close();
+				} catch (IOException e1) {
+				}
+			}
+		}
 
-			log.debug("Got connection from " + s.getInetAddress());
+		private void readClient(final ServerConnection conn, ByteBuffer scratch) throws IOException {
+			String handshake = conn.readAvailable(scratch);
+			if (handshake != null) {
+				FrameCompressor compressor = checkHandshake(handshake, conn.getRemoteAddress());
+				if (compressor == null) {
+					conn.close();
+					return;
+				}
+				conn.setCompressor(compressor);
+				conn.setMetrics(metricsOf(conn.getRemoteAddress().getHostAddress()));
+			}
+			if (conn.claim()) {
+				workers.execute(new Runnable() {
+					public void run() {
+						serve(conn);
+					}
+				});
+			}
+		}
 
-			final Scanner sc = new Scanner(s.getInputStream());
-			final PrintStream out = new PrintStream(s.getOutputStream());
+		/**
+		 * Serve the requests of a connection until its inbox is drained, runs on a
+		 * worker thread
+		 */
+		private void serve(ServerConnection conn) {
 			// Client handling
 			// - Ping
 			// - Passive Cluster
 			// - Active Cluster
-			completeHandshake(sc, out);
-
-			String in = sc.nextLine();
-			// Check if PING is sent
-			if (in.equals("PING")) {
-				log.debug("Got PING request", 2);
-				out.println("CCSERVER");
-				log.debug("Sending CCSERVER", 3);
-				sc.close();
-				out.close();
-				s.close();
-				return;
-			} else {
-				// Check connection limit, if exceeded refuse connection
-				if (connections >= connectionLimit) {
-					log.debug("Too Many connections, refusing");
-					s.close();
-					sc.close();
-					return;
-				}
-				if (in.equals("PASSIVE")) {
-					// Passive connection handshake completed, process passive data transference
-					// accordingly
-					// - Receive serialized data
-					// - De-serialize
-					// - Execute
-					// - Return
-					log.debug("Passive connection received");
-
-					log.debug("Getting data socket from remote...");
-
-					String portString = sc.nextLine();
-					int port = Integer.parseInt(portString);
-					SocketChannel sockCh = SocketChannel.open(new InetSocketAddress(s.getInetAddress(), port));
-
-					if (connections >= passiveProcessLimit) {
-						out.println("OVER_LIMIT");
-						out.flush();
-						out.close();
-						sc.close();
-						s.close();
-						return;
-					}
-					connections++;
-					out.println("RECEIVEDAT");
-					log.debug("Receiving CheckSum...");
-					Long chkSum = sc.nextLong();
-					log.debug("GOT: " + chkSum);
-					sc.nextLine();
-					if (loadersByUUID.containsKey(chkSum)) {
-						out.println("EXISTS");
-						loader = loadersByUUID.get(chkSum);
-					} else {
-						out.println("NONEXIST");
-						loader = new JSHClassLoader(new URL[] { new URL("file:///modules") });
-						loadersByUUID.put(chkSum, loader);
-						log.debug("Realizing Quantized class...");
-						// Load class from bytes
-						// Save 'c' for a bit so GC doesn't remove the class from mem
-						// DONE Add reception for dependency classes (Untested)
-						int numDeps = Integer.parseInt(sc.nextLine());
-						log.debug("Receiving Dependencies...");
-						Class<?>[] classDeps = new Class<?>[numDeps];
-						log.debug("Says there are " + numDeps + " dependencies"); // DONE sendProcess and reception not
-																					// lining up
-						for (int i = 0; i < numDeps; i++) {
-							classDeps[i] = receiveClass(out, s.getInputStream(), sc, sockCh);
-						}
-						final Class<?> c = receiveClass(out, s.getInputStream(), sc, sockCh); // CODEAT Receive
-																								// Main class
-						// object
-						// for JProcess
-						try {
-							JProcess p = (JProcess) c.newInstance(); // DONE Class not being realized properly, need
-																		// deps
-						} catch (Exception e) {
-							e.printStackTrace();
-							out.println("FAIL:" + e.getMessage());
-						}
-						log.debug("Realized " + c.getName());
-					}
-					// Receive size of serialized process
-					int size = sc.nextInt();
-					// Receive process priority of process
-					// FIXME Implement prioritizing
-					int priority = sc.nextInt();
-					// Allocate space for, and read in serialized process
-					log.debug("Got process of size " + size + " and priority " + priority);
-					byte[] ser = new byte[size];
-					for (int i = 0; i < size; i++) {
-						ser[i] = (byte) sc.nextInt();
-					}
-					log.debug("Done receiving process");
-					// De-serialize and instantiate process
-					JProcessRealizer objIn;
+			Frame request;
+			// Requests may arrive after the inbox was found empty, in which case the
+			// connection is claimed again and drained once more
+			do {
+				while ((request = conn.nextRequest()) != null) {
 					try {
-						objIn = new JProcessRealizer(new ByteArrayInputStream(ser));
-						objIn.setClassLoader(loader);
-					} catch (IllegalArgumentException | SecurityException e) {
-						e.printStackTrace();
-						objIn = new JProcessRealizer(new ByteArrayInputStream(ser));
-					}
-					JProcess processObj;
-					log.debug("Converting to Object");
-					try {
-						processObj = (JProcess) objIn.readObject();
-					} catch (ClassNotFoundException e) {
-						// If de-serialization fails, throw error to client, cleanup
-						e.printStackTrace();
-						out.println("FAIL:" + e.getMessage());
-						s.close();
-						objIn.close();
-						ser = null;
-						connections--;
+						if (!handleRequest(conn, request)) {
+							conn.close();
+							return;
+						}
+					} catch (IOException e) {
+						log.debug("Closing connection from " + conn.getRemoteAddress() + ": " + e.getMessage());
+						conn.close();
 						return;
-					}
-					log.debug("Object converted sucecssfully");
-					objIn.close();
-					// Convert from object to process
-					final InetAddress origin = s.getInetAddress();
-					log.debug("Creating JProcess");
-					JProcess process;
-					try {
-						process = (JProcess) processObj;
-						// Set process to use I/O from Socket
-						process.reInitialize();
-						process.setOutputStream(out);
-						process.redirectIn(s.getInputStream());
-					} catch (ClassCastException e) {
+					} catch (RuntimeException e) {
 						e.printStackTrace();
-						out.println("FAIL:" + e.getMessage());
-						s.close();
+						conn.close();
 						return;
 					}
-					// Free up space, at this point 'c' is not needed
-					final JProcess procMon = process;
-					out.println("RUNNING");
-					processes.add(procMon);
-					// Create process monitor to remove from running processes when completed, and
-					// cleanup
-					Thread processMonitor = new Thread(new Runnable() { // FIXME Update procMonitor to not have to
-																		// update every .5 seconds, instead include
-																		// trigger inside of JProcess, use form similar
-																		// to EventDriven to signal when a proc is done
-						public void run() {
-							if (!procMon.isRunning())
-								procMon.run();
-							// Check if process is active every .5 seconds
-							terra.shell.utils.system.ReturnType ret = terra.shell.utils.system.ReturnType.VOID;
-							if (procMon.getClass().isAnnotationPresent(JProcess.ReturnType.class)) {
-								ret = procMon.getClass().getAnnotation(JProcess.ReturnType.class).getReturnType();
-							}
-
-							while (procMon.isRunning()) {
-								try {
-									Thread.sleep(500);
-								} catch (Exception e) {
-									// Alert client process failed to run, and cleanup
-									e.printStackTrace();
-									procMon.halt();
-									processes.remove(procMon);
-									out.println("PROCESSCOMPLETION:FAILURE");
-									try {
-										s.close();
-									} catch (IOException e1) {
-										e1.printStackTrace();
-									}
-									connections--;
-									return;
-								}
-							}
-							// Process Return
-							if (ret == terra.shell.utils.system.ReturnType.VOID) {
-								log.debug("VOID");
-								// Disconnect IO streams to save bandwidth
-								try {
-									// Cleanup
-									out.flush();
-									out.close();
-									sc.close();
-									s.close();
-									connections--;
-								} catch (IOException e) {
-									e.printStackTrace();
-								}
-							}
-							if (ret == terra.shell.utils.system.ReturnType.SYNCHRONOUS) {
-								log.debug("SYNCHRONOUS");
-								// TODO Return
-								try {
-									// Cleanup
-									out.flush();
-									out.close();
-									sc.close();
-									s.close();
-									connections--;
-								} catch (IOException e) {
-									e.printStackTrace();
-								}
-							} else if (ret == terra.shell.utils.system.ReturnType.ASYNCHRONOUS) {
-								log.debug("ASYNC");
-								ReturnValue rv = procMon.getReturn();
-								try {
-									sendReturn((Inet4Address) origin, rv);
-								} catch (Exception e) {
-									e.printStackTrace();
-									log.err("UNABLE TO SEND RETURN TO ORIGIN: " + procMon.getOrigin().toString());
-									for (int ie = 0; ie < 5; ie++)
-										log.err("SERIOUS ERROR");
-								}
-							}
-							// When process is no longer active, tell client that process is done
-							out.println("PROCESSCOMPLETION:SUCCESS");
-							// Remove process from list of processess
-							processes.remove(procMon);
-						}
-					});
-					processMonitor.setName("ProcessMonitor:" + process.getName());
-					process = null;
-					processMonitor.run();
 				}
-				if (in.equals("ACTIVE")) {
-					// Active connection handshake completed, process active data transference
-					// accordingly
-					// - Receive basic instruction
-					// - Receive arguments
-					// - Execute methods
-					// - Return
-					connections++;
-					out.println("RECEIVE");
-
-					// Receive data, interpret whether it is Math based, or method based
+			} while (conn.claim());
+		}
 
+		/**
+		 * Wait for the next Frame of the exchange in progress on a connection
+		 */
+		private Frame readFrame(ServerConnection conn) throws IOException {
+			return conn.read(exchangeTimeout * 1000L);
+		}
+
+		/**
+		 * Serve a single request received on a kept-alive connection
+		 * 
+		 * @return True if the connection is still in sync and can serve another
+		 *         request
+		 */
+		private boolean handleRequest(ServerConnection conn, Frame request) throws IOException {
+			// Check if PING is sent
+			if (request.getType() == FrameType.PING) {
+				log.debug("Got PING request", 2);
+				Frame.Builder pong = new Frame.Builder();
+				currentLoad().write(pong.out());
+				conn.send(pong.build(FrameType.PONG));
+				log.debug("Sending PONG", 3);
+				return true;
+			}
+			if (request.getType() == FrameType.PASSIVE) {
+				// Check connection limit, if exceeded refuse the request
+				if (!reserveConnection(passiveProcessLimit)) {
+					log.debug("Too Many connections, refusing");
+					conn.send(Frame.status("OVER_LIMIT"));
+					return true;
 				}
-				if (in.equals("RET")) {
-					out.println("RECEIVEDAT");
-					try {
-						log.debug("Getting data socket from remote...");
+				// The connection is released once the process has completed
+				return handlePassive(conn, request);
+			}
+			if (request.getType() == FrameType.SUBMIT) {
+				return handleSubmit(conn, request);
+			}
+			if (request.getType() == FrameType.BUNDLE) {
+				// Sent ahead of re-submitted processes whose bundle was missing
+				ClassBundle bundle = ClassBundle.read(request.payloadIn(), maxPayload);
+				bundles.put(bundle);
+				log.debug("Stored bundle " + bundle.getMainName());
+				return true;
+			}
+			if (request.getType() == FrameType.CANCEL) {
+				JProcess p = conn.removeSubmission(request.getInt());
+				// A process which has not started is skipped once its turn comes
+				if (p != null) {
+					log.debug("Cancelling " + p.getName());
+					p.halt();
+				}
+				return true;
+			}
+			if (request.getType() == FrameType.STAGE) {
+				DataInputStream in = request.payloadIn();
+				String key = in.readUTF();
+				long version = in.readLong();
+				String status;
+				if (in.readBoolean()) {
+					// Sent ahead in a FILE
+					File f = conn.takeFile();
+					status = f == null ? "FAIL:No file received" : assets.put(key, version, f);
+				} else {
+					byte[] data = new byte[in.available()];
+					in.readFully(data);
+					status = assets.put(key, version, data);
+				}
+				log.debug("Staging " + key + "@" + version + ": " + status);
+				conn.send(Frame.status(status));
+				return true;
+			}
+			if (request.getType() == FrameType.FILE) {
+				// The file waits on the connection for the request which claims it
+				return true;
+			}
+			if (request.getType() == FrameType.UNSTAGE) {
+				conn.send(Frame.status(assets.remove(request.getString()) ? "UNSTAGED" : "UNKNOWN"));
+				return true;
+			}
+			if (request.getType() == FrameType.CREDIT) {
+				DataInputStream in = request.payloadIn();
+				RemoteOutput output = conn.getOutput(in.readInt());
+				// Credit for a process which has completed in the meantime is dropped
+				if (output != null)
+					output.grant(in.readInt());
+				return true;
+			}
+			log.err("Unexpected " + request.getType() + " request from " + conn.getRemoteAddress());
+			return false;
+		}
 
-						String portString = sc.nextLine();
-						int port = Integer.parseInt(portString);
-						SocketChannel sockCh = SocketChannel.open(new InetSocketAddress(s.getInetAddress(), port));
+		/**
+		 * The load of this Node, as advertised to other Nodes
+		 */
+		private NodeLoad currentLoad() {
+			Runtime rt = Runtime.getRuntime();
+			long freeHeap = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+			return new NodeLoad(JSHProcesses.getCount(), scheduler.running(), scheduler.queued(),
+					scheduler.getSlots(), rt.availableProcessors(), freeHeap);
+		}
 
-						receiveClass(out, s.getInputStream(), sc, sockCh);
-						byte[] dat = readBytes(out, sc, sockCh);
-						if (!sc.nextLine().equalsIgnoreCase("DONE")) {
-							log.err("DID NOT RECEIVE \"DONE\" FROM RET SENDER");
-							dat = null;
-							return;
-						}
+		private synchronized boolean reserveConnection(int limit) {
+			if (connections >= Math.min(limit, connectionLimit))
+				return false;
+			connections++;
+			return true;
+		}
 
-						ByteArrayInputStream bin = new ByteArrayInputStream(dat);
-						JProcessRealizer objIn = new JProcessRealizer(bin);
-						objIn.setClassLoader(loader);
-						// Receive and parse new ReturnValue
-						ReturnValue rv = (ReturnValue) objIn.readObject();
-						// Process the ReturnValue through the selected process
-						log.debug("Attempting to find Process of ID: " + rv.getProcessID().toString() + " : "
-								+ rv.getSUID().toString());
-						JSHProcesses.getProcess(rv.getSUID()).processReturn(rv);
-					} catch (Exception e) {
-						e.printStackTrace();
+		private synchronized void releaseConnection() {
+			connections--;
+		}
+
+		private boolean handlePassive(final ServerConnection conn, Frame request) throws IOException {
+			// The reserved connection is released by the process once complete, or here
+			// if the process is never scheduled
+			boolean scheduled = false;
+			try {
+				// Passive connection handshake completed, process passive data transference
+				// accordingly
+				// - Receive serialized data
+				// - De-serialize
+				// - Execute
+				// - Return
+				log.debug("Passive connection received");
+
+				// The hash of the process's ClassBundle is carried by the PASSIVE request
+				// itself, so a cached bundle costs no more than this one round trip
+				String hash = request.getString();
+				log.debug("GOT: " + hash);
+				if (!ClassBundleCache.isValidHash(hash)) {
+					log.err("Malformed bundle hash from " + conn.getRemoteAddress());
+					return false;
+				}
+				JSHClassLoader loader = bundles.getLoader(hash);
+				if (loader != null) {
+					conn.send(Frame.status("EXISTS"));
+				} else {
+					conn.send(Frame.status("NONEXIST"));
+					log.debug("Receiving class bundle...");
+					ClassBundle bundle = ClassBundle.read(readFrame(conn).expect(FrameType.BUNDLE).payloadIn(),
+							maxPayload);
+					if (!bundle.getHash().equals(hash)) {
+						log.err("Bundle " + bundle.getMainName() + " does not match its hash " + hash);
+						return false;
 					}
+					loader = bundles.put(bundle);
+					log.debug("Realized " + bundle.getMainName() + " with " + (bundle.size() - 1) + " dependencies");
+				}
+				// Receive priority of process, followed by the serialized process
+				Frame procFrame = readFrame(conn).expect(FrameType.PROCESS);
+				DataInputStream procIn = procFrame.payloadIn();
+				ProcessPriority priority = ProcessPriority.fromInt(procIn.readInt());
+				int window = procIn.readInt();
+				log.debug("Got process of size " + (procFrame.getPayload().length - 9) + " and priority " + priority);
+				log.debug("Done receiving process");
+				// De-serialize and instantiate process
+				JProcess process;
+				final long deserialize;
+				try {
+					long start = System.nanoTime();
+					process = readProcess(procIn, loader);
+					deserialize = System.nanoTime() - start;
+				} catch (ClassNotFoundException | ClassCastException | ObjectStreamException e) {
+					// If de-serialization fails, throw error to client, cleanup
+					e.printStackTrace();
+					conn.send(Frame.status("FAIL:" + e.getMessage()));
+					return true;
 				}
+				final JProcess procMon = process;
+				final RemoteOutput output = openOutput(conn, 0, window, process);
+				conn.send(Frame.status("RUNNING"));
+				final long queued = System.nanoTime();
+				// The sender waits for the COMPLETION on this connection, so this worker is
+				// free to serve other connections until the process has run
+				scheduler.schedule(priority, new Runnable() {
+					public void run() {
+						try {
+							long start = System.nanoTime();
+							boolean success = runPassive(procMon, conn, 0, output);
+							long executed = System.nanoTime() - start;
+							closeOutput(conn, output);
+							// When process is no longer active, tell client that process is done
+							Frame.Builder completion = new Frame.Builder();
+							completion.out().writeBoolean(success);
+							NodeMetrics.writeTimings(completion.out(), deserialize, start - queued, executed);
+							conn.send(completion.build(FrameType.COMPLETION));
+						} catch (IOException e) {
+							e.printStackTrace();
+						} finally {
+							releaseConnection();
+						}
+					}
+				});
+				scheduled = true;
+				return true;
+			} finally {
+				if (!scheduled)
+					releaseConnection();
 			}
-			sc.close();
 		}
 
-		private boolean sendBytes(byte[] bytes, PrintStream out, InputStream in, Scanner sc) throws IOException {
-			log.debug("Sent CHANNELTRANSFER");
-			out.println("CHANNELTRANSFER");
-			String next = sc.nextLine();
-			if (!next.equals("CHANNELREADY")) {
-				throw new IOException(
-						"Socket not prepared for Channel Transfer, or got out of sync with remote resources");
+		/**
+		 * Handle a pipelined SUBMIT request. The process is acknowledged right away and
+		 * queued for execution, its completion is reported later with a DONE Frame, so
+		 * that the connection can keep receiving further submissions
+		 */
+		private boolean handleSubmit(final ServerConnection conn, Frame request) throws IOException {
+			DataInputStream procIn = request.payloadIn();
+			final int id = procIn.readInt();
+			String hash = procIn.readUTF();
+			ProcessPriority priority = ProcessPriority.fromInt(procIn.readInt());
+			int window = procIn.readInt();
+			if (!ClassBundleCache.isValidHash(hash)) {
+				log.err("Malformed bundle hash from " + conn.getRemoteAddress());
+				return false;
+			}
+			JSHClassLoader loader = bundles.getLoader(hash);
+			if (loader == null) {
+				// The sender follows up with the BUNDLE, and submits again
+				conn.send(ack(id, "NEED_BUNDLE"));
+				return true;
 			}
-			log.debug("GOT CHANNELREADY");
-			out.println(bytes.length);
-			log.debug("SENT BYTE LENGTH: " + bytes.length);
-			out.write(bytes);
-			out.flush();
-			log.debug("WROTE BYTES");
-			sc.nextLine();
+			if (scheduler.queued() >= passiveQueueLimit) {
+				conn.send(ack(id, "OVER_LIMIT"));
+				return true;
+			}
+			final JProcess process;
+			final long deserialize;
+			try {
+				long start = System.nanoTime();
+				process = readProcess(procIn, loader);
+				deserialize = System.nanoTime() - start;
+			} catch (ClassNotFoundException | ClassCastException | ObjectStreamException e) {
+				e.printStackTrace();
+				conn.send(ack(id, "FAIL:" + e.getMessage()));
+				return true;
+			}
+			log.debug("Queueing submission " + id + ": " + process.getName() + ", priority " + priority);
+			final RemoteOutput output = openOutput(conn, id, window, process);
+			conn.addSubmission(id, process);
+			conn.send(ack(id, "QUEUED"));
+			final long queued = System.nanoTime();
+			scheduler.schedule(priority, new Runnable() {
+				public void run() {
+					long start = System.nanoTime();
+					// Cancelled while queued
+					boolean success = conn.hasSubmission(id, process) && runPassive(process, conn, id, output);
+					long executed = System.nanoTime() - start;
+					conn.removeSubmission(id);
+					try {
+						closeOutput(conn, output);
+						Frame.Builder done = new Frame.Builder();
+						done.out().writeInt(id);
+						done.out().writeBoolean(success);
+						NodeMetrics.writeTimings(done.out(), deserialize, start - queued, executed);
+						conn.send(done.build(FrameType.DONE));
+					} catch (IOException e) {
+						log.debug("Unable to report completion of " + id + ": " + e.getMessage());
+					}
+				}
+			});
 			return true;
 		}
 
-		private boolean sendBytes(byte[] bytes, PrintStream out, Scanner sc, SocketChannel c) throws IOException {
-			log.debug("Sending using SocketChannel");
-			log.debug("Sent CHANNELTRANSFER");
-			out.println("CHANNELTRANSFER");
-			String next = sc.nextLine();
-			if (!next.equals("CHANNELREADY")) {
-				throw new IOException(
-						"Socket not prepared for Channel Transfer, or got out of sync with remote resources");
-			}
-			log.debug("GOT CHANNELREADY");
-			out.println(bytes.length);
-			ByteBuffer src = ByteBuffer.wrap(bytes);
-			src.rewind();
-			int write = 0;
-			while ((write += c.write(src)) != bytes.length)
-				log.debug(write + "");
-			;
-			log.debug("Wrote " + write + " bytes");
-			sc.nextLine();
-			log.debug("Got end");
-			return true;
+		/**
+		 * Stream the output of a process back to its origin, if the origin asked for
+		 * it
+		 * 
+		 * @param conn   Connection to the origin
+		 * @param id     Id the origin knows the process by
+		 * @param window Initial output credit granted by the origin, 0 if the output
+		 *               is not wanted
+		 * @param p      Process whose output is streamed
+		 * @return The process's output, or NULL if the output stays on this Node
+		 */
+		private RemoteOutput openOutput(ServerConnection conn, int id, int window, JProcess p) {
+			if (window <= 0)
+				return null;
+			RemoteOutput output = new RemoteOutput(conn, id, window, Math.min(window, OUTPUT_CHUNK));
+			p.setOutputStream(output);
+			conn.addOutput(output);
+			outputs.add(output);
+			return output;
+		}
+
+		/**
+		 * Send the remaining output of a completed process, before its completion is
+		 * reported
+		 */
+		private void closeOutput(ServerConnection conn, RemoteOutput output) {
+			if (output == null)
+				return;
+			try {
+				output.close();
+			} catch (IOException e) {
+				log.debug("Lost output of process " + output.getId() + ": " + e.getMessage());
+			} finally {
+				outputs.remove(output);
+				conn.removeOutput(output);
+			}
 		}
 
-		private byte[] readBytes(InputStream in, PrintStream out, Scanner sc) throws IOException {
-			log.debug("Waiting for CHANNELTRANSFER");
-			String next = sc.nextLine();
-			if (!next.equals("CHANNELTRANSFER")) {
-				throw new IOException(
-						"Socket not prepared for Channel Transfer, or got out of sync with remote resources");
-			}
-			out.println("CHANNELREADY");
-			log.debug("SENT CHANNELREADY");
-			int size = sc.nextInt();
-			sc.nextLine();
-			log.debug("Got size " + size);
-			byte[] b = new byte[size];
-			int read = 0;
-			while ((read += in.read(b)) != size) {
-				log.debug(read + "");
-			}
-			log.debug(read + "");
-			out.println("GOT");
-			return b;
-		}
-
-		private byte[] readBytes(PrintStream out, Scanner sc, SocketChannel c) throws IOException {
-			log.debug("Reading using SocketChannel");
-			log.debug("Waiting for CHANNELTRANSFER");
-			String next = sc.nextLine();
-			if (!next.equals("CHANNELTRANSFER")) {
-				throw new IOException(
-						"Socket not prepared for Channel Transfer, or got out of sync with remote resources");
-			}
-			out.println("CHANNELREADY");
-			int size = sc.nextInt();
-			sc.nextLine();
-			log.debug("Channel got size " + size);
-			byte[] b = new byte[size];
-			ByteBuffer src = ByteBuffer.wrap(b);
-			int read = 0;
-			while ((read += c.read(src)) != size) {
-				log.debug(read + "");
-			}
-			out.println("DONE");
-			return b;
-		}
-
-		@SuppressWarnings("resource")
-		private boolean sendReturn(Inet4Address ip, ReturnValue rv) throws IOException {
-			log.debug("Sending return to : " + ip.toString());
-			Socket s = new Socket(ip.getHostAddress(), port);
-			Scanner sc = new Scanner(s.getInputStream());
-			PrintStream out = new PrintStream(s.getOutputStream());
-
-			completeHandshake(sc, out);
-
-			out.println("RET");
-			log.debug("Sent RET");
-
-			log.debug("Creating data socket channel...");
-			ServerSocketChannel ssc = ServerSocketChannel.open();
-			int port = 2101;
-			while (true)
+		/**
+		 * Send whatever output open processes have buffered, as far as their credit
+		 * allows
+		 */
+		private void flushOutputs() {
+			for (RemoteOutput output : outputs.toArray(new RemoteOutput[0])) {
 				try {
-					ssc.bind(new InetSocketAddress(port));
-					break;
+					output.flushAvailable();
 				} catch (IOException e) {
-					port++;
-					continue;
+					// The process itself notices on its next write
 				}
-			log.debug("Created channel on port " + port);
-			out.println(ssc.socket().getLocalPort());
-			log.debug("Waiting for connection...");
-			SocketChannel sockCh = ssc.accept();
-			log.debug("Got remote socket connection");
-
-			final String nextLine = sc.nextLine();
-			if (!nextLine.equals("RECEIVEDAT")) {
-				log.debug("Origin incorrectly responded, expected\"RECEIVEDAT\" got \"" + nextLine + "\"");
-				s.close();
-				sc.close();
-				out.close();
-				return false;
 			}
+		}
 
-			sendClass(rv.getClass(), out, s.getInputStream(), sc, sockCh);
+		private Frame ack(int id, String status) throws IOException {
+			Frame.Builder ack = new Frame.Builder();
+			ack.out().writeInt(id);
+			ack.out().writeUTF(status);
+			return ack.build(FrameType.ACK);
+		}
 
-			ByteArrayOutputStream bout = new ByteArrayOutputStream();
-			ObjectOutputStream ins = new ObjectOutputStream(bout);
-			ins.writeObject(rv);
-			byte[] dat = bout.toByteArray();
-			log.debug("Sending ReturnValue size of " + dat.length);
+		/**
+		 * De-serialize a JProcess using the ClassLoader of its bundle, and prepare it
+		 * to run on this Node
+		 */
+		private JProcess readProcess(InputStream in, JSHClassLoader loader)
+				throws IOException, ClassNotFoundException {
+			log.debug("Converting to Object");
+			JProcess process = (JProcess) ProcessSerializers.read(in, loader, assets);
+			// Re-initialize process I/O, output stays on this Node as the socket now only
+			// carries Frames
+			process.reInitialize();
+			return process;
+		}
 
-			sendBytes(dat, out, sc, sockCh);
+		/**
+		 * Run a passively received JProcess to completion, delivering its ReturnValue
+		 * to the origin Node if it returns asynchronously
+		 * 
+		 * @param conn   Connection the process was received on
+		 * @param id     Id the origin knows the process by, 0 for PASSIVE
+		 * @param output Output of the process, NULL if it stays on this Node
+		 * @return True if the process ran successfully
+		 */
+		private boolean runPassive(JProcess procMon, ServerConnection conn, int id, RemoteOutput output) {
+			processes.add(procMon);
+			terra.shell.utils.system.ReturnType ret = terra.shell.utils.system.ReturnType.VOID;
+			if (procMon.getClass().isAnnotationPresent(JProcess.ReturnType.class)) {
+				ret = procMon.getClass().getAnnotation(JProcess.ReturnType.class).getReturnType();
+			}
+			// run() returns as soon as the process signals its completion
+			boolean success;
+			try {
+				procMon.run();
+				success = procMon.getCompletion().get();
+			} catch (Exception e) {
+				// Alert client process failed to run, and cleanup
+				e.printStackTrace();
+				procMon.halt();
+				success = false;
+			}
+			// Process Return
+			if (success && ret == terra.shell.utils.system.ReturnType.VOID) {
+				log.debug("VOID");
+			}
+			if (success && ret == terra.shell.utils.system.ReturnType.SYNCHRONOUS) {
+				log.debug("SYNCHRONOUS");
+				// TODO Return
+			} else if (success && ret == terra.shell.utils.system.ReturnType.ASYNCHRONOUS) {
+				log.debug("ASYNC");
+				ReturnValue<?> rv = procMon.getReturn();
+				try {
+					// The return follows all of the process's output, so the origin has the output
+					// once the return completes its future
+					closeOutput(conn, output);
+					sendReturn(conn, id, rv);
+				} catch (Exception e) {
+					e.printStackTrace();
+					log.err("UNABLE TO SEND RETURN TO ORIGIN: " + conn.getRemoteAddress());
+					for (int ie = 0; ie < 5; ie++)
+						log.err("SERIOUS ERROR");
+				}
+			}
+			// Remove process from list of processess
+			processes.remove(procMon);
+			return success;
+		}
 
-			out.println("DONE");
-			log.debug("Finished sending ReturnValue...");
-			return true;
+		/**
+		 * Deliver a ReturnValue back over the connection its process was received
+		 * on, ahead of the process's completion. The origin already holds the
+		 * ReturnValue's class, as it sent the process, so only the value is sent. No
+		 * connection is opened to the origin, which need not accept any
+		 */
+		private void sendReturn(ServerConnection conn, int id, ReturnValue<?> rv) throws IOException {
+			log.debug("Sending return of " + id + " to " + conn.getRemoteAddress());
+			Frame.Builder b = new Frame.Builder();
+			b.out().writeInt(id);
+			ProcessSerializers.write(serializerId, rv, b.out());
+			conn.send(b.build(FrameType.RET));
 		}
 
 		// Add I/O redirection
-		@SuppressWarnings("resource")
-		private boolean sendProcess(Inet4Address ip, JProcess p, ProcessPriority priority, OutputStream out,
-				InputStream in) throws UnknownHostException, IOException {
+		private boolean sendProcess(final Node n, final JProcess p, final ProcessPriority priority,
+				OutputStream out, InputStream in) throws UnknownHostException, IOException {
+			Inet4Address ip = n.ip;
 			// Setup server connection
 			log.debug("Sending process: " + p.getName() + ", to " + ip);
-			Socket s = new Socket(ip.getHostAddress(), port);
-			Scanner sc = new Scanner(s.getInputStream());
-			PrintStream pOut = new PrintStream(s.getOutputStream());
-			p.createReturn();
-
-			completeHandshake(sc, pOut);
-
-			// Send type of process to server
-			pOut.println("PASSIVE");
-			log.debug("Sent PASSIVE");
-			log.debug("Creating data socket channel...");
-			ServerSocketChannel ssc = ServerSocketChannel.open();
-			int port = 2101;
-			while (true)
-				try {
-					ssc.bind(new InetSocketAddress(port));
-					break;
-				} catch (IOException e) {
-					port++;
-					continue;
-				}
-			log.debug("Created channel on port " + port);
-			pOut.println(ssc.socket().getLocalPort());
-			log.debug("Waiting for connection...");
-			SocketChannel sockCh = ssc.accept();
-			log.debug("Got remote socket connection");
-			// If Server doesn't respond correctly, close and cleanup
-			final String nextLine = sc.nextLine();
-			if (!nextLine.equals("RECEIVEDAT")) {
-				log.debug("Server incorrectly responded, expected \"RECEIVEDAT\" got \"" + nextLine + "\"");
-				s.close();
-				sc.close();
-				return false;
-			}
-
-			p.prepSerialization();
-			p.getReturn();
 			// Send class as stream to other JSH, load class in at other JSH and then
 			// allow for this one to spawn
 			log.debug("Sending class by name of: " + p.getClass().getName() + " : "
 					+ p.getClass().getPackage().getName());
-			log.debug("Quantizing Process...");
-			String classPath = p.getClass().getName().replace('.', '/') + ".class";
-			// Get classes actual bytes in order to reinitialize correctly on host
-			CheckedInputStream cin = new CheckedInputStream(
-					p.getClass().getClassLoader().getResourceAsStream(classPath), new CRC32());
-			byte[] cBytes = cin.readAllBytes();
-			log.debug("Quantization Complete");
-			boolean remoteExists = false;
-			CRC32 chkSum = (CRC32) cin.getChecksum();
-			log.debug("Sending Checksum...");
-			pOut.println(chkSum.getValue());
-			if (sc.nextLine().equals("EXISTS")) {
-				remoteExists = true;
-			}
-			// Serialize process
-			log.debug("Serializing Process: " + p.getClass().toString());
-			ByteArrayOutputStream bout = new ByteArrayOutputStream();
-			ObjectOutputStream objOut = new ObjectOutputStream(bout);
-			objOut.writeObject(p);
-			objOut.flush();
-			objOut.close();
-			objOut = null;
-			log.debug("Serialization complete!");
-			if (!remoteExists) {
-				log.debug("Running dependency check..."); // DONE Annotations not returning correct value??
-				// CODEAT Check for dependencies
-				if (p.getClass().isAnnotationPresent(JProcess.Depends.class)) {
-					Class<?>[] deps = p.getClass().getAnnotation(JProcess.Depends.class).dependencies();
-					pOut.println(deps.length);
-					for (Class<?> d : deps)
-						if (!sendClass(d, pOut, in, sc, sockCh)) {
-							log.err("FAILED TO SEND DEPENDENCY CLASS: " + d.getName());
+			final ClassBundle cBundle = bundleOf(p);
+			final OutputStream output = out;
+			final byte[] dat = serializeProcess(p, priority, out != null ? outputWindow : 0, n.metrics);
+			final long start = System.nanoTime();
+			// Dispatch over a pooled connection to the Node
+			return getPool(ip.getHostAddress()).execute(new NodeConnectionPool.Exchange<Boolean>() {
+				public Boolean run(NodeConnection c) throws IOException {
+					// Send type of process to server, along with the hash of its bundle
+					log.debug("Sending PASSIVE with bundle hash...");
+					c.send(Frame.ofString(FrameType.PASSIVE, cBundle.getHash()));
+					// If Server doesn't respond correctly, cleanup
+					final String reply = c.read().expect(FrameType.STATUS).getString();
+					if (reply.equals("OVER_LIMIT")) {
+						log.debug("Server is over its process limit");
+						return false;
+					}
+					if (!reply.equals("EXISTS")) {
+						log.debug("Sending class bundle of " + cBundle.size() + " classes");
+						long shipStart = System.nanoTime();
+						Frame.Builder b = new Frame.Builder();
+						cBundle.write(b.out());
+						c.write(b.build(FrameType.BUNDLE));
+						n.metrics.classShipped(System.nanoTime() - shipStart);
+					}
+
+					// Send serialized process along with its priority in one Frame
+					log.debug("Sending size of data " + dat.length);
+					c.send(new Frame(FrameType.PROCESS, dat));
+					// Wait for a response
+					String response = c.read().expect(FrameType.STATUS).getString();
+					// If response is FAILURE, cleanup
+					if (response.startsWith("FAIL")) {
+						log.err(response);
+						return false;
+					}
+					log.debug("Process sent");
+					n.holding(cBundle.getHash());
+					// The process's output, and its ReturnValue, stream back until it completes
+					Frame completion;
+					while ((completion = c.read()).getType() == FrameType.OUTPUT
+							|| completion.getType() == FrameType.RET) {
+						if (completion.getType() == FrameType.OUTPUT) {
+							writeOutput(completion, output, c);
+							continue;
 						}
-				} else
-					pOut.println(0);
-				log.debug("Finished Dependency Check");
-
-				log.debug("Sending size of quantized data: " + cBytes.length);
-				pOut.println(cBytes.length);
-				log.debug("Sending class name: " + p.getName());
-				pOut.println(p.getClass().getName());
-
-				log.debug("Sending package name: " + p.getClass().getPackage().getName());
-				pOut.println(p.getClass().getPackage().getName());
-
-				log.debug("Sending quantized data...");
-				sendBytes(cBytes, pOut, sc, sockCh);
-			}
-			pOut.flush();
-
-			// Turn serialized process into byte[]
-			byte[] dat = bout.toByteArray();
-			// Tell server [] length, and process priority
-			log.debug("Sending size of data " + dat.length);
-			pOut.println(dat.length);
-			pOut.println(priority.asInt());
-			// Send serialized process to server
-			for (int i = 0; i < dat.length; i++) {
-				pOut.println((int) dat[i]);
-			}
-			pOut.flush();
-			// Wait for a response
-			String response = sc.nextLine();
-			// If response is FAILURE, close, cleanup
-			if (response.startsWith("FAIL")) {
-				log.err(response);
-				s.close();
-				sc.close();
-				return false;
-			}
-			log.debug("Process sent");
-			// TODO Add reception of process output
-			// Use I/O redirect buffers? Need to read Socket input in order to determine
-			// process completion
-			while (sc.hasNextLine()) {
-				String next = sc.nextLine();
-				if (next.startsWith("PROCESSCOMPLETION")) {
-					// Close socket, cleanup
-					s.close();
-					out.close();
-					sc.close();
+						DataInputStream ret = completion.payloadIn();
+						ret.readInt();
+						receiveReturn(ret, p.getClass().getClassLoader(), ip.getHostAddress());
+					}
+					completion.expect(FrameType.COMPLETION);
+					n.metrics.returned(System.nanoTime() - start);
+					DataInputStream result = completion.payloadIn();
+					boolean success = result.readBoolean();
+					n.metrics.readTimings(result);
+					if (!success) {
+						log.err("Remote process " + p.getName() + " failed");
+						n.metrics.failed();
+					}
 					return true;
 				}
+			});
+		}
 
+		/**
+		 * Write a chunk of remote output to the caller's stream, and grant the remote
+		 * process credit for it once written
+		 */
+		private void writeOutput(Frame f, OutputStream out, NodeConnection c) throws IOException {
+			DataInputStream in = f.payloadIn();
+			int id = in.readInt();
+			byte[] chunk = in.readAllBytes();
+			try {
+				out.write(chunk);
+				out.flush();
+			} catch (IOException e) {
+				// The caller's stream failing must not break the exchange
+				log.debug("Unable to write remote output: " + e.getMessage());
 			}
-			sc.close();
-			return true;
+			Frame.Builder credit = new Frame.Builder();
+			credit.out().writeInt(id);
+			credit.out().writeInt(chunk.length);
+			c.send(credit.build(FrameType.CREDIT));
 		}
 
 		@Override
@@ -1085,176 +2608,173 @@ public final class ConnectionManager {
 			}
 			return false;
 		}
+	}
 
-		public Class<?> receiveClass(PrintStream out, InputStream in, Scanner sc, SocketChannel s) {
-			log.debug("Recieving Quantized class size...");
-			// Get Class size
-			int cSize = Integer.parseInt(sc.nextLine());
-			log.debug("Got size " + cSize);
-			log.debug("Recieving Quantized class data...");
-			log.debug("Getting name...");
-
-			String cName = sc.nextLine();
-			log.debug(cName);
-			String cNamePart[] = cName.split("\\.");
-			// log.debug(cNamePart.toString());
-			cName = cNamePart[cNamePart.length - 1];
-			log.debug("Got name: " + cName);
-
-			log.debug("Getting package...");
-			String packageName = sc.nextLine();
-			log.debug("Got package: " + packageName);
-
-			loader.setPackageAssertionStatus(packageName, true);
-
-			byte[] cBytes;
-			try {
-				if (s != null)
-					cBytes = readBytes(out, sc, s);
-				else
-					cBytes = readBytes(in, out, sc);
-			} catch (Exception e) {
-				e.printStackTrace();
-				return null;
-			}
-
-			// byte[] cBytes = new byte[cSize];
-			// Receive Class
-			// for (int i = 0; i < cSize; i++) {
-			// cBytes[i] = (byte) sc.nextInt();
-			// }
-			// sc.nextLine();
-			log.debug("Realizing Quantized class...");
-			// Load class from bytes
-			// Save 'c' for a bit so GC doesn't remove the class from mem
-
-			Class<?> c = loader.getClass(packageName + "." + cName, packageName, cBytes);
-			log.debug("Loaded class: " + c.getName()); // Package returning NULL
-			loader.setPackageAssertionStatus("", false);
-			return c;
-		}
-
-		public boolean sendClass(Class<?> c, PrintStream out, InputStream in, Scanner sc, SocketChannel s)
-				throws IOException {
-			String classPath = c.getName().replace('/', '.');
-			String packageName = "";
-			if (c.getPackage() != null) {
-				packageName = c.getPackage().getName();
-			}
-			log.debug("Sending class by name of: " + c.getCanonicalName() + " : " + packageName);
-			InputStream cin;
-			cin = c.getClassLoader().getResourceAsStream(c.getName().replace('.', '/') + ".class");
-			if (cin == null) {
-				log.err("Failed to find resource: " + c.getCanonicalName());
-			}
-			ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-			int b;
-			while ((b = cin.read()) != -1) {
-				bOut.write(b);
-			}
-			bOut.flush();
-			byte[] dat = bOut.toByteArray();
-			log.debug("Sending size of data " + dat.length);
-			out.println(dat.length);
-
-			log.debug("Sending class name " + classPath);
-			out.println(classPath);
-
-			log.debug("Sending package name " + packageName);
-			out.println(packageName);
-
-			out.flush();
+	/**
+	 * Result of a PING, the round trip time and the load reported in the PONG
+	 */
+	private static final class Probe {
+		private final long latency;
+		private final NodeLoad load;
 
-			if (s != null)
-				sendBytes(dat, out, sc, s);
-			else
-				sendBytes(dat, out, in, sc);
-			// Send serialized process to server
-			out.flush();
-			log.debug("Process sent");
-			return true;
+		private Probe(long latency, NodeLoad load) {
+			this.latency = latency;
+			this.load = load;
 		}
 	}
 
 	private class Node implements Comparable<Node> {
+		// Weight of the newest sample in the latency average
+		private static final double EWMA_ALPHA = 0.3;
 		private long ping;
 		private Inet4Address ip;
-		private Socket s;
 		private long lastUsed, lastPinged;
+		// Exponentially weighted moving average of the round trip time, in MS
+		private double latency;
+		private NodeLoad load = NodeLoad.UNKNOWN;
+		// Processes this Node has sent to the remote Node which have not completed
+		// yet, and how many of them were already included in the last load report
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private int inFlightAtProbe;
+		private final FailureDetector detector = new FailureDetector(heartbeatInterval, heartbeatInterval);
+		// Whether a heartbeat is awaiting its PONG
+		private final AtomicBoolean beating = new AtomicBoolean();
+		private volatile boolean suspect;
+		private final NodeMetrics metrics;
+		// Deliveries to the Node which failed in a row, and the time its quarantine
+		// ends, in MS
+		private final AtomicInteger faults = new AtomicInteger();
+		private volatile long quarantinedUntil;
+		// Hashes of the ClassBundles the Node is known to hold, least recently used
+		// first. The Node only keeps so many loaded, an entry it has since dropped
+		// only costs the class transfer that affinity meant to save
+		private final LinkedHashMap<String, Boolean> bundles = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > Math.max(1, bundleCacheLoaded);
+			}
+		};
 
-		@SuppressWarnings("unused")
-		public Node(Inet4Address ip) throws UnknownHostException, IOException {
+		public Node(Inet4Address ip, Probe probe) {
 			this.ip = ip;
-			s = new Socket(ip.getHostAddress(), port);
-			updatePing();
+			this.metrics = metricsOf(ip.getHostAddress());
+			this.latency = probe.latency / 1000000.0;
+			record(probe);
 			lastUsed = System.currentTimeMillis();
 		}
 
-		public Node(Inet4Address ip, boolean doPing) throws UnknownHostException, IOException {
-			this.ip = ip;
-			s = new Socket(ip.getHostAddress(), port);
-			if (doPing)
-				updatePing();
-			lastUsed = System.currentTimeMillis();
+		public long updatePing() throws IOException {
+			return updatePing(0);
 		}
 
-		public Node(Inet4Address ip, long ping) throws UnknownHostException, IOException {
-			this.ip = ip;
-			s = new Socket(ip.getHostAddress(), port);
-			this.ping = ping;
-			lastUsed = System.currentTimeMillis();
+		/**
+		 * Ping the Node, refreshing its latency and load
+		 * 
+		 * @param timeout Time to wait for the PONG, in MS. 0 waits indefinitely
+		 * @return Latency of this ping, in MS
+		 * @throws IOException If the Node did not answer
+		 */
+		public long updatePing(int timeout) throws IOException {
+			Probe probe = probe(ip.getHostAddress(), timeout);
+			latency = EWMA_ALPHA * (probe.latency / 1000000.0) + (1 - EWMA_ALPHA) * latency;
+			record(probe);
+			return ping;
+		}
+
+		private synchronized void record(Probe probe) {
+			ping = probe.latency / 1000000L;
+			load = probe.load;
+			inFlightAtProbe = inFlight.get();
 			lastPinged = System.currentTimeMillis();
+			detector.heartbeat(lastPinged);
 		}
 
-		@SuppressWarnings("unused")
-		public Node(Socket s) throws IOException {
-			this.s = s;
-			updatePing();
-			lastUsed = System.currentTimeMillis();
+		private void setSuspect(boolean suspect) {
+			if (suspect == this.suspect)
+				return;
+			this.suspect = suspect;
+			if (suspect)
+				log.log("Node " + ip.getHostAddress() + " is not responding, suspected of failure");
+			else
+				log.log("Node " + ip.getHostAddress() + " is responding again");
 		}
 
-		@SuppressWarnings("unused")
-		public Node(Inet4Address ip, int ping) throws UnknownHostException, IOException {
-			this.ping = ping;
-			this.ip = ip;
-			s = new Socket(ip.getHostAddress(), port);
+		void dispatched() {
+			inFlight.incrementAndGet();
+			metrics.dispatched();
 			lastUsed = System.currentTimeMillis();
 		}
 
-		public long updatePing() throws IOException {
-			ping = ping(ip);
-			lastPinged = System.currentTimeMillis();
-			return ping;
+		/**
+		 * @param success Whether the process ran successfully, failures are counted
+		 *                in the Node's metrics
+		 */
+		void completed(boolean success) {
+			inFlight.decrementAndGet();
+			if (!success)
+				metrics.failed();
+		}
+
+		/**
+		 * A process was delivered to the Node
+		 */
+		void delivered() {
+			faults.set(0);
+		}
+
+		/**
+		 * Delivering a process to the Node failed. After "quarantineFaults" failures
+		 * in a row, the Node is not sent any process for "quarantineTime" seconds.
+		 * Its fault count is only reset by a delivery, so a Node which fails again
+		 * once released is quarantined again right away
+		 */
+		void faulted() {
+			int f = faults.incrementAndGet();
+			if (f < quarantineFaults || isQuarantined())
+				return;
+			synchronized (this) {
+				if (isQuarantined())
+					return;
+				quarantinedUntil = System.currentTimeMillis() + quarantineTime * 1000L;
+			}
+			log.log("Node " + ip.getHostAddress() + " failed " + f + " deliveries in a row, quarantined for "
+					+ quarantineTime + "s");
+		}
+
+		boolean isQuarantined() {
+			return System.currentTimeMillis() < quarantinedUntil;
+		}
+
+		/**
+		 * The Node accepted a process of this ClassBundle, so it holds the bundle
+		 */
+		synchronized void holding(String bundle) {
+			bundles.put(bundle, Boolean.TRUE);
+		}
+
+		synchronized boolean holds(String bundle) {
+			return bundles.containsKey(bundle);
+		}
+
+		/**
+		 * Expected cost of sending this Node another process, lower is better. The
+		 * latency is scaled by how loaded the Node is, counting the processes sent to
+		 * it since its last load report
+		 */
+		synchronized double score() {
+			int extra = Math.max(0, inFlight.get() - inFlightAtProbe);
+			// Sub-millisecond latencies, such as on the loopback, are all treated alike
+			return Math.max(latency, 0.1) * (1 + load.utilization(extra));
 		}
 
 		@Override
 		public int compareTo(Node n) {
-			// Ping ratio calculated based on a max ping of 200ms
-			float pingRatio = (ping / 200);
-			if (pingRatio >= 1)
-				return -1;
-			float nPingRatio = (n.ping / 200);
-			long timeDelta = (System.currentTimeMillis() - lastUsed);
-			long nTimeDelta = (System.currentTimeMillis() - n.lastUsed);
-
-			// If this Node has a higher ping than 'n' and has been more recently used,
-			// check to see if 'n' has a ping of no more than %10 longer, and if so accept
-			// 'n' as the priority
-			if (pingRatio > nPingRatio) {
-				if (timeDelta < nTimeDelta && !(pingRatio - nPingRatio >= 0.1f)) {
-					return -1;
-				}
-				return 1;
-			}
-			// If this Node has a lower ping than 'n' and has not been used more recently,
-			// check to see if this Node has a ping no more than %10 longer, and if so
-			// accept this Node as priority
-			if (pingRatio < nPingRatio) {
-				if (timeDelta > nTimeDelta && (pingRatio - nPingRatio <= 0.1f))
-					return 1;
-				return -1;
-			}
-			return 0;
+			int c = Double.compare(score(), n.score());
+			if (c != 0)
+				return c;
+			// Prefer the Node which has been idle for longer
+			return Long.compare(lastUsed, n.lastUsed);
 		}
 
 		@SuppressWarnings("unused")
@@ -1262,7 +2782,6 @@ public final class ConnectionManager {
 			return ping;
 		}
 
-		@SuppressWarnings("unused")
 		public Inet4Address getIPv4() {
 			return ip;
 		}
@@ -1291,5 +2810,56 @@ public final class ConnectionManager {
 		public long lastPinged() {
 			return n.lastPinged;
 		}
+
+		/**
+		 * Average round trip time to the Node, in MS
+		 */
+		public double latency() {
+			return n.latency;
+		}
+
+		/**
+		 * Load reported by the Node with its last PONG
+		 */
+		public NodeLoad getLoad() {
+			return n.load;
+		}
+
+		/**
+		 * Processes sent to the Node which have not completed yet
+		 */
+		public int inFlight() {
+			return n.inFlight.get();
+		}
+
+		/**
+		 * Whether or not the Node has been silent for long enough to be suspected of
+		 * failure. Suspected Nodes are not sent new processes
+		 */
+		public boolean isSuspect() {
+			return n.suspect;
+		}
+
+		/**
+		 * Whether or not the Node failed too many deliveries in a row, and is not sent
+		 * new processes for a while
+		 */
+		public boolean isQuarantined() {
+			return n.isQuarantined();
+		}
+
+		/**
+		 * Current suspicion that the Node has failed, see FailureDetector
+		 */
+		public double phi() {
+			return n.detector.phi(System.currentTimeMillis());
+		}
+
+		/**
+		 * Snapshot of the metrics of the traffic with the Node
+		 */
+		public NodeStats getStats() {
+			return n.metrics.snapshot();
+		}
 	}
 }
@@ -0,0 +1,411 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.security.CodeSource;
+import java.util.LinkedHashSet;
+
+import terra.shell.utils.JProcess;
+
+/**
+ * Finds the classes a class refers to by reading its bytecode, without loading
+ * or initializing it. A class refers to its superclass and interfaces, to the
+ * classes its code uses, and to those named in the descriptors and signatures
+ * of its fields and methods. Of the classes nested alongside it, only those
+ * nested within the class itself are referred to, so that shipping one nested
+ * class does not ship every other class of its outer class. String constants
+ * are never mistaken for classes, and classes only reached through reflection,
+ * such as with Class.forName(), are not found
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+final class DependencyScanner {
+	private static final int MAGIC = 0xCAFEBABE;
+
+	private static final int CLASS = 7, FIELDREF = 9, METHODREF = 10, INTERFACE_METHODREF = 11, NAME_AND_TYPE = 12,
+			METHOD_TYPE = 16;
+
+	private static final CodeSource JSH = JProcess.class.getProtectionDomain().getCodeSource();
+
+	private final DataInputStream in;
+	private final int[] tags;
+	private final String[] utf;
+	// First index held by each Class, member ref, NameAndType or MethodType entry,
+	// and the second index of those holding two
+	private final int[] first, second;
+	private final LinkedHashSet<String> references = new LinkedHashSet<String>();
+	private String name, nestHost;
+
+	/**
+	 * Read the classes a class refers to
+	 *
+	 * @param bytecode Bytecode of the class
+	 * @throws IOException If the bytecode is malformed
+	 */
+	DependencyScanner(byte[] bytecode) throws IOException {
+		in = new DataInputStream(new ByteArrayInputStream(bytecode));
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a class file");
+		in.readUnsignedShort();
+		in.readUnsignedShort();
+		int count = in.readUnsignedShort();
+		tags = new int[count];
+		utf = new String[count];
+		first = new int[count];
+		second = new int[count];
+		for (int i = 1; i < count; i++) {
+			int tag = in.readUnsignedByte();
+			tags[i] = tag;
+			switch (tag) {
+			case 1: // Utf8
+				utf[i] = in.readUTF();
+				break;
+			case CLASS:
+			case 8: // String
+			case METHOD_TYPE:
+			case 19: // Module
+			case 20: // Package
+				first[i] = in.readUnsignedShort();
+				break;
+			case 15: // MethodHandle
+				in.readUnsignedByte();
+				first[i] = in.readUnsignedShort();
+				break;
+			case FIELDREF:
+			case METHODREF:
+			case INTERFACE_METHODREF:
+			case NAME_AND_TYPE:
+			case 17: // Dynamic
+			case 18: // InvokeDynamic
+				first[i] = in.readUnsignedShort();
+				second[i] = in.readUnsignedShort();
+				break;
+			case 3: // Integer
+			case 4: // Float
+				in.readInt();
+				break;
+			case 5: // Long
+			case 6: // Double, both take up two entries
+				in.readLong();
+				i++;
+				break;
+			default:
+				throw new IOException("Unknown constant pool tag " + tag + " at " + i);
+			}
+		}
+		// Members are only in the pool if they are used, and so are their classes and
+		// types
+		for (int i = 1; i < count; i++) {
+			if (tags[i] == FIELDREF || tags[i] == METHODREF || tags[i] == INTERFACE_METHODREF)
+				useClass(first[i]);
+			else if (tags[i] == NAME_AND_TYPE)
+				useDescriptor(second[i]);
+			else if (tags[i] == METHOD_TYPE)
+				useDescriptor(first[i]);
+		}
+		in.readUnsignedShort();
+		name = className(in.readUnsignedShort());
+		useClass(in.readUnsignedShort());
+		int interfaces = in.readUnsignedShort();
+		for (int i = 0; i < interfaces; i++)
+			useClass(in.readUnsignedShort());
+		// Fields, then methods
+		for (int m = 0; m < 2; m++) {
+			int members = in.readUnsignedShort();
+			for (int i = 0; i < members; i++) {
+				in.readUnsignedShort();
+				in.readUnsignedShort();
+				useDescriptor(in.readUnsignedShort());
+				readAttributes();
+			}
+		}
+		readAttributes();
+		references.remove(name);
+	}
+
+	/**
+	 * Names of the classes referred to by the class
+	 *
+	 * @return Binary names of the classes, such as java.util.List, in the order
+	 *         they were found
+	 */
+	LinkedHashSet<String> references() {
+		return references;
+	}
+
+	/**
+	 * The class's nest host, the outermost class it is nested in. Nested classes
+	 * need it to access each other's private members
+	 *
+	 * @return Binary name of the nest host, or NULL if the class is not nested
+	 */
+	String getNestHost() {
+		return nestHost;
+	}
+
+	private void readAttributes() throws IOException {
+		int count = in.readUnsignedShort();
+		for (int i = 0; i < count; i++) {
+			String attribute = utf[in.readUnsignedShort()];
+			int length = in.readInt();
+			if ("Code".equals(attribute)) {
+				readCode();
+			} else if ("Signature".equals(attribute)) {
+				useDescriptor(in.readUnsignedShort());
+			} else if ("Exceptions".equals(attribute)) {
+				int n = in.readUnsignedShort();
+				for (int e = 0; e < n; e++)
+					useClass(in.readUnsignedShort());
+			} else if ("NestHost".equals(attribute)) {
+				nestHost = className(in.readUnsignedShort());
+			} else if ("InnerClasses".equals(attribute)) {
+				int n = in.readUnsignedShort();
+				for (int e = 0; e < n; e++) {
+					String inner = className(in.readUnsignedShort());
+					String outer = className(in.readUnsignedShort());
+					in.readUnsignedShort();
+					in.readUnsignedShort();
+					// Member classes of this class, and its anonymous and local classes, which
+					// have no outer class
+					if (inner != null && (name.equals(outer) || outer == null && inner.startsWith(name + "$")))
+						references.add(inner);
+				}
+			} else if ("BootstrapMethods".equals(attribute)) {
+				int n = in.readUnsignedShort();
+				for (int b = 0; b < n; b++) {
+					in.readUnsignedShort();
+					int args = in.readUnsignedShort();
+					for (int a = 0; a < args; a++) {
+						int arg = in.readUnsignedShort();
+						if (tags[arg] == CLASS)
+							useClass(arg);
+					}
+				}
+			} else
+				in.skipBytes(length);
+		}
+	}
+
+	/**
+	 * Read a Code attribute, the classes its instructions name directly are used
+	 */
+	private void readCode() throws IOException {
+		in.readUnsignedShort();
+		in.readUnsignedShort();
+		byte[] code = new byte[in.readInt()];
+		in.readFully(code);
+		int pc = 0;
+		while (pc < code.length) {
+			int op = code[pc] & 0xFF;
+			switch (op) {
+			case 0x12: // ldc
+				if (tags[code[pc + 1] & 0xFF] == CLASS)
+					useClass(code[pc + 1] & 0xFF);
+				pc += 2;
+				break;
+			case 0x13: // ldc_w
+				if (tags[u2(code, pc + 1)] == CLASS)
+					useClass(u2(code, pc + 1));
+				pc += 3;
+				break;
+			case 0xBB: // new
+			case 0xBD: // anewarray
+			case 0xC0: // checkcast
+			case 0xC1: // instanceof
+				useClass(u2(code, pc + 1));
+				pc += 3;
+				break;
+			case 0xC5: // multianewarray
+				useClass(u2(code, pc + 1));
+				pc += 4;
+				break;
+			case 0xAA: { // tableswitch
+				int p = (pc + 4) & ~3;
+				int low = s4(code, p + 4), high = s4(code, p + 8);
+				pc = p + 12 + (high - low + 1) * 4;
+				break;
+			}
+			case 0xAB: { // lookupswitch
+				int p = (pc + 4) & ~3;
+				pc = p + 8 + s4(code, p + 4) * 8;
+				break;
+			}
+			case 0xC4: // wide
+				pc += (code[pc + 1] & 0xFF) == 0x84 ? 6 : 4;
+				break;
+			default:
+				pc += length(op);
+			}
+		}
+		int handlers = in.readUnsignedShort();
+		for (int i = 0; i < handlers; i++) {
+			// Start, end and handler
+			in.readInt();
+			in.readUnsignedShort();
+			useClass(in.readUnsignedShort());
+		}
+		readAttributes();
+	}
+
+	/**
+	 * Length of an instruction of fixed length, including its opcode
+	 */
+	private static int length(int op) throws IOException {
+		if (op == 0x10 || op == 0x12 || op >= 0x15 && op <= 0x19 || op >= 0x36 && op <= 0x3A || op == 0xA9
+				|| op == 0xBC)
+			return 2;
+		if (op == 0x11 || op == 0x13 || op == 0x14 || op == 0x84 || op >= 0x99 && op <= 0xA8
+				|| op >= 0xB2 && op <= 0xB8 || op == 0xBB || op == 0xBD || op == 0xC0 || op == 0xC1 || op == 0xC6
+				|| op == 0xC7)
+			return 3;
+		if (op == 0xC5)
+			return 4;
+		if (op == 0xB9 || op == 0xBA || op == 0xC8 || op == 0xC9)
+			return 5;
+		if (op <= 0xC3)
+			return 1;
+		throw new IOException("Unknown opcode " + op);
+	}
+
+	private static int u2(byte[] b, int i) {
+		return (b[i] & 0xFF) << 8 | b[i + 1] & 0xFF;
+	}
+
+	private static int s4(byte[] b, int i) {
+		return b[i] << 24 | (b[i + 1] & 0xFF) << 16 | (b[i + 2] & 0xFF) << 8 | b[i + 3] & 0xFF;
+	}
+
+	/**
+	 * Binary name held by a Class entry, such as java.util.List or
+	 * [Ljava.util.List; for an array class
+	 *
+	 * @return The name, or NULL for index 0
+	 */
+	private String className(int index) {
+		if (index == 0)
+			return null;
+		return utf[first[index]].replace('/', '.');
+	}
+
+	private void useClass(int index) throws IOException {
+		if (index == 0)
+			return;
+		String s = utf[first[index]];
+		// Array classes are named by their descriptor
+		if (s.startsWith("["))
+			useDescriptor(s);
+		else
+			references.add(s.replace('/', '.'));
+	}
+
+	private void useDescriptor(int index) throws IOException {
+		useDescriptor(utf[index]);
+	}
+
+	/**
+	 * Walk a descriptor or generic signature, such as (ILjava/util/List;)V or
+	 * <T:Ljava/lang/Object;>(Ljava/util/List<TT;>;)V, using every class it names
+	 *
+	 * @throws IOException If the descriptor is malformed
+	 */
+	private void useDescriptor(String s) throws IOException {
+		try {
+			int i = 0;
+			if (s.startsWith("<"))
+				i = typeParameters(s, 1);
+			while (i < s.length())
+				i = type(s, i);
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Malformed descriptor " + s);
+		}
+	}
+
+	/**
+	 * Read the type parameters of a generic signature, each an identifier
+	 * followed by its bounds, such as T:Ljava/lang/Object;
+	 *
+	 * @return Index following the closing '>'
+	 */
+	private int typeParameters(String s, int i) {
+		while (s.charAt(i) != '>') {
+			i = s.indexOf(':', i);
+			// The class bound may be empty, as in T::Ljava/lang/Runnable;
+			while (s.charAt(i) == ':') {
+				i++;
+				char c = s.charAt(i);
+				if (c == 'L' || c == 'T' || c == '[')
+					i = type(s, i);
+			}
+		}
+		return i + 1;
+	}
+
+	/**
+	 * Read the element of a descriptor or signature at "i". Primitive types,
+	 * array dimensions, wildcards and the parentheses of a method are single
+	 * characters
+	 *
+	 * @return Index following the element
+	 */
+	private int type(String s, int i) {
+		switch (s.charAt(i)) {
+		case 'L':
+			return classType(s, i + 1);
+		case 'T': // Type variable
+			while (s.charAt(i) != ';')
+				i++;
+			return i + 1;
+		default:
+			return i + 1;
+		}
+	}
+
+	/**
+	 * Read a class type, with its type arguments if it has any, from its name on
+	 *
+	 * @return Index following the closing ';'
+	 */
+	private int classType(String s, int i) {
+		StringBuilder name = new StringBuilder();
+		while (true) {
+			int end = i;
+			while ("<.;".indexOf(s.charAt(end)) < 0)
+				end++;
+			name.append(s, i, end);
+			i = end;
+			if (s.charAt(i) == '<') {
+				i++;
+				while (s.charAt(i) != '>')
+					i = type(s, i);
+				i++;
+			}
+			if (s.charAt(i) == ';') {
+				references.add(name.toString().replace('/', '.'));
+				return i + 1;
+			}
+			// Inner class of a parameterized class, such as Lfoo/Outer<TT;>.Inner;
+			name.append('$');
+			i++;
+		}
+	}
+
+	/**
+	 * Whether a class has to be shipped for a process to run on another Node.
+	 * Classes of the JDK, and of JSH itself, are already present on every Node
+	 *
+	 * @param c Class referred to by a process
+	 * @return True if the class belongs to the application
+	 */
+	static boolean isShippable(Class<?> c) {
+		if (c.isPrimitive() || c.isArray())
+			return false;
+		ClassLoader cl = c.getClassLoader();
+		if (cl == null || cl == ClassLoader.getPlatformClassLoader())
+			return false;
+		CodeSource source = c.getProtectionDomain().getCodeSource();
+		return JSH == null || source == null || JSH.getLocation() == null
+				|| !JSH.getLocation().equals(source.getLocation());
+	}
+}
@@ -0,0 +1,229 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class DependencyScannerTest {
+
+	static class Base {
+	}
+
+	interface Marker {
+	}
+
+	static class Holder {
+	}
+
+	static class Element {
+	}
+
+	static class Thrown extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+	static class Checked {
+	}
+
+	static class Literal {
+	}
+
+	static class Sibling {
+	}
+
+	static class Fixture extends Base implements Marker {
+		Holder holder;
+		List<Element> elements = new ArrayList<Element>();
+
+		boolean test(Object o) throws IOException {
+			try {
+				Object[] arr = new Element[1];
+				return o instanceof Checked && arr.length == 1 && Literal.class != null;
+			} catch (RuntimeException e) {
+				throw new IOException(e);
+			}
+		}
+
+		void raise() throws Thrown {
+		}
+
+		String looksLikeDescriptor() {
+			return "(Lfake/NotAClass;)Lfake/AlsoNotAClass;";
+		}
+
+		void inner() {
+			new Runnable() {
+				public void run() {
+				}
+			}.run();
+			new Member();
+		}
+
+		static class Member {
+		}
+	}
+
+	static class ParamHelper {
+	}
+
+	static class CallHelper {
+	}
+
+	static class ArrayHelper {
+	}
+
+	static class ElementHelper {
+	}
+
+	static class BoundHelper {
+	}
+
+	static class WildcardHelper {
+	}
+
+	static class GenericOuter<X> {
+		class Inner {
+		}
+	}
+
+	// The helpers are only named by the descriptors of methods
+	static class PrimitiveParam {
+		int f(int a, ParamHelper h) {
+			return a;
+		}
+	}
+
+	static class Callee {
+		static void f(long a, CallHelper h) {
+		}
+	}
+
+	static class CallSite {
+		void g() {
+			Callee.f(1, null);
+		}
+	}
+
+	static class ArrayParam {
+		void h(double d, ArrayHelper[][] a) {
+		}
+	}
+
+	// The helpers are only named by generic signatures
+	static class GenericSignature {
+		List<ElementHelper> elements;
+		GenericOuter<String>.Inner inner;
+
+		<T extends BoundHelper> void m(Map<T, ? extends WildcardHelper> m) {
+		}
+	}
+
+	private static byte[] bytecodeOf(Class<?> c) throws IOException {
+		InputStream in = c.getClassLoader().getResourceAsStream(c.getName().replace('.', '/') + ".class");
+		try {
+			return in.readAllBytes();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static Set<String> referencesOf(Class<?> c) throws IOException {
+		return new DependencyScanner(bytecodeOf(c)).references();
+	}
+
+	@Test
+	public void testSupertypesAndMemberTypes() throws IOException {
+		Set<String> refs = referencesOf(Fixture.class);
+		assertTrue(refs.contains(Base.class.getName()));
+		assertTrue(refs.contains(Marker.class.getName()));
+		assertTrue(refs.contains(Holder.class.getName()));
+		// Only named by the generic signature of a field, and as an array
+		assertTrue(refs.contains(Element.class.getName()));
+		assertTrue(refs.contains(Thrown.class.getName()));
+	}
+
+	@Test
+	public void testObjectParameterAfterPrimitive() throws IOException {
+		assertTrue(referencesOf(PrimitiveParam.class).contains(ParamHelper.class.getName()));
+	}
+
+	@Test
+	public void testCallSiteWithPrimitiveParameter() throws IOException {
+		Set<String> refs = referencesOf(CallSite.class);
+		assertTrue(refs.contains(Callee.class.getName()));
+		assertTrue(refs.contains(CallHelper.class.getName()));
+	}
+
+	@Test
+	public void testArrayParameter() throws IOException {
+		assertTrue(referencesOf(ArrayParam.class).contains(ArrayHelper.class.getName()));
+	}
+
+	@Test
+	public void testGenericSignatures() throws IOException {
+		Set<String> refs = referencesOf(GenericSignature.class);
+		assertTrue(refs.contains(ElementHelper.class.getName()));
+		assertTrue(refs.contains(BoundHelper.class.getName()));
+		assertTrue(refs.contains(WildcardHelper.class.getName()));
+		assertTrue(refs.contains(GenericOuter.Inner.class.getName()));
+		// Type variables are not classes
+		assertFalse(refs.contains("T"));
+	}
+
+	@Test
+	public void testClassesUsedByCode() throws IOException {
+		Set<String> refs = referencesOf(Fixture.class);
+		assertTrue(refs.contains(Checked.class.getName()));
+		assertTrue(refs.contains(Literal.class.getName()));
+		assertTrue(refs.contains(RuntimeException.class.getName()));
+		assertTrue(refs.contains(IOException.class.getName()));
+	}
+
+	@Test
+	public void testStringConstantsAreNotClasses() throws IOException {
+		Set<String> refs = referencesOf(Fixture.class);
+		assertFalse(refs.contains("fake.NotAClass"));
+		assertFalse(refs.contains("fake.AlsoNotAClass"));
+	}
+
+	@Test
+	public void testOwnNestedClassesOnly() throws IOException {
+		Set<String> refs = referencesOf(Fixture.class);
+		assertTrue(refs.contains(Fixture.Member.class.getName()));
+		assertTrue(refs.contains(Fixture.class.getName() + "$1"));
+		assertFalse(refs.contains(Fixture.class.getName()));
+		assertFalse(refs.contains(Sibling.class.getName()));
+		assertFalse(refs.contains(DependencyScannerTest.class.getName()));
+	}
+
+	@Test
+	public void testNestHost() throws IOException {
+		assertEquals(DependencyScannerTest.class.getName(), new DependencyScanner(bytecodeOf(Fixture.Member.class)).getNestHost());
+		assertNull(new DependencyScanner(bytecodeOf(DependencyScannerTest.class)).getNestHost());
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsMalformedBytecode() throws IOException {
+		new DependencyScanner(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+	}
+
+	@Test
+	public void testJdkClassesAreNotShipped() {
+		assertFalse(DependencyScanner.isShippable(String.class));
+		assertFalse(DependencyScanner.isShippable(Serializable.class));
+		assertFalse(DependencyScanner.isShippable(int.class));
+		assertFalse(DependencyScanner.isShippable(Fixture[].class));
+		assertFalse(DependencyScanner.isShippable(ClassBundle.class));
+	}
+}
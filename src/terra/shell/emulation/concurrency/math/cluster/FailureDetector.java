@@ -0,0 +1,87 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+/**
+ * Phi accrual failure detector for a single Node. Instead of declaring a Node
+ * dead after a fixed timeout, the detector learns the distribution of the
+ * intervals between the Node's heartbeats and reports phi, the suspicion that
+ * the Node has failed given how long it has been silent. A phi of 1 means a 10%
+ * chance of a false alarm, 2 means 1%, 3 means 0.1% and so on.
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+final class FailureDetector {
+	private static final int WINDOW = 100;
+
+	private final long[] intervals = new long[WINDOW];
+	private final long minStdDeviation, acceptablePause;
+	private int count, next;
+	private long sum, squares, last;
+
+	/**
+	 * Create a detector, the first heartbeat is taken to be now
+	 *
+	 * @param expectedInterval Interval at which heartbeats are sent, in MS. Used
+	 *                         until real intervals have been observed
+	 * @param acceptablePause  Silence tolerated on top of the observed intervals
+	 *                         before suspicion rises, in MS
+	 */
+	public FailureDetector(long expectedInterval, long acceptablePause) {
+		this.minStdDeviation = Math.max(1, expectedInterval / 5);
+		this.acceptablePause = acceptablePause;
+		// Seed the window with the expected interval, so that phi is meaningful
+		// before the first real interval arrives
+		add(expectedInterval);
+		last = System.currentTimeMillis();
+	}
+
+	/**
+	 * Record a heartbeat from the Node
+	 *
+	 * @param at Time the heartbeat was received, in MS
+	 */
+	public synchronized void heartbeat(long at) {
+		if (at <= last)
+			return;
+		add(at - last);
+		last = at;
+	}
+
+	private void add(long interval) {
+		if (count == WINDOW) {
+			long old = intervals[next];
+			sum -= old;
+			squares -= old * old;
+		} else
+			count++;
+		intervals[next] = interval;
+		next = (next + 1) % WINDOW;
+		sum += interval;
+		squares += interval * interval;
+	}
+
+	/**
+	 * Time of the last heartbeat, in MS
+	 */
+	public synchronized long lastHeartbeat() {
+		return last;
+	}
+
+	/**
+	 * Suspicion level that the Node has failed
+	 *
+	 * @param now Current time, in MS
+	 * @return Phi, 0 if the Node was just heard from
+	 */
+	public synchronized double phi(long now) {
+		double mean = (double) sum / count;
+		double variance = (double) squares / count - mean * mean;
+		double stdDeviation = Math.max(minStdDeviation, Math.sqrt(Math.max(0, variance)));
+		double y = (now - last - (mean + acceptablePause)) / stdDeviation;
+		// Logistic approximation of the normal cumulative distribution, which stays
+		// accurate far into the tail where 1 - CDF would otherwise round to 0
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		double p = y > 0 ? e / (1.0 + e) : 1.0 - 1.0 / (1.0 + e);
+		return -Math.log10(Math.max(p, Double.MIN_NORMAL));
+	}
+}
@@ -0,0 +1,103 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FailureDetectorTest {
+
+	// -log10 of the normal tail beyond 0, 1, 2 and 3 standard deviations
+	private static final double PHI_0 = -Math.log10(0.5), PHI_1 = -Math.log10(0.158655),
+			PHI_2 = -Math.log10(0.0227501), PHI_3 = -Math.log10(0.0013499);
+	private static final double DELTA = 0.05;
+
+	/**
+	 * Feed heartbeats at the given intervals, repeated to fill the whole window
+	 *
+	 * @return Time of the last heartbeat
+	 */
+	private static long beat(FailureDetector d, long... intervals) {
+		long t = d.lastHeartbeat();
+		for (int i = 0; i < 100; i++) {
+			t += intervals[i % intervals.length];
+			d.heartbeat(t);
+		}
+		return t;
+	}
+
+	@Test
+	public void testSteadyHeartbeats() {
+		FailureDetector d = new FailureDetector(1000, 0);
+		long last = beat(d, 1000);
+		// Intervals without variance fall back to a fifth of the expected interval
+		assertEquals(PHI_0, d.phi(last + 1000), DELTA);
+		assertEquals(PHI_1, d.phi(last + 1200), DELTA);
+		assertEquals(PHI_2, d.phi(last + 1400), DELTA);
+		assertEquals(PHI_3, d.phi(last + 1600), DELTA);
+	}
+
+	@Test
+	public void testJitteryHeartbeats() {
+		FailureDetector d = new FailureDetector(1000, 0);
+		// Mean 1000, standard deviation 500
+		long last = beat(d, 500, 1500);
+		assertEquals(PHI_0, d.phi(last + 1000), DELTA);
+		assertEquals(PHI_1, d.phi(last + 1500), DELTA);
+		assertEquals(PHI_2, d.phi(last + 2000), DELTA);
+		// The same silence is far more suspicious from a steady Node
+		FailureDetector steady = new FailureDetector(1000, 0);
+		assertTrue(steady.phi(beat(steady, 1000) + 2000) > d.phi(last + 2000) + 5);
+	}
+
+	@Test
+	public void testAcceptablePause() {
+		FailureDetector d = new FailureDetector(1000, 500);
+		long last = beat(d, 1000);
+		assertEquals(PHI_0, d.phi(last + 1500), DELTA);
+		assertEquals(PHI_1, d.phi(last + 1700), DELTA);
+	}
+
+	@Test
+	public void testPhiRisesWithSilence() {
+		FailureDetector d = new FailureDetector(1000, 0);
+		long last = beat(d, 900, 1100, 1000);
+		assertTrue(d.phi(last) < 0.01);
+		double previous = 0;
+		for (long silence = 0; silence <= 10000; silence += 250) {
+			double phi = d.phi(last + silence);
+			assertTrue(phi >= previous);
+			assertTrue(!Double.isInfinite(phi) && !Double.isNaN(phi));
+			previous = phi;
+		}
+		assertTrue(previous > 100);
+	}
+
+	@Test
+	public void testOldIntervalsLeaveWindow() {
+		FailureDetector d = new FailureDetector(1000, 0);
+		beat(d, 1000);
+		// A full window of slower heartbeats replaces the old ones entirely
+		long last = beat(d, 4000);
+		assertEquals(PHI_0, d.phi(last + 4000), DELTA);
+		assertEquals(PHI_1, d.phi(last + 4200), DELTA);
+	}
+
+	@Test
+	public void testLateHeartbeatIsIgnored() {
+		FailureDetector d = new FailureDetector(1000, 0);
+		long last = beat(d, 1000);
+		d.heartbeat(last - 500);
+		d.heartbeat(last);
+		assertEquals(last, d.lastHeartbeat());
+		assertEquals(PHI_0, d.phi(last + 1000), DELTA);
+	}
+
+	@Test
+	public void testExpectedIntervalBeforeFirstHeartbeat() {
+		FailureDetector d = new FailureDetector(2000, 0);
+		long start = d.lastHeartbeat();
+		assertEquals(PHI_0, d.phi(start + 2000), DELTA);
+		assertTrue(d.phi(start + 6000) > 8);
+	}
+}
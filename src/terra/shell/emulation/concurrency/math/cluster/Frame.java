@@ -0,0 +1,303 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single message of the binary cluster protocol. On the wire a Frame is its
+ * type code (1 byte), followed by the length of its payload (4 bytes), followed
+ * by the payload itself. If the high bit of the type code is set, the payload is
+ * compressed, and starts with the id of its Codec (1 byte) and its length once
+ * decompressed (4 bytes).
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+final class Frame {
+
+	/**
+	 * Version of the binary protocol, exchanged during the handshake
+	 */
+	static final int PROTOCOL_VERSION = 14;
+	/**
+	 * Size of a Frame header, type code plus payload length
+	 */
+	static final int HEADER_SIZE = 5;
+	/**
+	 * Largest payload a peer is allowed to announce, unless configured otherwise
+	 * with "maxFrameSize". Larger data is sent as a FILE
+	 */
+	static final int MAX_PAYLOAD = 8 * 1024 * 1024;
+	/**
+	 * Set in the type code of a Frame whose payload is compressed
+	 */
+	static final int COMPRESSED = 0x80;
+	/**
+	 * Size of the header of a compressed payload, Codec id plus decompressed length
+	 */
+	static final int COMPRESSION_HEADER_SIZE = 5;
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private final FrameType type;
+	private byte[] payload;
+	// Whether the payload is still in its compressed wire form
+	private boolean compressed;
+	// Largest payload it may decompress to
+	private int maxPayload = MAX_PAYLOAD;
+
+	public Frame(FrameType type) {
+		this(type, EMPTY);
+	}
+
+	public Frame(FrameType type, byte[] payload) {
+		this.type = type;
+		this.payload = payload;
+	}
+
+	private Frame(FrameType type, byte[] payload, boolean compressed, int maxPayload) {
+		this(type, payload);
+		this.compressed = compressed;
+		this.maxPayload = maxPayload;
+	}
+
+	/**
+	 * Create a Frame carrying a compressed payload
+	 *
+	 * @param type   Type of the Frame
+	 * @param codec  Codec the payload was compressed with
+	 * @param rawLen Length of the payload before compression
+	 * @param packed The compressed payload
+	 * @return The Frame, its payload is decompressed once read
+	 */
+	static Frame compressed(FrameType type, Codec codec, int rawLen, byte[] packed) {
+		byte[] wire = new byte[COMPRESSION_HEADER_SIZE + packed.length];
+		ByteBuffer.wrap(wire).put(codec.asByte()).putInt(rawLen).put(packed);
+		return new Frame(type, wire, true, rawLen);
+	}
+
+	public FrameType getType() {
+		return type;
+	}
+
+	/**
+	 * Get the payload of this Frame, a compressed payload is decompressed on first
+	 * access, so that it happens on the thread handling the Frame rather than the
+	 * one reading it
+	 *
+	 * @return The decompressed payload
+	 * @throws IOException If the compressed payload is malformed, or claims to
+	 *                     decompress to more than the payload limit, or more than
+	 *                     its Codec can expand it to
+	 */
+	public byte[] getPayload() throws IOException {
+		if (compressed) {
+			if (payload.length < COMPRESSION_HEADER_SIZE)
+				throw new IOException("Truncated compressed " + type + " frame");
+			ByteBuffer b = ByteBuffer.wrap(payload);
+			Codec codec = Codec.fromByte(b.get());
+			int rawLen = b.getInt();
+			int packedLen = payload.length - COMPRESSION_HEADER_SIZE;
+			if (codec == null || rawLen < 0 || rawLen > maxPayload)
+				throw new IOException("Invalid compression header on " + type + " frame");
+			// Checked before the decompressed payload is allocated
+			if (rawLen > (long) packedLen * codec.maxRatio())
+				throw new IOException(type + " frame claims to decompress " + packedLen + " bytes to " + rawLen
+						+ ", more than " + codec + " can");
+			payload = codec.decompress(payload, COMPRESSION_HEADER_SIZE, packedLen, rawLen);
+			compressed = false;
+		}
+		return payload;
+	}
+
+	/**
+	 * Whether or not the payload is sent compressed
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Number of bytes this Frame takes on the wire
+	 */
+	public int wireSize() {
+		return HEADER_SIZE + payload.length;
+	}
+
+	/**
+	 * Open the payload of this Frame for reading
+	 *
+	 * @return DataInputStream over the payload
+	 */
+	public DataInputStream payloadIn() throws IOException {
+		return new DataInputStream(new ByteArrayInputStream(getPayload()));
+	}
+
+	public int getInt() throws IOException {
+		return ByteBuffer.wrap(getPayload()).getInt();
+	}
+
+	public long getLong() throws IOException {
+		return ByteBuffer.wrap(getPayload()).getLong();
+	}
+
+	public boolean getBoolean() throws IOException {
+		byte[] b = getPayload();
+		return b.length > 0 && b[0] != 0;
+	}
+
+	public String getString() throws IOException {
+		return new String(getPayload(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Check that this Frame is of the expected type
+	 *
+	 * @param expected FrameType that the protocol requires at this point
+	 * @return This Frame
+	 * @throws IOException If this Frame is of another type
+	 */
+	public Frame expect(FrameType expected) throws IOException {
+		if (type != expected) {
+			String detail = (type == FrameType.STATUS) ? " (" + getString() + ")" : "";
+			throw new IOException("Expected " + expected + " frame, got " + type + detail
+					+ ", remote resources are out of sync");
+		}
+		return this;
+	}
+
+	/**
+	 * Write this Frame to a stream, the stream is not flushed
+	 *
+	 * @param out Stream to write to
+	 * @throws IOException
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeByte(typeCode());
+		out.writeInt(payload.length);
+		out.write(payload);
+	}
+
+	/**
+	 * Encode this Frame for a channel write, the payload is wrapped rather than
+	 * copied
+	 *
+	 * @return Header and payload buffers, in read mode
+	 */
+	public ByteBuffer[] toBuffers() {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.put(typeCode());
+		header.putInt(payload.length);
+		header.flip();
+		return new ByteBuffer[] { header, ByteBuffer.wrap(payload) };
+	}
+
+	private byte typeCode() {
+		return (byte) (compressed ? type.asByte() | COMPRESSED : type.asByte());
+	}
+
+	/**
+	 * Read the next Frame from a stream, blocking until it has fully arrived
+	 *
+	 * @param in         Stream to read from
+	 * @param maxPayload Largest payload to accept, in bytes
+	 * @return The Frame read
+	 * @throws IOException If the stream ends, or the Frame is malformed
+	 */
+	public static Frame read(DataInput in, int maxPayload) throws IOException {
+		byte code = in.readByte();
+		FrameType type = checkType(code);
+		byte[] payload = new byte[checkLength(in.readInt(), maxPayload)];
+		in.readFully(payload);
+		return of(code, type, payload, maxPayload);
+	}
+
+	/**
+	 * Create a Frame as received from the wire
+	 *
+	 * @param code       Type code read, including the compression bit
+	 * @param type       FrameType of the code
+	 * @param payload    Payload read
+	 * @param maxPayload Largest payload to accept once decompressed, in bytes
+	 * @return The Frame
+	 */
+	static Frame of(byte code, FrameType type, byte[] payload, int maxPayload) {
+		return new Frame(type, payload, (code & COMPRESSED) != 0, maxPayload);
+	}
+
+	/**
+	 * Find the FrameType of a type code read from the wire
+	 *
+	 * @param code Type code, including the compression bit
+	 * @return FrameType of the code
+	 * @throws IOException If the code is unknown
+	 */
+	static FrameType checkType(byte code) throws IOException {
+		FrameType type = FrameType.fromByte((byte) (code & ~COMPRESSED));
+		if (type == null)
+			throw new IOException("Unknown frame type: " + code);
+		return type;
+	}
+
+	/**
+	 * Check a payload length read from the wire, before anything is allocated for
+	 * it
+	 *
+	 * @param length     Length read
+	 * @param maxPayload Largest payload to accept, in bytes
+	 * @return The length
+	 * @throws IOException If the length is negative or above the limit
+	 */
+	static int checkLength(int length, int maxPayload) throws IOException {
+		if (length < 0 || length > maxPayload)
+			throw new IOException("Invalid frame length: " + length);
+		return length;
+	}
+
+	public static Frame ofInt(FrameType type, int i) {
+		return new Frame(type, ByteBuffer.allocate(4).putInt(i).array());
+	}
+
+	public static Frame ofLong(FrameType type, long l) {
+		return new Frame(type, ByteBuffer.allocate(8).putLong(l).array());
+	}
+
+	public static Frame ofBoolean(FrameType type, boolean b) {
+		return new Frame(type, new byte[] { (byte) (b ? 1 : 0) });
+	}
+
+	public static Frame ofString(FrameType type, String s) {
+		return new Frame(type, s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public static Frame status(String s) {
+		return ofString(FrameType.STATUS, s);
+	}
+
+	/**
+	 * Build the payload of a Frame field by field
+	 *
+	 * @author schirripad@moravian.edu
+	 *
+	 */
+	static final class Builder {
+		private final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(bout);
+
+		public DataOutputStream out() {
+			return out;
+		}
+
+		public Frame build(FrameType type) throws IOException {
+			out.flush();
+			return new Frame(type, bout.toByteArray());
+		}
+	}
+}
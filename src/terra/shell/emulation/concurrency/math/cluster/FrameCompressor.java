@@ -0,0 +1,145 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.io.IOException;
+
+/**
+ * Decides, Frame by Frame, whether a payload is worth compressing before it is
+ * sent to a peer, and with which of the codecs the peer accepts. A payload is
+ * compressed when compressing it, sending the smaller payload and decompressing
+ * it on the other end is expected to take less time than sending it as is. The
+ * expectation is built from the measured speed and ratio of each codec, and the
+ * measured speed of the link to the peer. Small payloads are never compressed.
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+final class FrameCompressor {
+	/**
+	 * Compresses nothing, used until a handshake has been completed
+	 */
+	static final FrameCompressor NONE = new FrameCompressor(new Codec[0], new Link(1), Integer.MAX_VALUE);
+
+	// Decompressing is assumed to cost this fraction of compressing
+	private static final double DECOMPRESS_COST = 0.3;
+	// While compression does not pay off, every n-th eligible payload is still
+	// compressed, so that the codec measurements follow the data being sent
+	private static final int EXPLORE_INTERVAL = 32;
+	private static final double EWMA_ALPHA = 0.2;
+	// Measured cost in NS per input byte, and output/input ratio, of each codec.
+	// Seeded with rough figures, which are replaced as payloads are compressed
+	private static final double[] nsPerByte = new double[Codec.values().length];
+	private static final double[] ratio = new double[Codec.values().length];
+	static {
+		nsPerByte[Codec.LZ.ordinal()] = 3;
+		ratio[Codec.LZ.ordinal()] = 0.55;
+		nsPerByte[Codec.DEFLATE.ordinal()] = 30;
+		ratio[Codec.DEFLATE.ordinal()] = 0.4;
+	}
+
+	private final Codec[] codecs;
+	private final Link link;
+	private final int threshold;
+	private int skipped;
+
+	/**
+	 * @param codecs    Codecs accepted by the peer, and enabled locally
+	 * @param link      Speed of the link to the peer
+	 * @param threshold Smallest payload to consider compressing, in bytes
+	 */
+	public FrameCompressor(Codec[] codecs, Link link, int threshold) {
+		this.codecs = codecs;
+		this.link = link;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Compress a Frame's payload if that is expected to pay off
+	 *
+	 * @param f Frame to be sent
+	 * @return A compressed copy of the Frame, or the Frame itself
+	 * @throws IOException If the Frame's payload could not be read
+	 */
+	public Frame compress(Frame f) throws IOException {
+		if (codecs.length == 0 || f.isCompressed())
+			return f;
+		byte[] raw = f.getPayload();
+		int n = raw.length;
+		if (n < threshold)
+			return f;
+		double msPerByte = 1.0 / link.bytesPerMs();
+		Codec choice = null;
+		double best = n * msPerByte;
+		synchronized (FrameCompressor.class) {
+			for (Codec c : codecs) {
+				int i = c.ordinal();
+				double cost = n * (nsPerByte[i] * (1 + DECOMPRESS_COST) / 1e6 + ratio[i] * msPerByte);
+				if (cost < best) {
+					best = cost;
+					choice = c;
+				}
+			}
+		}
+		if (choice == null) {
+			synchronized (this) {
+				if (++skipped % EXPLORE_INTERVAL != 0)
+					return f;
+			}
+			choice = codecs[0];
+		}
+		long start = System.nanoTime();
+		byte[] packed = choice.compress(raw);
+		record(choice, n, packed.length, System.nanoTime() - start);
+		if (packed.length + Frame.COMPRESSION_HEADER_SIZE >= n)
+			return f;
+		return Frame.compressed(f.getType(), choice, n, packed);
+	}
+
+	/**
+	 * Record how long sending a Frame to the peer took, see Link.sample()
+	 */
+	void sent(long bytes, int sendBuffer, long nanos) {
+		link.sample(bytes, sendBuffer, nanos);
+	}
+
+	private static synchronized void record(Codec c, int in, int out, long nanos) {
+		int i = c.ordinal();
+		nsPerByte[i] = EWMA_ALPHA * ((double) nanos / in) + (1 - EWMA_ALPHA) * nsPerByte[i];
+		ratio[i] = EWMA_ALPHA * Math.min(1.0, (double) out / in) + (1 - EWMA_ALPHA) * ratio[i];
+	}
+
+	/**
+	 * Measured speed of the link to a Node, shared by every connection to it
+	 */
+	static final class Link {
+		// Writes smaller than this many multiples of the socket send buffer mostly
+		// measure copying into the buffer, not the link
+		private static final int MIN_SAMPLE_BUFFERS = 2;
+		private double bytesPerMs;
+
+		/**
+		 * @param bytesPerMs Assumed speed until the link has been measured
+		 */
+		public Link(double bytesPerMs) {
+			this.bytesPerMs = Math.max(1, bytesPerMs);
+		}
+
+		public synchronized double bytesPerMs() {
+			return bytesPerMs;
+		}
+
+		/**
+		 * Record a blocking write to the link. Once the socket send buffer is full, a
+		 * write only completes as fast as the link drains it
+		 *
+		 * @param bytes      Bytes written
+		 * @param sendBuffer Size of the socket send buffer
+		 * @param nanos      Time the write and flush took
+		 */
+		public synchronized void sample(long bytes, int sendBuffer, long nanos) {
+			if (bytes < (long) sendBuffer * MIN_SAMPLE_BUFFERS || nanos <= 0)
+				return;
+			double measured = (bytes - sendBuffer) / (nanos / 1e6);
+			bytesPerMs = EWMA_ALPHA * measured + (1 - EWMA_ALPHA) * bytesPerMs;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Incrementally decodes Frames from bytes read off a non-blocking channel.
+ * Bytes may arrive in any split, a Frame is only emitted once its header and
+ * full payload have arrived.
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+final class FrameDecoder {
+	private final ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_SIZE);
+	private final int maxPayload;
+	private byte code;
+	private FrameType type;
+	private ByteBuffer body;
+
+	/**
+	 * @param maxPayload Largest payload to accept, in bytes. A longer Frame is
+	 *                   rejected before anything is allocated for it
+	 */
+	public FrameDecoder(int maxPayload) {
+		this.maxPayload = maxPayload;
+	}
+
+	/**
+	 * Consume the remaining bytes of "in", adding every completed Frame to "out".
+	 * Decoding stops right after a FILE Frame, the bytes following it are the raw
+	 * content of the file
+	 *
+	 * @param in  Bytes read from the channel, in read mode
+	 * @param out List to add completed Frames to
+	 * @throws IOException If a malformed Frame header is received
+	 */
+	public void decode(ByteBuffer in, List<Frame> out) throws IOException {
+		while (in.hasRemaining()) {
+			if (body == null) {
+				transfer(in, header);
+				if (header.hasRemaining())
+					return;
+				header.flip();
+				code = header.get();
+				int length = header.getInt();
+				header.clear();
+				type = Frame.checkType(code);
+				body = ByteBuffer.allocate(Frame.checkLength(length, maxPayload));
+			}
+			transfer(in, body);
+			if (body.hasRemaining())
+				return;
+			Frame f = Frame.of(code, type, body.array(), maxPayload);
+			out.add(f);
+			body = null;
+			type = null;
+			if (f.getType() == FrameType.FILE)
+				return;
+		}
+	}
+
+	private static void transfer(ByteBuffer src, ByteBuffer dst) {
+		int n = Math.min(src.remaining(), dst.remaining());
+		if (n == 0)
+			return;
+		ByteBuffer slice = src.duplicate();
+		slice.limit(slice.position() + n);
+		dst.put(slice);
+		src.position(src.position() + n);
+	}
+}
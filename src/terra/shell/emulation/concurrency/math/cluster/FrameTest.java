@@ -0,0 +1,130 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FrameTest {
+
+	private static byte[] wireOf(Frame... frames) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bout);
+		for (Frame f : frames)
+			f.write(out);
+		out.flush();
+		return bout.toByteArray();
+	}
+
+	private static byte[] header(FrameType type, int length) {
+		return ByteBuffer.allocate(Frame.HEADER_SIZE).put(type.asByte()).putInt(length).array();
+	}
+
+	@Test
+	public void testStreamRoundTrip() throws IOException {
+		Frame.Builder b = new Frame.Builder();
+		b.out().writeInt(42);
+		b.out().writeUTF("QUEUED");
+		byte[] wire = wireOf(b.build(FrameType.ACK), Frame.status("EXISTS"), new Frame(FrameType.PING));
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(wire));
+
+		Frame ack = Frame.read(in, Frame.MAX_PAYLOAD).expect(FrameType.ACK);
+		DataInputStream payload = ack.payloadIn();
+		assertEquals(42, payload.readInt());
+		assertEquals("QUEUED", payload.readUTF());
+		assertEquals("EXISTS", Frame.read(in, Frame.MAX_PAYLOAD).expect(FrameType.STATUS).getString());
+		assertEquals(0, Frame.read(in, Frame.MAX_PAYLOAD).expect(FrameType.PING).getPayload().length);
+	}
+
+	@Test
+	public void testDecoderByteByByte() throws IOException {
+		byte[] wire = wireOf(Frame.ofLong(FrameType.PONG, 123456789L), Frame.ofString(FrameType.PASSIVE, "abc"));
+		FrameDecoder decoder = new FrameDecoder(Frame.MAX_PAYLOAD);
+		List<Frame> out = new ArrayList<Frame>();
+		for (int i = 0; i < wire.length; i++) {
+			decoder.decode(ByteBuffer.wrap(wire, i, 1), out);
+			// No Frame is emitted before its last byte
+			if (i < Frame.HEADER_SIZE + 8 - 1)
+				assertTrue(out.isEmpty());
+		}
+		assertEquals(2, out.size());
+		assertEquals(123456789L, out.get(0).expect(FrameType.PONG).getLong());
+		assertEquals("abc", out.get(1).expect(FrameType.PASSIVE).getString());
+	}
+
+	@Test
+	public void testDecoderSplitAcrossReads() throws IOException {
+		byte[] payload = new byte[10000];
+		for (int i = 0; i < payload.length; i++)
+			payload[i] = (byte) i;
+		byte[] wire = wireOf(new Frame(FrameType.OUTPUT, payload), new Frame(FrameType.PING));
+		FrameDecoder decoder = new FrameDecoder(Frame.MAX_PAYLOAD);
+		List<Frame> out = new ArrayList<Frame>();
+		decoder.decode(ByteBuffer.wrap(wire, 0, 3), out);
+		decoder.decode(ByteBuffer.wrap(wire, 3, 5000), out);
+		assertTrue(out.isEmpty());
+		decoder.decode(ByteBuffer.wrap(wire, 5003, wire.length - 5003), out);
+		assertEquals(2, out.size());
+		assertArrayEquals(payload, out.get(0).getPayload());
+		assertEquals(FrameType.PING, out.get(1).getType());
+	}
+
+	@Test
+	public void testDecoderStopsAfterFile() throws IOException {
+		byte[] wire = wireOf(Frame.ofLong(FrameType.FILE, 4));
+		ByteBuffer in = ByteBuffer.allocate(wire.length + 4);
+		in.put(wire).put(new byte[] { 1, 2, 3, 4 }).flip();
+		List<Frame> out = new ArrayList<Frame>();
+		new FrameDecoder(Frame.MAX_PAYLOAD).decode(in, out);
+		assertEquals(1, out.size());
+		// The raw file content is left for the caller
+		assertEquals(4, in.remaining());
+	}
+
+	@Test(expected = IOException.class)
+	public void testDecoderRejectsOversizedLength() throws IOException {
+		new FrameDecoder(1024).decode(ByteBuffer.wrap(header(FrameType.PROCESS, 1025)), new ArrayList<Frame>());
+	}
+
+	@Test(expected = IOException.class)
+	public void testDecoderRejectsHugeLength() throws IOException {
+		// Announcing nearly 2 GB must fail before anything is allocated
+		new FrameDecoder(Frame.MAX_PAYLOAD).decode(ByteBuffer.wrap(header(FrameType.PROCESS, Integer.MAX_VALUE - 8)),
+				new ArrayList<Frame>());
+	}
+
+	@Test(expected = IOException.class)
+	public void testDecoderRejectsNegativeLength() throws IOException {
+		new FrameDecoder(Frame.MAX_PAYLOAD).decode(ByteBuffer.wrap(header(FrameType.PROCESS, -1)),
+				new ArrayList<Frame>());
+	}
+
+	@Test(expected = IOException.class)
+	public void testDecoderRejectsUnknownType() throws IOException {
+		new FrameDecoder(Frame.MAX_PAYLOAD).decode(ByteBuffer.wrap(new byte[] { 0x7F, 0, 0, 0, 0 }),
+				new ArrayList<Frame>());
+	}
+
+	@Test(expected = IOException.class)
+	public void testStreamRejectsOversizedLength() throws IOException {
+		Frame.read(new DataInputStream(new ByteArrayInputStream(header(FrameType.BUNDLE, 2048))), 1024);
+	}
+
+	@Test
+	public void testLengthAtLimitIsAccepted() throws IOException {
+		byte[] wire = wireOf(new Frame(FrameType.OUTPUT, new byte[1024]));
+		assertEquals(1024, Frame.read(new DataInputStream(new ByteArrayInputStream(wire)), 1024).getPayload().length);
+		assertFalse(Frame.read(new DataInputStream(new ByteArrayInputStream(wire)), 1024).isCompressed());
+	}
+}
@@ -0,0 +1,128 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+/**
+ * Types of Frames which can be sent between two Nodes using the binary cluster
+ * protocol. The code of each type is written as the first byte of a Frame
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+enum FrameType {
+
+	/**
+	 * Latency query, answered with PONG
+	 */
+	PING(1),
+	/**
+	 * Response to a PING, replaces the old CCSERVER response. Carries the current
+	 * NodeLoad of the responding Node
+	 */
+	PONG(2),
+	/**
+	 * Request to execute a JProcess passively on the remote Node, carries the hash
+	 * of the ClassBundle the JProcess needs
+	 */
+	PASSIVE(3),
+	/**
+	 * The ReturnValue of an ASYNCHRONOUS JProcess, sent back on the connection
+	 * which carried the process, ahead of its COMPLETION or DONE. Carries the id
+	 * of the process (0 for PASSIVE) followed by the serialized ReturnValue,
+	 * which starts with the id of its ProcessSerializer
+	 */
+	RET(4),
+	/**
+	 * Short text reply, such as EXISTS, OVER_LIMIT or FAIL:message
+	 */
+	STATUS(6),
+	/**
+	 * A ClassBundle, sent when the remote Node does not have it cached yet
+	 */
+	BUNDLE(7),
+	/**
+	 * Priority followed by the serialized JProcess, which starts with the id of
+	 * its ProcessSerializer
+	 */
+	PROCESS(9),
+	/**
+	 * Sent once a remotely executed JProcess has finished, carries whether or
+	 * not the process ran successfully, followed by the time the Node took to
+	 * de-serialize it, the time it waited in the queue and the time it ran for,
+	 * all in NS
+	 */
+	COMPLETION(10),
+	/**
+	 * Pipelined request to execute a JProcess, carries a submission id chosen by
+	 * the sender, the hash of the process's ClassBundle, its priority and the
+	 * serialized process, see PROCESS. Many SUBMITs may be in flight on one
+	 * connection
+	 */
+	SUBMIT(11),
+	/**
+	 * Acknowledges a SUBMIT, carries its id and QUEUED, NEED_BUNDLE, OVER_LIMIT or
+	 * FAIL:message
+	 */
+	ACK(12),
+	/**
+	 * Sent once a submitted JProcess has finished, carries its id and whether or
+	 * not the process ran successfully, followed by the same timings as a
+	 * COMPLETION
+	 */
+	DONE(13),
+	/**
+	 * A chunk of a remote JProcess's output, carries the id of the process (0 for
+	 * PASSIVE) followed by the output bytes
+	 */
+	OUTPUT(14),
+	/**
+	 * Grants a remote JProcess credit to send more output, carries the id of the
+	 * process and the number of bytes
+	 */
+	CREDIT(15),
+	/**
+	 * Cancels a SUBMIT, carries its id. A process which has not started yet is
+	 * dropped, a running one is halted, either way it is reported with a failed
+	 * DONE
+	 */
+	CANCEL(16),
+	/**
+	 * Stages an asset on the Node ahead of the processes which use it, carries the
+	 * asset's key, version and whether the asset is the file sent ahead in a FILE,
+	 * followed by the content of an asset which is not. Answered with a STATUS of
+	 * STAGED, STALE, OVER_LIMIT or FAIL:message
+	 */
+	STAGE(17),
+	/**
+	 * Drops a staged asset, carries its key. Answered with a STATUS of UNSTAGED or
+	 * UNKNOWN
+	 */
+	UNSTAGE(18),
+	/**
+	 * Carries the size of a file whose raw content follows the Frame, sent
+	 * straight from the file to the socket. The receiver spools the content to a
+	 * file, which is claimed by the request following the FILE, such as a STAGE
+	 */
+	FILE(19);
+
+	private final byte code;
+
+	FrameType(int code) {
+		this.code = (byte) code;
+	}
+
+	public byte asByte() {
+		return code;
+	}
+
+	/**
+	 * Find the FrameType which is represented by the given code
+	 *
+	 * @param code Code read from the wire
+	 * @return FrameType for this code, or NULL if the code is unknown
+	 */
+	public static FrameType fromByte(byte code) {
+		for (FrameType t : values())
+			if (t.code == code)
+				return t;
+		return null;
+	}
+}
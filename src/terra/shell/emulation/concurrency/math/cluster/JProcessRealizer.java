@@ -2,20 +2,33 @@ package terra.shell.emulation.concurrency.math.cluster;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InvalidClassException;
 import java.io.ObjectInputStream;
 import java.io.ObjectStreamClass;
+import java.lang.ref.WeakReference;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import terra.shell.logging.LogManager;
 
 /**
  * Realize classes sent from remote Nodes via ConnectionManager. Decodes and
- * De-Serializes quantized class information
+ * De-Serializes quantized class information. Resolved classes are cached per
+ * ClassLoader, so that each class name is only looked up once rather than on
+ * every object received
  * 
  * @author schirripad@moravian.edu
  *
  */
 public class JProcessRealizer extends ObjectInputStream {
+	// Classes resolved through each ClassLoader, by name. Neither the loaders nor
+	// their classes are kept alive by the cache
+	private static final Map<ClassLoader, Hashtable<String, WeakReference<Class<?>>>> resolved = new WeakHashMap<ClassLoader, Hashtable<String, WeakReference<Class<?>>>>();
+
 	private ClassLoader cl;
+	private boolean compact;
+	private AssetStore assets;
 
 	/**
 	 * Realize a class from an InputStream
@@ -47,22 +60,79 @@ public class JProcessRealizer extends ObjectInputStream {
 		this.cl = cl;
 	}
 
+	/**
+	 * Read class descriptors in the compact form written by
+	 * ProcessSerializers.COMPACT, the class name and serialVersionUID, instead of
+	 * the full descriptor. The descriptor of the local class is used in its place
+	 * 
+	 * @param compact Whether the stream was written compact
+	 */
+	public void setCompact(boolean compact) {
+		this.compact = compact;
+	}
+
+	/**
+	 * Set the assets staged on the Node reading from this stream, which the
+	 * StagedAssets read are resolved against
+	 * 
+	 * @param assets Store of the Node, NULL if no assets are staged on it
+	 */
+	void setAssetStore(AssetStore assets) {
+		this.assets = assets;
+	}
+
+	AssetStore getAssetStore() {
+		return assets;
+	}
+
+	@Override
+	protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+		if (!compact)
+			return super.readClassDescriptor();
+		String name = readUTF();
+		long suid = readLong();
+		Class<?> c = resolve(name);
+		if (c == null)
+			throw new ClassNotFoundException(name);
+		ObjectStreamClass desc = ObjectStreamClass.lookupAny(c);
+		if (desc.getSerialVersionUID() != suid)
+			throw new InvalidClassException(name,
+					"serialVersionUID " + suid + " does not match local " + desc.getSerialVersionUID());
+		return desc;
+	}
+
 	@Override
 	public Class<?> resolveClass(ObjectStreamClass desc) {
-		String name = desc.getName();
+		return resolve(desc.getName());
+	}
 
+	private Class<?> resolve(String name) {
+		Hashtable<String, WeakReference<Class<?>>> classes;
+		synchronized (resolved) {
+			classes = resolved.get(cl);
+			if (classes == null) {
+				classes = new Hashtable<String, WeakReference<Class<?>>>();
+				resolved.put(cl, classes);
+			}
+		}
+		WeakReference<Class<?>> ref = classes.get(name);
+		Class<?> c = ref == null ? null : ref.get();
+		if (c != null)
+			return c;
 		try {
-			return Class.forName(name, false, cl);
+			c = Class.forName(name, false, cl);
 		} catch (Exception e) {
 			try {
-				return cl.loadClass(name);
+				c = cl.loadClass(name);
 			} catch (Exception e1) {
 				e1.printStackTrace();
 				LogManager.out.println();
+				e.printStackTrace();
+				return null;
 			}
-			e.printStackTrace();
-			return null;
 		}
+		classes.put(name, new WeakReference<Class<?>>(c));
+		return c;
 	}
 
 }
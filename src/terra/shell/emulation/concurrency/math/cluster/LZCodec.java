@@ -0,0 +1,160 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A small, fast LZ77 codec in the style of LZ4. It trades compression ratio for
+ * speed, compressing at a fraction of the cost of Deflate, which makes it worth
+ * using on links too fast for Deflate to pay off.
+ * <p>
+ * Compressed data is a series of sequences. Each sequence is a token byte, whose
+ * high nibble is the number of literals and low nibble the match length minus 4,
+ * followed by the literals, a 2 byte little endian offset back into the output,
+ * and the match. A nibble of 15 is extended by the following bytes, which are
+ * added up until one is below 255. The last sequence only holds literals.
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+final class LZCodec {
+	private static final int MIN_MATCH = 4;
+	private static final int MAX_OFFSET = 65535;
+	private static final int HASH_BITS = 13;
+	// Matches never reach into the last bytes of the input, so that the final
+	// sequence always has literals
+	private static final int LAST_LITERALS = 5;
+
+	private LZCodec() {
+	}
+
+	/**
+	 * Compress "src"
+	 *
+	 * @param src Bytes to compress
+	 * @return Compressed bytes, which may be larger than "src" if it does not
+	 *         compress
+	 */
+	static byte[] compress(byte[] src) {
+		byte[] dst = new byte[src.length + src.length / 255 + 16];
+		int[] table = new int[1 << HASH_BITS];
+		Arrays.fill(table, -1);
+		int ip = 0, anchor = 0, op = 0;
+		int limit = src.length - LAST_LITERALS;
+		while (ip + MIN_MATCH <= limit) {
+			int seq = readInt(src, ip);
+			int h = (seq * -1640531535) >>> (32 - HASH_BITS);
+			int ref = table[h];
+			table[h] = ip;
+			if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+				// Skip ahead faster the longer no match was found, so incompressible data
+				// costs little
+				ip += 1 + ((ip - anchor) >>> 6);
+				continue;
+			}
+			int match = MIN_MATCH;
+			while (ip + match < limit && src[ref + match] == src[ip + match])
+				match++;
+			int token = op;
+			op = writeSequence(src, anchor, ip - anchor, dst, op);
+			dst[op++] = (byte) (ip - ref);
+			dst[op++] = (byte) ((ip - ref) >>> 8);
+			int extra = match - MIN_MATCH;
+			dst[token] |= (byte) Math.min(extra, 15);
+			if (extra >= 15)
+				op = writeLength(extra - 15, dst, op);
+			ip += match;
+			anchor = ip;
+		}
+		op = writeSequence(src, anchor, src.length - anchor, dst, op);
+		return Arrays.copyOf(dst, op);
+	}
+
+	/**
+	 * Write a token holding the literal count, followed by the literals. The
+	 * match length is filled into the token afterwards
+	 */
+	private static int writeSequence(byte[] src, int from, int literals, byte[] dst, int op) {
+		dst[op++] = (byte) (Math.min(literals, 15) << 4);
+		if (literals >= 15)
+			op = writeLength(literals - 15, dst, op);
+		System.arraycopy(src, from, dst, op, literals);
+		return op + literals;
+	}
+
+	private static int writeLength(int length, byte[] dst, int op) {
+		while (length >= 255) {
+			dst[op++] = (byte) 255;
+			length -= 255;
+		}
+		dst[op++] = (byte) length;
+		return op;
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+	}
+
+	/**
+	 * Decompress data produced by compress()
+	 *
+	 * @param src    Buffer holding the compressed data
+	 * @param off    Offset of the compressed data in "src"
+	 * @param len    Length of the compressed data
+	 * @param rawLen Length of the data before it was compressed
+	 * @return The decompressed data
+	 * @throws IOException If the data is malformed, or does not decompress to
+	 *                     exactly "rawLen" bytes
+	 */
+	static byte[] decompress(byte[] src, int off, int len, int rawLen) throws IOException {
+		byte[] dst = new byte[rawLen];
+		int ip = off, end = off + len, op = 0;
+		while (true) {
+			if (ip >= end)
+				throw new IOException("Truncated LZ data");
+			int token = src[ip++] & 0xFF;
+			int literals = token >>> 4;
+			if (literals == 15) {
+				int b;
+				do {
+					if (ip >= end)
+						throw new IOException("Truncated LZ data");
+					b = src[ip++] & 0xFF;
+					literals += b;
+				} while (b == 255);
+			}
+			if (literals > end - ip || literals > rawLen - op)
+				throw new IOException("Malformed LZ data");
+			System.arraycopy(src, ip, dst, op, literals);
+			ip += literals;
+			op += literals;
+			if (ip == end)
+				break;
+			if (end - ip < 2)
+				throw new IOException("Truncated LZ data");
+			int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+			ip += 2;
+			if (offset == 0 || offset > op)
+				throw new IOException("Malformed LZ data");
+			int match = token & 15;
+			if (match == 15) {
+				int b;
+				do {
+					if (ip >= end)
+						throw new IOException("Truncated LZ data");
+					b = src[ip++] & 0xFF;
+					match += b;
+				} while (b == 255);
+			}
+			match += MIN_MATCH;
+			if (match > rawLen - op)
+				throw new IOException("Malformed LZ data");
+			// The match may overlap the bytes it produces, so it is copied byte by byte
+			for (int from = op - offset, to = op + match; op < to;)
+				dst[op++] = dst[from++];
+		}
+		if (op != rawLen)
+			throw new IOException("LZ data decompressed to " + op + " bytes, expected " + rawLen);
+		return dst;
+	}
+}
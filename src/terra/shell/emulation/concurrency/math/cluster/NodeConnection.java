@@ -0,0 +1,214 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A long-lived, handshaken connection to a remote Node. NodeConnections are
+ * handed out by a NodeConnectionPool and are used by one exchange at a time.
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+final class NodeConnection {
+	private final Socket s;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private final int sendBuffer;
+	// Largest Frame payload accepted from the remote Node
+	private final int maxPayload;
+	private FrameCompressor compressor = FrameCompressor.NONE;
+	// Traffic is counted once the handshake is done
+	private NodeMetrics metrics;
+	private long lastUsed;
+	private int uses;
+	private boolean received;
+
+	/**
+	 * Connect to a remote Node, the handshake is left to the caller
+	 *
+	 * @param host    Address of the remote Node
+	 * @param port    Port of the remote Node's cluster server
+	 * @param local   Address to connect from, NULL for any
+	 * @param timeout    Connection timeout, in MS
+	 * @param maxPayload Largest Frame payload to accept, in bytes
+	 * @throws IOException
+	 */
+	public NodeConnection(String host, int port, InetAddress local, int timeout, int maxPayload)
+			throws IOException {
+		this.maxPayload = maxPayload;
+		// Backed by a channel, so that files can be transferred to it directly
+		s = SocketChannel.open().socket();
+		s.setKeepAlive(true);
+		s.setTcpNoDelay(true);
+		if (local != null)
+			s.bind(new InetSocketAddress(local, 0));
+		s.connect(new InetSocketAddress(host, port), timeout);
+		in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+		sendBuffer = s.getSendBufferSize();
+		lastUsed = System.currentTimeMillis();
+	}
+
+	public DataInputStream in() {
+		return in;
+	}
+
+	public DataOutputStream out() {
+		return out;
+	}
+
+	public Socket getSocket() {
+		return s;
+	}
+
+	/**
+	 * Set how Frames sent on this connection are compressed, once the handshake
+	 * has negotiated the codecs the remote Node accepts
+	 *
+	 * @param compressor Compressor for this connection
+	 */
+	void setCompressor(FrameCompressor compressor) {
+		this.compressor = compressor;
+	}
+
+	/**
+	 * Count the traffic of this connection in the metrics of its Node
+	 *
+	 * @param metrics Metrics of the remote Node
+	 */
+	void setMetrics(NodeMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	private void count(long sent, long received) {
+		NodeMetrics m = metrics;
+		if (m == null)
+			return;
+		if (sent > 0)
+			m.sent(sent);
+		if (received > 0)
+			m.received(received);
+	}
+
+	/**
+	 * Write a Frame and flush it to the remote Node
+	 *
+	 * @param f Frame to send
+	 * @throws IOException
+	 */
+	public void send(Frame f) throws IOException {
+		f = compressor.compress(f);
+		long start = System.nanoTime();
+		f.write(out);
+		out.flush();
+		compressor.sent(f.wireSize(), sendBuffer, System.nanoTime() - start);
+		count(f.wireSize(), 0);
+	}
+
+	/**
+	 * Write a Frame without flushing, so that further Frames can be sent along in
+	 * the same packet
+	 *
+	 * @param f Frame to write
+	 * @throws IOException
+	 */
+	public void write(Frame f) throws IOException {
+		f = compressor.compress(f);
+		f.write(out);
+		count(f.wireSize(), 0);
+	}
+
+	/**
+	 * Send the content of a file, preceded by the FILE Frame announcing it. The
+	 * content is transferred from the file to the socket by the OS, without
+	 * passing through the heap
+	 *
+	 * @param f    File to send
+	 * @param size Number of bytes to send, from the start of the file
+	 * @throws IOException If the file is shorter than "size", or the connection
+	 *                     fails
+	 */
+	public void sendFile(FileChannel f, long size) throws IOException {
+		Frame.Builder b = new Frame.Builder();
+		b.out().writeLong(size);
+		Frame header = b.build(FrameType.FILE);
+		header.write(out);
+		out.flush();
+		count(header.wireSize(), 0);
+		long start = System.nanoTime();
+		for (long pos = 0; pos < size;) {
+			long n = f.transferTo(pos, size - pos, s.getChannel());
+			if (n <= 0 && pos >= f.size())
+				throw new IOException("File ended " + (size - pos) + " bytes early");
+			pos += n;
+		}
+		compressor.sent(size, sendBuffer, System.nanoTime() - start);
+		count(size, 0);
+	}
+
+	/**
+	 * Read the next Frame sent by the remote Node
+	 *
+	 * @return The Frame read
+	 * @throws IOException
+	 */
+	public Frame read() throws IOException {
+		Frame f = Frame.read(in, maxPayload);
+		received = true;
+		count(0, f.wireSize());
+		return f;
+	}
+
+	/**
+	 * Whether or not anything has been read from this connection since it was last
+	 * borrowed. An exchange that failed before receiving anything can safely be
+	 * retried on another connection.
+	 *
+	 * @return True if a Frame was received
+	 */
+	boolean hasReceived() {
+		return received;
+	}
+
+	void borrowed() {
+		uses++;
+		received = false;
+	}
+
+	/**
+	 * Number of exchanges this connection has been borrowed for
+	 *
+	 * @return Use count
+	 */
+	int getUses() {
+		return uses;
+	}
+
+	void released() {
+		lastUsed = System.currentTimeMillis();
+	}
+
+	public long lastUsed() {
+		return lastUsed;
+	}
+
+	public boolean isOpen() {
+		return !s.isClosed() && s.isConnected() && !s.isInputShutdown() && !s.isOutputShutdown();
+	}
+
+	public void close() {
+		try {
+			s.close();
+		} catch (IOException e) {
+		}
+	}
+}
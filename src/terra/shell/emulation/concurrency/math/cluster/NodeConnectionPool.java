@@ -0,0 +1,192 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Pool of keep-alive connections to a single remote Node. Connections are
+ * reused across pings, process dispatches and return deliveries, so that TCP
+ * setup and the handshake are only paid when no idle connection is available.
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+final class NodeConnectionPool {
+	private final ConnectionManager cm;
+	private final String host;
+	private final int maxIdle;
+	// Most recently used connections are kept at the head, so that the least used
+	// ones drift to the tail and are reaped once idle for too long
+	private final ArrayDeque<NodeConnection> idle = new ArrayDeque<NodeConnection>();
+	private int open;
+	private boolean closed;
+
+	/**
+	 * Create an empty pool, connections are only opened once needed
+	 *
+	 * @param cm      ConnectionManager used to open and handshake connections
+	 * @param host    Address of the remote Node
+	 * @param maxIdle Maximum number of idle connections to keep open
+	 */
+	public NodeConnectionPool(ConnectionManager cm, String host, int maxIdle) {
+		this.cm = cm;
+		this.host = host;
+		this.maxIdle = Math.max(1, maxIdle);
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * Take an idle connection from the pool, or open a new one if none are idle.
+	 * Connections must be handed back with release() or discard()
+	 *
+	 * @return An open, handshaken connection
+	 * @throws IOException If a new connection could not be opened
+	 */
+	public NodeConnection borrow() throws IOException {
+		synchronized (this) {
+			if (closed)
+				throw new IOException("Connection pool for " + host + " is closed");
+			while (!idle.isEmpty()) {
+				NodeConnection c = idle.pollFirst();
+				if (c.isOpen()) {
+					c.borrowed();
+					return c;
+				}
+				c.close();
+				open--;
+			}
+			open++;
+		}
+		try {
+			NodeConnection c = cm.openConnection(host);
+			c.borrowed();
+			return c;
+		} catch (IOException e) {
+			synchronized (this) {
+				open--;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Hand a healthy connection back to the pool
+	 *
+	 * @param c Connection to return
+	 */
+	public synchronized void release(NodeConnection c) {
+		if (closed || !c.isOpen() || idle.size() >= maxIdle) {
+			c.close();
+			open--;
+			return;
+		}
+		c.released();
+		idle.addFirst(c);
+	}
+
+	/**
+	 * Close a connection which failed, or is otherwise out of sync with its Node
+	 *
+	 * @param c Connection to discard
+	 */
+	public synchronized void discard(NodeConnection c) {
+		c.close();
+		open--;
+	}
+
+	/**
+	 * Run an exchange on a pooled connection. If a reused connection turns out to
+	 * be dead before anything was received on it, the exchange is retried once on
+	 * a freshly opened connection.
+	 *
+	 * @param ex Exchange to run
+	 * @return Result of the exchange
+	 * @throws IOException If the exchange failed
+	 */
+	public <T> T execute(Exchange<T> ex) throws IOException {
+		NodeConnection c = borrow();
+		try {
+			T ret = ex.run(c);
+			release(c);
+			return ret;
+		} catch (IOException e) {
+			boolean retry = c.getUses() > 1 && !c.hasReceived();
+			discard(c);
+			if (!retry)
+				throw e;
+		} catch (RuntimeException e) {
+			discard(c);
+			throw e;
+		}
+		// Stale pooled connection, reconnect and try again
+		c = cm.openConnection(host);
+		synchronized (this) {
+			open++;
+		}
+		c.borrowed();
+		try {
+			T ret = ex.run(c);
+			release(c);
+			return ret;
+		} catch (IOException | RuntimeException e) {
+			discard(c);
+			throw e;
+		}
+	}
+
+	/**
+	 * Close connections which have been idle for longer than maxIdleTime
+	 *
+	 * @param maxIdleTime Maximum idle time, in MS
+	 * @return Number of connections closed
+	 */
+	public synchronized int reap(long maxIdleTime) {
+		long now = System.currentTimeMillis();
+		int reaped = 0;
+		Iterator<NodeConnection> it = idle.descendingIterator();
+		while (it.hasNext()) {
+			NodeConnection c = it.next();
+			if (c.isOpen() && (now - c.lastUsed()) < maxIdleTime)
+				break;
+			it.remove();
+			c.close();
+			open--;
+			reaped++;
+		}
+		return reaped;
+	}
+
+	/**
+	 * Number of connections currently open to this Node, idle or in use
+	 *
+	 * @return Open connection count
+	 */
+	public synchronized int openConnections() {
+		return open;
+	}
+
+	/**
+	 * Close all idle connections, connections in use are closed once released
+	 */
+	public synchronized void close() {
+		closed = true;
+		for (NodeConnection c : idle) {
+			c.close();
+			open--;
+		}
+		idle.clear();
+	}
+
+	/**
+	 * A request/response exchange run on a borrowed connection
+	 *
+	 * @param <T> Result of the exchange
+	 */
+	interface Exchange<T> {
+		T run(NodeConnection c) throws IOException;
+	}
+}
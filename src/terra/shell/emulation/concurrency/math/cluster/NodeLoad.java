@@ -0,0 +1,101 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Snapshot of how busy a Node is, advertised by the Node in every PONG so that
+ * the Nodes sending it work can pick the least loaded one.
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+public final class NodeLoad {
+	/**
+	 * Load of a Node which has not reported yet
+	 */
+	static final NodeLoad UNKNOWN = new NodeLoad(0, 0, 0, 1, 1, 0);
+
+	private final int activeProcesses, passiveProcesses, queueDepth, passiveLimit, cores;
+	private final long freeHeap;
+
+	NodeLoad(int activeProcesses, int passiveProcesses, int queueDepth, int passiveLimit, int cores, long freeHeap) {
+		this.activeProcesses = activeProcesses;
+		this.passiveProcesses = passiveProcesses;
+		this.queueDepth = queueDepth;
+		this.passiveLimit = passiveLimit;
+		this.cores = cores;
+		this.freeHeap = freeHeap;
+	}
+
+	void write(DataOutput out) throws IOException {
+		out.writeInt(activeProcesses);
+		out.writeInt(passiveProcesses);
+		out.writeInt(queueDepth);
+		out.writeInt(passiveLimit);
+		out.writeInt(cores);
+		out.writeLong(freeHeap);
+	}
+
+	static NodeLoad read(DataInput in) throws IOException {
+		return new NodeLoad(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readLong());
+	}
+
+	/**
+	 * Number of processes running on the Node, of any origin
+	 */
+	public int getActiveProcesses() {
+		return activeProcesses;
+	}
+
+	/**
+	 * Number of processes the Node is running on behalf of other Nodes
+	 */
+	public int getPassiveProcesses() {
+		return passiveProcesses;
+	}
+
+	/**
+	 * Number of submitted processes waiting to run on the Node
+	 */
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	/**
+	 * Maximum number of processes the Node runs on behalf of other Nodes at once
+	 */
+	public int getPassiveLimit() {
+		return passiveLimit;
+	}
+
+	public int getCores() {
+		return cores;
+	}
+
+	/**
+	 * Heap the Node can still allocate, in bytes
+	 */
+	public long getFreeHeap() {
+		return freeHeap;
+	}
+
+	/**
+	 * Work waiting for a free slot on the Node, relative to how much it can run at
+	 * once. 0 means the Node is idle
+	 *
+	 * @param extra Processes sent to the Node since this snapshot was taken
+	 * @return Relative load of the Node
+	 */
+	double utilization(int extra) {
+		int slots = Math.max(1, Math.min(passiveLimit, cores));
+		return (double) (passiveProcesses + queueDepth + extra) / slots;
+	}
+
+	@Override
+	public String toString() {
+		return "active=" + activeProcesses + " passive=" + passiveProcesses + "/" + passiveLimit + " queued="
+				+ queueDepth + " cores=" + cores + " freeHeap=" + (freeHeap / (1024 * 1024)) + "MB";
+	}
+}
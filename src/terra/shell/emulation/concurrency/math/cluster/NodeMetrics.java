@@ -0,0 +1,189 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the traffic between this Node and one
+ * remote Node. Everything is recorded lock free, as the counters are updated
+ * on every Frame sent or received. Read through snapshot()
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+final class NodeMetrics {
+	private final String host;
+	private final long since = System.currentTimeMillis();
+	private final AtomicLong dispatches = new AtomicLong(), failures = new AtomicLong(),
+			bytesOut = new AtomicLong(), bytesIn = new AtomicLong();
+	private final Histogram serialize = new Histogram(), deserialize = new Histogram(),
+			classShip = new Histogram(), queueWait = new Histogram(), execution = new Histogram(),
+			returnLatency = new Histogram();
+
+	/**
+	 * @param host Address of the remote Node
+	 */
+	NodeMetrics(String host) {
+		this.host = host;
+	}
+
+	/**
+	 * A process was sent to the Node
+	 */
+	void dispatched() {
+		dispatches.incrementAndGet();
+	}
+
+	/**
+	 * A process sent to the Node failed, was refused, or was lost
+	 */
+	void failed() {
+		failures.incrementAndGet();
+	}
+
+	void sent(long bytes) {
+		bytesOut.addAndGet(bytes);
+	}
+
+	void received(long bytes) {
+		bytesIn.addAndGet(bytes);
+	}
+
+	/**
+	 * Time taken to serialize a process for the Node, in NS
+	 */
+	void serialized(long nanos) {
+		serialize.record(nanos);
+	}
+
+	/**
+	 * Time taken to de-serialize a process on the Node, or a ReturnValue received
+	 * from it, in NS
+	 */
+	void deserialized(long nanos) {
+		deserialize.record(nanos);
+	}
+
+	/**
+	 * Time taken to send a ClassBundle to the Node, in NS
+	 */
+	void classShipped(long nanos) {
+		classShip.record(nanos);
+	}
+
+	/**
+	 * Time a process waited in the Node's scheduler queue, in NS
+	 */
+	void queued(long nanos) {
+		queueWait.record(nanos);
+	}
+
+	/**
+	 * Time a process ran for on the Node, in NS
+	 */
+	void executed(long nanos) {
+		execution.record(nanos);
+	}
+
+	/**
+	 * Time from sending a process until its result arrived back, in NS
+	 */
+	void returned(long nanos) {
+		returnLatency.record(nanos);
+	}
+
+	/**
+	 * Write the timings a Node reports with a completed process, see
+	 * FrameType.COMPLETION
+	 *
+	 * @param out         Payload of the COMPLETION or DONE
+	 * @param deserialize Time taken to de-serialize the process, in NS
+	 * @param queued      Time the process waited in the queue, in NS
+	 * @param executed    Time the process ran for, in NS
+	 * @throws IOException
+	 */
+	static void writeTimings(DataOutput out, long deserialize, long queued, long executed) throws IOException {
+		out.writeLong(deserialize);
+		out.writeLong(queued);
+		out.writeLong(executed);
+	}
+
+	/**
+	 * Record the timings the Node reported with a completed process
+	 *
+	 * @param in Payload of the COMPLETION or DONE, after the success flag
+	 * @throws IOException
+	 */
+	void readTimings(DataInput in) throws IOException {
+		deserialized(in.readLong());
+		queued(in.readLong());
+		executed(in.readLong());
+	}
+
+	/**
+	 * Take a consistent enough copy of the metrics, each value is read atomically
+	 * but the values are not read all at once
+	 *
+	 * @return Snapshot of the metrics
+	 */
+	NodeStats snapshot() {
+		return new NodeStats(host, since, System.currentTimeMillis(), dispatches.get(), failures.get(),
+				bytesOut.get(), bytesIn.get(), serialize.snapshot(), deserialize.snapshot(), classShip.snapshot(),
+				queueWait.snapshot(), execution.snapshot(), returnLatency.snapshot());
+	}
+
+	/**
+	 * Histogram of durations, with one bucket per power of two of microseconds.
+	 * Percentiles are therefore estimates, accurate to within a factor of two,
+	 * which is enough to tell where time goes
+	 */
+	private static final class Histogram {
+		private static final int BUCKETS = 40;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong total = new AtomicLong(), max = new AtomicLong();
+
+		void record(long nanos) {
+			if (nanos < 0)
+				nanos = 0;
+			long micros = nanos / 1000;
+			// Bucket i holds [2^(i-1), 2^i) microseconds, bucket 0 holds 0
+			buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+			total.addAndGet(nanos);
+			long m;
+			while ((m = max.get()) < nanos && !max.compareAndSet(m, nanos))
+				;
+		}
+
+		NodeStats.Latency snapshot() {
+			long[] b = new long[BUCKETS];
+			long n = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				b[i] = buckets.get(i);
+				n += b[i];
+			}
+			long top = max.get();
+			return new NodeStats.Latency(n, n == 0 ? 0 : total.get() / n, percentile(b, n, 0.5, top),
+					percentile(b, n, 0.9, top), percentile(b, n, 0.99, top), top);
+		}
+
+		/**
+		 * Upper bound of the bucket holding the "q" quantile, in NS
+		 */
+		private static long percentile(long[] b, long n, double q, long max) {
+			if (n == 0)
+				return 0;
+			long rank = (long) Math.ceil(q * n);
+			long seen = 0;
+			for (int i = 0; i < b.length; i++) {
+				seen += b[i];
+				if (seen >= rank)
+					return Math.min(max, (1L << i) * 1000);
+			}
+			return max;
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+/**
+ * Snapshot of the metrics this Node keeps on its traffic with a remote Node,
+ * taken with ConnectionManager.stats(). Counters and histograms cover
+ * everything since the metrics of the Node were created, compare two snapshots
+ * to get rates.
+ * <p>
+ * Serialize time and class shipping are measured on this Node. Queue wait,
+ * execution time and the de-serialization of processes are measured by the
+ * remote Node and reported with each completed process, the
+ * de-serialization of ReturnValues received from the Node is measured here.
+ * Return latency is the time from sending a process until its ReturnValue, or
+ * its completion if it returns none, arrived back.
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+public final class NodeStats {
+	private final String host;
+	private final long since, takenAt, dispatches, failures, bytesOut, bytesIn;
+	private final Latency serialize, deserialize, classShip, queueWait, execution, returnLatency;
+
+	NodeStats(String host, long since, long takenAt, long dispatches, long failures, long bytesOut, long bytesIn,
+			Latency serialize, Latency deserialize, Latency classShip, Latency queueWait, Latency execution,
+			Latency returnLatency) {
+		this.host = host;
+		this.since = since;
+		this.takenAt = takenAt;
+		this.dispatches = dispatches;
+		this.failures = failures;
+		this.bytesOut = bytesOut;
+		this.bytesIn = bytesIn;
+		this.serialize = serialize;
+		this.deserialize = deserialize;
+		this.classShip = classShip;
+		this.queueWait = queueWait;
+		this.execution = execution;
+		this.returnLatency = returnLatency;
+	}
+
+	/**
+	 * Address of the remote Node
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * Time the metrics started being recorded, in MS
+	 */
+	public long getSince() {
+		return since;
+	}
+
+	/**
+	 * Time this snapshot was taken, in MS
+	 */
+	public long getTakenAt() {
+		return takenAt;
+	}
+
+	/**
+	 * Processes sent to the Node
+	 */
+	public long getDispatches() {
+		return dispatches;
+	}
+
+	/**
+	 * Processes sent to the Node which failed, were refused or were lost
+	 */
+	public long getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Bytes sent to the Node, as written to the socket
+	 */
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	/**
+	 * Bytes received from the Node, as read from the socket
+	 */
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	public Latency getSerialize() {
+		return serialize;
+	}
+
+	public Latency getDeserialize() {
+		return deserialize;
+	}
+
+	public Latency getClassShip() {
+		return classShip;
+	}
+
+	public Latency getQueueWait() {
+		return queueWait;
+	}
+
+	public Latency getExecution() {
+		return execution;
+	}
+
+	public Latency getReturnLatency() {
+		return returnLatency;
+	}
+
+	@Override
+	public String toString() {
+		return host + " | dispatched " + dispatches + " | failed " + failures + " | out " + bytesOut + "B | in "
+				+ bytesIn + "B";
+	}
+
+	/**
+	 * Summary of a latency histogram. Percentiles are estimated from power of two
+	 * buckets, and may be up to twice the true value
+	 */
+	public static final class Latency {
+		private final long count, mean, p50, p90, p99, max;
+
+		Latency(long count, long mean, long p50, long p90, long p99, long max) {
+			this.count = count;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.max = max;
+		}
+
+		/**
+		 * Number of samples
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Mean, in NS
+		 */
+		public long getMean() {
+			return mean;
+		}
+
+		/**
+		 * Median, in NS
+		 */
+		public long getP50() {
+			return p50;
+		}
+
+		/**
+		 * 90th percentile, in NS
+		 */
+		public long getP90() {
+			return p90;
+		}
+
+		/**
+		 * 99th percentile, in NS
+		 */
+		public long getP99() {
+			return p99;
+		}
+
+		/**
+		 * Longest sample, in NS
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			if (count == 0)
+				return "n=0";
+			return "n=" + count + " mean " + ms(mean) + " p50 " + ms(p50) + " p90 " + ms(p90) + " p99 " + ms(p99)
+					+ " max " + ms(max);
+		}
+
+		private static String ms(long nanos) {
+			return String.format("%.2fms", nanos / 1000000.0);
+		}
+	}
+}
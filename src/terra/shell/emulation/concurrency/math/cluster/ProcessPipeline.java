@@ -0,0 +1,373 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import terra.shell.logging.LogManager;
+import terra.shell.logging.Logger;
+
+/**
+ * A dedicated connection to a remote Node on which many JProcesses are
+ * submitted without waiting for each other. Submissions are written as soon as
+ * they are made, while a reader thread matches the ACK and DONE Frames coming
+ * back to their submissions by id, along with the ReturnValues of ASYNCHRONOUS
+ * processes. A window bounds the number of submissions in
+ * flight, so a fast submitter is slowed down rather than flooding the Node.
+ * Output streamed back by the processes is written to their OutputStream on a
+ * separate thread, so a slow stream holds back only the output, not the ACKs
+ * and DONEs of other submissions.
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+final class ProcessPipeline {
+	private final ConnectionManager cm;
+	private final String host;
+	private final NodeConnection c;
+	private final Semaphore window;
+	private final NodeMetrics metrics;
+	private final Logger log = LogManager.getLogger("ProcessPipeline");
+	private final Hashtable<Integer, Submission> pending = new Hashtable<Integer, Submission>();
+	// Bundles sent on this connection, and the number of SUBMITs sent before each
+	private final Hashtable<String, Long> sentBundles = new Hashtable<String, Long>();
+	// Number of SUBMITs sent on this connection
+	private long sent;
+	// Writes streamed output, created once a submission asks for its output
+	private ExecutorService output;
+	private int nextId = 0;
+	private volatile long lastUsed, lastHeard;
+	private volatile boolean closed;
+
+	/**
+	 * Open a pipeline to a remote Node
+	 *
+	 * @param cm     ConnectionManager used to open and handshake the connection
+	 * @param host   Address of the remote Node
+	 * @param window Maximum number of submissions in flight
+	 * @throws IOException If the Node could not be reached
+	 */
+	public ProcessPipeline(ConnectionManager cm, String host, int window) throws IOException {
+		this.cm = cm;
+		this.host = host;
+		this.window = new Semaphore(Math.max(1, window));
+		this.metrics = cm.metricsOf(host);
+		this.c = cm.openConnection(host);
+		lastUsed = System.currentTimeMillis();
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				readLoop();
+			}
+		});
+		t.setName("ClusterPipeline:" + host);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * Submit a serialized JProcess, blocking only while the window is full
+	 *
+	 * @param bundle ClassBundle of the process
+	 * @param dat    Priority and output window of the process, followed by the
+	 *               serialized process
+	 * @param loader ClassLoader of the process, which its ReturnValue is read with
+	 * @param out    Stream to write the output of the process to, NULL if the
+	 *               output is not wanted
+	 * @return Future completed with whether or not the process ran successfully,
+	 *         or exceptionally if it was refused or the connection was lost. The
+	 *         future completes after all of the process's output was written
+	 * @throws IOException If the pipeline is closed
+	 */
+	public CompletableFuture<Boolean> submit(ClassBundle bundle, byte[] dat, ClassLoader loader, OutputStream out)
+			throws IOException {
+		try {
+			window.acquire();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted waiting for pipeline to " + host, e);
+		}
+		Submission s;
+		synchronized (this) {
+			if (closed) {
+				window.release();
+				throw new IOException("Pipeline to " + host + " is closed");
+			}
+			s = new Submission(nextId++, bundle, dat, loader, out);
+			pending.put(s.id, s);
+		}
+		lastUsed = System.currentTimeMillis();
+		try {
+			send(s);
+		} catch (IOException e) {
+			fail(e);
+			throw e;
+		}
+		return s.done;
+	}
+
+	private void send(Submission s) throws IOException {
+		Frame.Builder b = new Frame.Builder();
+		b.out().writeInt(s.id);
+		b.out().writeUTF(s.bundle.getHash());
+		b.out().write(s.dat);
+		synchronized (c) {
+			c.send(b.build(FrameType.SUBMIT));
+			s.sent = ++sent;
+		}
+	}
+
+	/**
+	 * Send a bundle the Node asked for, followed by the submission which needed it.
+	 * A submission sent ahead of the bundle, such as one of a burst of the same
+	 * class, only needs to be sent again. One sent after the bundle finds that the
+	 * Node has since evicted it, so the bundle is sent again too
+	 */
+	private void resend(Submission s) throws IOException {
+		synchronized (c) {
+			Long bundled = sentBundles.get(s.bundle.getHash());
+			if (bundled == null || s.sent > bundled) {
+				log.debug("Sending bundle " + s.bundle.getMainName() + " to " + host);
+				long start = System.nanoTime();
+				Frame.Builder b = new Frame.Builder();
+				s.bundle.write(b.out());
+				c.write(b.build(FrameType.BUNDLE));
+				sentBundles.put(s.bundle.getHash(), sent);
+				metrics.classShipped(System.nanoTime() - start);
+			}
+			send(s);
+		}
+	}
+
+	private void readLoop() {
+		try {
+			while (!closed) {
+				Frame f = c.read();
+				lastHeard = System.currentTimeMillis();
+				DataInputStream in = f.payloadIn();
+				int id = in.readInt();
+				Submission s = pending.get(id);
+				if (s == null) {
+					// Such as the late Frame of a submission already failed, which must not take the
+					// submissions still in flight down with it
+					log.debug("Dropping " + f.getType() + " of unknown submission " + id + " from " + host);
+					continue;
+				}
+				if (f.getType() == FrameType.ACK) {
+					String status = in.readUTF();
+					if (status.equals("QUEUED"))
+						continue;
+					if (status.equals("NEED_BUNDLE") && !s.resent) {
+						s.resent = true;
+						resend(s);
+						continue;
+					}
+					finish(s);
+					s.done.completeExceptionally(new RefusedException("Submission refused by " + host + ": " + status));
+				} else if (f.getType() == FrameType.OUTPUT) {
+					byte[] chunk = in.readAllBytes();
+					if (s.out != null)
+						writeOutput(s, chunk);
+				} else if (f.getType() == FrameType.RET) {
+					// Always ahead of the DONE. The return completes the future of the process, so
+					// it waits behind any output still being written
+					final DataInputStream ret = in;
+					final Submission returned = s;
+					if (s.out == null)
+						cm.receiveReturn(ret, s.loader, host);
+					else {
+						output().execute(new Runnable() {
+							public void run() {
+								cm.receiveReturn(ret, returned.loader, host);
+							}
+						});
+					}
+				} else if (f.getType() == FrameType.DONE) {
+					final Submission done = s;
+					final boolean success = in.readBoolean();
+					metrics.readTimings(in);
+					if (s.out == null) {
+						finish(s);
+						s.done.complete(success);
+					} else {
+						// Complete behind the output still waiting to be written. Already done, it is
+						// no longer failed if the connection is lost in the meantime
+						pending.remove(s.id);
+						output().execute(new Runnable() {
+							public void run() {
+								finish(done);
+								done.done.complete(success);
+							}
+						});
+					}
+				} else
+					throw new IOException("Unexpected " + f.getType() + " from " + host);
+			}
+		} catch (IOException e) {
+			if (!closed)
+				log.debug("Pipeline to " + host + " failed: " + e.getMessage());
+			fail(e);
+		}
+	}
+
+	private synchronized ExecutorService output() {
+		if (output == null) {
+			output = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r);
+					t.setName("ClusterOutput:" + host);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return output;
+	}
+
+	/**
+	 * Write a chunk of a submission's output on the output thread, granting the
+	 * remote process credit once the chunk is written
+	 */
+	private void writeOutput(final Submission s, final byte[] chunk) {
+		output().execute(new Runnable() {
+			public void run() {
+				try {
+					s.out.write(chunk);
+					s.out.flush();
+				} catch (IOException e) {
+					log.debug("Unable to write output of submission " + s.id + ": " + e.getMessage());
+				}
+				try {
+					Frame.Builder b = new Frame.Builder();
+					b.out().writeInt(s.id);
+					b.out().writeInt(chunk.length);
+					synchronized (c) {
+						c.send(b.build(FrameType.CREDIT));
+					}
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Ask the Node to cancel a submission. The submission still completes through
+	 * its DONE, or exceptionally if the connection is lost
+	 *
+	 * @param done Future returned by submit()
+	 * @return True if the submission was still in flight, and a CANCEL was sent
+	 */
+	public boolean cancel(CompletableFuture<Boolean> done) {
+		Submission s = null;
+		for (Submission p : pending.values().toArray(new Submission[0]))
+			if (p.done == done)
+				s = p;
+		if (s == null)
+			return false;
+		try {
+			synchronized (c) {
+				c.send(Frame.ofInt(FrameType.CANCEL, s.id));
+			}
+			return true;
+		} catch (IOException e) {
+			fail(e);
+			return false;
+		}
+	}
+
+	private void finish(Submission s) {
+		pending.remove(s.id);
+		window.release();
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Close the pipeline, failing every submission still in flight
+	 */
+	private void fail(IOException e) {
+		ArrayList<Submission> lost;
+		synchronized (this) {
+			closed = true;
+			lost = new ArrayList<Submission>(pending.values());
+			pending.clear();
+		}
+		c.close();
+		synchronized (this) {
+			if (output != null)
+				output.shutdown();
+		}
+		for (Submission s : lost) {
+			window.release();
+			s.done.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Number of submissions which have not completed yet
+	 */
+	public int inFlight() {
+		return pending.size();
+	}
+
+	public long lastUsed() {
+		return lastUsed;
+	}
+
+	/**
+	 * Time the last Frame was received from the Node, in MS. Any Frame proves the
+	 * Node is alive, so a busy pipeline doubles as a heartbeat
+	 */
+	public long lastHeard() {
+		return lastHeard;
+	}
+
+	public boolean isOpen() {
+		return !closed && c.isOpen();
+	}
+
+	public void close() {
+		fail(new IOException("Pipeline to " + host + " closed"));
+	}
+
+	/**
+	 * A submission the Node refused, such as because its queue is full. The Node
+	 * itself is fine, and can be sent further processes
+	 */
+	static final class RefusedException extends IOException {
+		private static final long serialVersionUID = 4127503962114618234L;
+
+		RefusedException(String message) {
+			super(message);
+		}
+	}
+
+	private static final class Submission {
+		private final int id;
+		private final ClassBundle bundle;
+		private final byte[] dat;
+		private final ClassLoader loader;
+		private final OutputStream out;
+		private final CompletableFuture<Boolean> done = new CompletableFuture<Boolean>();
+		private boolean resent;
+		// Number of the SUBMIT this submission was last sent as
+		private long sent;
+
+		private Submission(int id, ClassBundle bundle, byte[] dat, ClassLoader loader, OutputStream out) {
+			this.id = id;
+			this.bundle = bundle;
+			this.dat = dat;
+			this.loader = loader;
+			this.out = out;
+		}
+	}
+}
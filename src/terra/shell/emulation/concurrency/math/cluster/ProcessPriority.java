@@ -42,4 +42,20 @@ public enum ProcessPriority {
 		return priority;
 	}
 
+	/**
+	 * Get the ProcessPriority represented by an int, as sent between Nodes
+	 * 
+	 * @param priority Priority as an int
+	 * @return The matching priority, values out of range are clamped to LOWEST or
+	 *         EXTREME
+	 */
+	public static ProcessPriority fromInt(int priority) {
+		if (priority >= EXTREME.priority)
+			return EXTREME;
+		for (ProcessPriority p : values())
+			if (p.priority <= priority)
+				return p;
+		return LOWEST;
+	}
+
 }
@@ -0,0 +1,154 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs processes received from other Nodes in order of their ProcessPriority.
+ * Each priority has its own FIFO queue, and a fixed number of worker threads
+ * always take the next process from the highest priority queue. To keep a
+ * steady stream of urgent work from starving the rest, a waiting process is
+ * raised by one priority level for every aging interval it has waited.
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+final class ProcessScheduler {
+	private static final int LEVELS = ProcessPriority.EXTREME.asInt() + 1;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final ArrayDeque<Task>[] queues = new ArrayDeque[LEVELS];
+	private final long agingInterval;
+	private final int slots;
+	private int queued, running;
+	private boolean shutdown;
+
+	/**
+	 * Create a scheduler and start its worker threads
+	 *
+	 * @param slots         Maximum number of processes to run at once
+	 * @param agingInterval Time after which a waiting process is raised by one
+	 *                      priority level, in MS
+	 * @param factory       Creates the worker threads
+	 */
+	public ProcessScheduler(int slots, long agingInterval, ThreadFactory factory) {
+		this.slots = Math.max(1, slots);
+		this.agingInterval = Math.max(1, agingInterval);
+		for (int i = 0; i < LEVELS; i++)
+			queues[i] = new ArrayDeque<Task>();
+		for (int i = 0; i < this.slots; i++) {
+			factory.newThread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}).start();
+		}
+	}
+
+	/**
+	 * Queue a process to be run once a slot is free and no process of higher
+	 * (effective) priority is waiting
+	 *
+	 * @param priority Priority of the process
+	 * @param r        Runs the process
+	 */
+	public synchronized void schedule(ProcessPriority priority, Runnable r) {
+		if (shutdown)
+			throw new IllegalStateException("Scheduler is shut down");
+		queues[priority.asInt()].addLast(new Task(r, priority.asInt()));
+		queued++;
+		notify();
+	}
+
+	private void work() {
+		while (true) {
+			Task t;
+			synchronized (this) {
+				while (queued == 0 && !shutdown) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (shutdown)
+					return;
+				t = next();
+				queued--;
+				running++;
+			}
+			try {
+				t.r.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			} finally {
+				synchronized (this) {
+					running--;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Take the waiting process with the highest effective priority. The head of
+	 * each queue has waited longest, so only the heads need to be compared. Ties
+	 * go to the process with the higher base priority
+	 */
+	private Task next() {
+		long now = System.currentTimeMillis();
+		int best = -1;
+		long bestPriority = -1;
+		for (int i = LEVELS - 1; i >= 0; i--) {
+			Task head = queues[i].peekFirst();
+			if (head == null)
+				continue;
+			long effective = Math.min(LEVELS - 1, head.priority + (now - head.queuedAt) / agingInterval);
+			if (effective > bestPriority) {
+				best = i;
+				bestPriority = effective;
+			}
+		}
+		return queues[best].pollFirst();
+	}
+
+	/**
+	 * Number of processes waiting for a slot
+	 */
+	public synchronized int queued() {
+		return queued;
+	}
+
+	/**
+	 * Number of processes currently running
+	 */
+	public synchronized int running() {
+		return running;
+	}
+
+	public int getSlots() {
+		return slots;
+	}
+
+	/**
+	 * Stop the worker threads once their current process is done, processes which
+	 * are still waiting are dropped
+	 */
+	public synchronized void shutdown() {
+		shutdown = true;
+		for (ArrayDeque<Task> q : queues)
+			q.clear();
+		queued = 0;
+		notifyAll();
+	}
+
+	private static final class Task {
+		private final Runnable r;
+		private final int priority;
+		private final long queuedAt = System.currentTimeMillis();
+
+		private Task(Runnable r, int priority) {
+			this.r = r;
+			this.priority = priority;
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ProcessSchedulerTest {
+
+	private static final ThreadFactory DAEMONS = new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "ProcessSchedulerTest");
+			t.setDaemon(true);
+			return t;
+		}
+	};
+
+	/**
+	 * Occupies the only slot of a scheduler until released, so that everything
+	 * scheduled meanwhile has to wait in its queue
+	 */
+	private static final class Blocker implements Runnable {
+		private final CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+
+		public void run() {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	private static Runnable record(final List<String> order, final String name, final CountDownLatch done) {
+		return new Runnable() {
+			public void run() {
+				synchronized (order) {
+					order.add(name);
+				}
+				done.countDown();
+			}
+		};
+	}
+
+	private static Blocker block(ProcessScheduler s) throws InterruptedException {
+		Blocker b = new Blocker();
+		s.schedule(ProcessPriority.EXTREME, b);
+		assertTrue(b.started.await(5, TimeUnit.SECONDS));
+		return b;
+	}
+
+	@Test
+	public void testHighestPriorityFirstThenFifo() throws InterruptedException {
+		ProcessScheduler s = new ProcessScheduler(1, Long.MAX_VALUE, DAEMONS);
+		try {
+			Blocker b = block(s);
+			List<String> order = new ArrayList<String>();
+			CountDownLatch done = new CountDownLatch(6);
+			s.schedule(ProcessPriority.LOWEST, record(order, "lowest", done));
+			s.schedule(ProcessPriority.MEDIUM, record(order, "medium1", done));
+			s.schedule(ProcessPriority.EXTREME, record(order, "extreme", done));
+			s.schedule(ProcessPriority.LOW, record(order, "low", done));
+			s.schedule(ProcessPriority.MEDIUM, record(order, "medium2", done));
+			s.schedule(ProcessPriority.HIGH, record(order, "high", done));
+			assertEquals(6, s.queued());
+			b.release.countDown();
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			assertEquals(Arrays.asList("extreme", "high", "medium1", "medium2", "low", "lowest"), order);
+		} finally {
+			s.shutdown();
+		}
+	}
+
+	@Test
+	public void testWaitingProcessIsAged() throws InterruptedException {
+		ProcessScheduler s = new ProcessScheduler(1, 300, DAEMONS);
+		try {
+			Blocker b = block(s);
+			List<String> order = new ArrayList<String>();
+			CountDownLatch done = new CountDownLatch(2);
+			s.schedule(ProcessPriority.LOWEST, record(order, "aged", done));
+			// Four intervals raise LOWEST to EXTREME, above a fresh HIGH process
+			Thread.sleep(1300);
+			s.schedule(ProcessPriority.HIGH, record(order, "high", done));
+			b.release.countDown();
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			assertEquals(Arrays.asList("aged", "high"), order);
+		} finally {
+			s.shutdown();
+		}
+	}
+
+	@Test
+	public void testNoAgingWithinInterval() throws InterruptedException {
+		ProcessScheduler s = new ProcessScheduler(1, 60000, DAEMONS);
+		try {
+			Blocker b = block(s);
+			List<String> order = new ArrayList<String>();
+			CountDownLatch done = new CountDownLatch(2);
+			s.schedule(ProcessPriority.LOWEST, record(order, "lowest", done));
+			Thread.sleep(200);
+			s.schedule(ProcessPriority.LOW, record(order, "low", done));
+			b.release.countDown();
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			assertEquals(Arrays.asList("low", "lowest"), order);
+		} finally {
+			s.shutdown();
+		}
+	}
+
+	@Test
+	public void testRunsAtMostSlotsAtOnce() throws InterruptedException {
+		final ProcessScheduler s = new ProcessScheduler(3, 1000, DAEMONS);
+		try {
+			final int[] peak = new int[1];
+			final CountDownLatch done = new CountDownLatch(12);
+			for (int i = 0; i < 12; i++) {
+				s.schedule(ProcessPriority.MEDIUM, new Runnable() {
+					public void run() {
+						synchronized (peak) {
+							peak[0] = Math.max(peak[0], s.running());
+						}
+						try {
+							Thread.sleep(20);
+						} catch (InterruptedException e) {
+						}
+						done.countDown();
+					}
+				});
+			}
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			assertTrue(peak[0] >= 1 && peak[0] <= 3);
+			assertEquals(3, s.getSlots());
+		} finally {
+			s.shutdown();
+		}
+	}
+
+	@Test
+	public void testShutdownDropsWaitingProcesses() throws InterruptedException {
+		ProcessScheduler s = new ProcessScheduler(1, 1000, DAEMONS);
+		Blocker b = block(s);
+		s.schedule(ProcessPriority.HIGH, new Runnable() {
+			public void run() {
+			}
+		});
+		s.shutdown();
+		assertEquals(0, s.queued());
+		b.release.countDown();
+		try {
+			s.schedule(ProcessPriority.HIGH, b);
+			throw new AssertionError("Scheduled after shutdown");
+		} catch (IllegalStateException expected) {
+		}
+	}
+}
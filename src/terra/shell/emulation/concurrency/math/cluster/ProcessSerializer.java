@@ -0,0 +1,44 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes JProcesses and ReturnValues for transfer to another Node, and reads
+ * them back there. Serializers are registered with ProcessSerializers under an
+ * id, which is sent ahead of every serialized object so the receiving Node
+ * knows how to read it. A serializer must therefore be registered under the
+ * same id on every Node of the cluster
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+public interface ProcessSerializer {
+
+	/**
+	 * Name of the serializer, as selected with the "serializer" option of the
+	 * ClusterService configuration
+	 */
+	public String getName();
+
+	/**
+	 * Write an object
+	 *
+	 * @param o   Object to be written, a JProcess or ReturnValue
+	 * @param out Stream to write to, closing it is left to the caller
+	 * @throws IOException
+	 */
+	public void write(Object o, OutputStream out) throws IOException;
+
+	/**
+	 * Read an object written by write()
+	 *
+	 * @param in     Stream to read from
+	 * @param loader ClassLoader the classes of the object are found with
+	 * @return The object
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public Object read(InputStream in, ClassLoader loader) throws IOException, ClassNotFoundException;
+}
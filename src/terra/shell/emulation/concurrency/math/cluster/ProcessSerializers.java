@@ -0,0 +1,178 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.Hashtable;
+
+/**
+ * Registry of the ProcessSerializers known to this Node, by id. The built in
+ * serializers are always registered:
+ * <ul>
+ * <li>JAVA (0), plain Java serialization, carrying full class descriptors</li>
+ * <li>COMPACT (1), Java serialization which only writes the name and
+ * serialVersionUID of each class, the default. The receiving Node uses its own
+ * descriptor of the class, so both Nodes must hold the same version of every
+ * class sent, which ClassBundles guarantee for the classes of a process</li>
+ * </ul>
+ * Under either serializer, processes sent in bulk can hand-write their state
+ * with private writeObject() and readObject() methods, as JProcess does for the
+ * state every process carries
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+public final class ProcessSerializers {
+	public static final int JAVA = 0, COMPACT = 1;
+
+	private static final Hashtable<Integer, ProcessSerializer> serializers = new Hashtable<Integer, ProcessSerializer>();
+
+	static {
+		register(JAVA, new JavaSerializer(false));
+		register(COMPACT, new JavaSerializer(true));
+	}
+
+	private ProcessSerializers() {
+	}
+
+	/**
+	 * Register a serializer, replacing any registered under the same id
+	 *
+	 * @param id         Id sent ahead of objects written by the serializer, between
+	 *                   0 and 255
+	 * @param serializer Serializer to register
+	 */
+	public static void register(int id, ProcessSerializer serializer) {
+		if (id < 0 || id > 255)
+			throw new IllegalArgumentException("Serializer id out of range: " + id);
+		serializers.put(id, serializer);
+	}
+
+	/**
+	 * Get a serializer by its id
+	 *
+	 * @return The serializer, or NULL if none is registered under "id"
+	 */
+	public static ProcessSerializer get(int id) {
+		return serializers.get(id);
+	}
+
+	/**
+	 * Find the id of a serializer by its name, ignoring case
+	 *
+	 * @return The id, or -1 if no serializer of that name is registered
+	 */
+	public static int find(String name) {
+		synchronized (serializers) {
+			for (Integer id : serializers.keySet())
+				if (serializers.get(id).getName().equalsIgnoreCase(name))
+					return id;
+		}
+		return -1;
+	}
+
+	/**
+	 * Write "o" with the serializer of "id", preceded by the id
+	 *
+	 * @throws IOException If no serializer is registered under "id", or writing
+	 *                     fails
+	 */
+	static void write(int id, Object o, OutputStream out) throws IOException {
+		ProcessSerializer s = get(id);
+		if (s == null)
+			throw new IOException("Unknown serializer " + id);
+		out.write(id);
+		s.write(o, out);
+	}
+
+	/**
+	 * Read an object written by write(int, Object, OutputStream)
+	 *
+	 * @throws StreamCorruptedException If the serializer it was written with is not
+	 *                                  registered on this Node
+	 * @throws IOException               If reading fails
+	 */
+	static Object read(InputStream in, ClassLoader loader) throws IOException, ClassNotFoundException {
+		return read(in, loader, null);
+	}
+
+	/**
+	 * Read an object written by write(int, Object, OutputStream) on behalf of a
+	 * Node, the StagedAssets it holds are resolved against the Node's assets. Only
+	 * the built in serializers bind StagedAssets to a Node
+	 *
+	 * @param assets Assets staged on the Node reading the object
+	 * @throws StreamCorruptedException If the serializer it was written with is not
+	 *                                  registered on this Node
+	 * @throws IOException               If reading fails
+	 */
+	static Object read(InputStream in, ClassLoader loader, AssetStore assets)
+			throws IOException, ClassNotFoundException {
+		int id = in.read();
+		if (id < 0)
+			throw new StreamCorruptedException("Missing serializer id");
+		ProcessSerializer s = get(id);
+		if (s == null)
+			throw new StreamCorruptedException("Unknown serializer " + id);
+		if (s instanceof JavaSerializer)
+			return ((JavaSerializer) s).read(in, loader, assets);
+		return s.read(in, loader);
+	}
+
+	/**
+	 * The built in serializers
+	 */
+	private static final class JavaSerializer implements ProcessSerializer {
+		private final boolean compact;
+
+		JavaSerializer(boolean compact) {
+			this.compact = compact;
+		}
+
+		public String getName() {
+			return compact ? "COMPACT" : "JAVA";
+		}
+
+		public void write(Object o, OutputStream out) throws IOException {
+			ObjectOutputStream objOut = compact ? new CompactOutputStream(out) : new ObjectOutputStream(out);
+			objOut.writeObject(o);
+			objOut.flush();
+		}
+
+		public Object read(InputStream in, ClassLoader loader) throws IOException, ClassNotFoundException {
+			return read(in, loader, null);
+		}
+
+		Object read(InputStream in, ClassLoader loader, AssetStore assets) throws IOException, ClassNotFoundException {
+			JProcessRealizer objIn = new JProcessRealizer(in);
+			objIn.setClassLoader(loader);
+			objIn.setCompact(compact);
+			objIn.setAssetStore(assets);
+			try {
+				return objIn.readObject();
+			} finally {
+				objIn.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes class descriptors as the class name and serialVersionUID only, read
+	 * back by JProcessRealizer.setCompact()
+	 */
+	private static final class CompactOutputStream extends ObjectOutputStream {
+
+		CompactOutputStream(OutputStream out) throws IOException {
+			super(out);
+		}
+
+		@Override
+		protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+			writeUTF(desc.getName());
+			writeLong(desc.getSerialVersionUID());
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * OutputStream of a process run on behalf of another Node, which streams the
+ * process's output back to the origin in OUTPUT Frames. Output is buffered and
+ * sent whenever the buffer fills up, or when ConnectionManager periodically
+ * flushes open outputs, so that a process logging word by word does not send a
+ * Frame per word. The origin grants credit for the bytes it has consumed, and a
+ * process which outruns its origin blocks once its credit and buffer are used
+ * up.
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+final class RemoteOutput extends OutputStream {
+	private final ServerConnection conn;
+	private final int id;
+	private final byte[] buf;
+	private int count, credit;
+	private boolean closed;
+
+	/**
+	 * @param conn   Connection to the origin Node
+	 * @param id     Id the origin knows the process by
+	 * @param window Initial credit granted by the origin, in bytes
+	 * @param chunk  Size of the buffer, and so of the largest OUTPUT Frame
+	 */
+	public RemoteOutput(ServerConnection conn, int id, int window, int chunk) {
+		this.conn = conn;
+		this.id = id;
+		this.credit = window;
+		this.buf = new byte[Math.max(1, chunk)];
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	@Override
+	public synchronized void write(int b) throws IOException {
+		if (count == buf.length)
+			drain(true);
+		buf[count++] = (byte) b;
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (count == buf.length)
+				drain(true);
+			int n = Math.min(len, buf.length - count);
+			System.arraycopy(b, off, buf, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Flushing is left to the periodic flush, callers such as Logger flush after
+	 * every word
+	 */
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * Send as much buffered output as the origin has granted credit for, without
+	 * blocking
+	 *
+	 * @throws IOException If the connection to the origin was lost
+	 */
+	public synchronized void flushAvailable() throws IOException {
+		drain(false);
+	}
+
+	/**
+	 * Credit granted by the origin once it has consumed output
+	 *
+	 * @param bytes Number of bytes granted
+	 */
+	public synchronized void grant(int bytes) {
+		credit += bytes;
+		notifyAll();
+	}
+
+	/**
+	 * Send the remaining output, waiting for credit as needed
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		try {
+			while (count > 0)
+				drain(true);
+		} finally {
+			closed = true;
+		}
+	}
+
+	// Must hold the lock on this stream
+	private void drain(boolean block) throws IOException {
+		while (count > 0) {
+			if (closed || conn.isClosed())
+				throw new IOException("Output stream to origin is closed");
+			if (credit == 0) {
+				if (!block)
+					return;
+				try {
+					// Woken by grant(), the timeout notices a lost connection
+					wait(250);
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted waiting for output credit", e);
+				}
+				continue;
+			}
+			int n = Math.min(credit, count);
+			Frame.Builder f = new Frame.Builder();
+			f.out().writeInt(id);
+			f.out().write(buf, 0, n);
+			conn.send(f.build(FrameType.OUTPUT));
+			System.arraycopy(buf, n, buf, 0, count - n);
+			count -= n;
+			credit -= n;
+		}
+	}
+}
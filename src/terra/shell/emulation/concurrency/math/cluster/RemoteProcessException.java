@@ -0,0 +1,21 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+/**
+ * Thrown through the future of a submitted JProcess when the process ran on
+ * its Node, but did not complete successfully or lost its ReturnValue
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+public class RemoteProcessException extends Exception {
+
+	private static final long serialVersionUID = 3920513297046741128L;
+
+	public RemoteProcessException() {
+	}
+
+	public RemoteProcessException(String message) {
+		super(message);
+	}
+
+}
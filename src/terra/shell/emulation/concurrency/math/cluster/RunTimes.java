@@ -0,0 +1,50 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.util.Arrays;
+
+/**
+ * The most recent run times of one class of process, from which the delay
+ * before a Speculative process is dispatched a second time is taken. Only a
+ * window of recent samples is kept, so that the delay follows the cluster as
+ * Nodes come, go and change load.
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+final class RunTimes {
+	private static final int WINDOW = 128;
+	/**
+	 * Samples needed before percentiles are trusted
+	 */
+	private static final int MIN_SAMPLES = 16;
+
+	private final long[] samples = new long[WINDOW];
+	private int count, next;
+
+	/**
+	 * Record the run time of a completed process
+	 *
+	 * @param nanos Time from dispatch to completion, in NS
+	 */
+	public synchronized void record(long nanos) {
+		samples[next] = nanos;
+		next = (next + 1) % WINDOW;
+		if (count < WINDOW)
+			count++;
+	}
+
+	/**
+	 * Percentile of the recorded run times
+	 *
+	 * @param p Percentile, between 0 and 100
+	 * @return Run time, in NS, or -1 if too few run times have been recorded
+	 */
+	public synchronized long percentile(double p) {
+		if (count < MIN_SAMPLES)
+			return -1;
+		long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+		int i = (int) Math.ceil(Math.max(0, Math.min(100, p)) / 100 * count) - 1;
+		return sorted[Math.max(0, i)];
+	}
+}
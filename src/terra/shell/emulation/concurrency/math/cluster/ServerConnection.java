@@ -0,0 +1,431 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import terra.shell.utils.JProcess;
+
+/**
+ * Server side of a connection from a remote Node. All reads happen on the
+ * cluster server's selector thread, which decodes Frames into an inbox. The
+ * requests in the inbox are served by one worker at a time, so Frames of a
+ * connection are always handled in order. Writes are attempted directly, and
+ * whatever the socket cannot take right away is left to the selector thread.
+ * The raw content following a FILE Frame is written straight to a spool file,
+ * which is handed to the request following the FILE.
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+final class ServerConnection {
+	/**
+	 * Number of decoded Frames after which reading from a connection pauses until
+	 * its worker catches up
+	 */
+	private static final int MAX_INBOX = 64;
+	private static final int MAX_HANDSHAKE_LENGTH = 64;
+
+	private final SocketChannel ch;
+	private final Selector selector;
+	private final InetAddress remote;
+	private SelectionKey key;
+	private final FrameDecoder decoder;
+	private final LinkedBlockingQueue<Frame> inbox = new LinkedBlockingQueue<Frame>();
+	private final ArrayDeque<ByteBuffer> outbox = new ArrayDeque<ByteBuffer>();
+	private final StringBuilder handshake = new StringBuilder();
+	private volatile FrameCompressor compressor = FrameCompressor.NONE;
+	// Traffic is counted once the handshake is done
+	private volatile NodeMetrics metrics;
+	// Outputs of the processes streaming back over this connection, by id
+	private final Hashtable<Integer, RemoteOutput> outputs = new Hashtable<Integer, RemoteOutput>();
+	// Processes submitted over this connection which have not completed, by id
+	private final Hashtable<Integer, JProcess> submissions = new Hashtable<Integer, JProcess>();
+	// Directory received files are spooled to
+	private final File spool;
+	// Received files not yet claimed by a request
+	private final ArrayDeque<File> files = new ArrayDeque<File>();
+	// File being received, and the FILE Frame which announced it
+	private FileChannel file;
+	private File fileName;
+	private Frame fileFrame;
+	private long fileRemaining;
+	private boolean handshaken, serving, paused;
+	private volatile boolean closed;
+
+	/**
+	 * @param ch       Accepted channel
+	 * @param selector Selector of the cluster server
+	 * @param spool      Directory to spool received files to
+	 * @param maxPayload Largest Frame payload to accept, in bytes
+	 * @throws IOException
+	 */
+	public ServerConnection(SocketChannel ch, Selector selector, File spool, int maxPayload) throws IOException {
+		this.decoder = new FrameDecoder(maxPayload);
+		this.ch = ch;
+		this.selector = selector;
+		this.spool = spool;
+		this.remote = ch.socket().getInetAddress();
+		ch.configureBlocking(false);
+		ch.socket().setKeepAlive(true);
+		ch.socket().setTcpNoDelay(true);
+	}
+
+	/**
+	 * Register this connection with the selector, must be called on the selector
+	 * thread
+	 *
+	 * @throws IOException
+	 */
+	void register() throws IOException {
+		key = ch.register(selector, SelectionKey.OP_READ, this);
+	}
+
+	public InetAddress getRemoteAddress() {
+		return remote;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Read whatever is available from the socket, called by the selector thread
+	 *
+	 * @param scratch Buffer to read into
+	 * @return The handshake line, once it has fully arrived, otherwise NULL
+	 * @throws IOException If the connection was closed, or sent malformed data
+	 */
+	String readAvailable(ByteBuffer scratch) throws IOException {
+		scratch.clear();
+		int read = ch.read(scratch);
+		if (read == -1)
+			throw new IOException("Connection closed by " + remote);
+		NodeMetrics m = metrics;
+		if (m != null)
+			m.received(read);
+		scratch.flip();
+		String line = null;
+		if (!handshaken) {
+			while (scratch.hasRemaining()) {
+				byte b = scratch.get();
+				if (b == '\n') {
+					handshaken = true;
+					line = handshake.toString();
+					break;
+				}
+				if (handshake.length() >= MAX_HANDSHAKE_LENGTH)
+					throw new IOException("Handshake line too long");
+				if (b != '\r')
+					handshake.append((char) b);
+			}
+		}
+		ArrayList<Frame> frames = new ArrayList<Frame>();
+		while (scratch.hasRemaining()) {
+			if (file != null) {
+				receiveFile(scratch, frames);
+				continue;
+			}
+			decoder.decode(scratch, frames);
+			// The decoder stops after a FILE, the file's content follows
+			if (!frames.isEmpty() && frames.get(frames.size() - 1).getType() == FrameType.FILE)
+				openFile(frames.remove(frames.size() - 1), frames);
+		}
+		inbox.addAll(frames);
+		if (inbox.size() >= MAX_INBOX)
+			pauseReading();
+		return line;
+	}
+
+	private void openFile(Frame f, ArrayList<Frame> frames) throws IOException {
+		long size = f.payloadIn().readLong();
+		if (size < 0)
+			throw new IOException("Invalid file size: " + size);
+		fileName = File.createTempFile("transfer", ".tmp", spool);
+		file = FileChannel.open(fileName.toPath(), StandardOpenOption.WRITE);
+		fileFrame = f;
+		fileRemaining = size;
+		if (size == 0)
+			finishFile(frames);
+	}
+
+	/**
+	 * Write the part of "scratch" which belongs to the file being received. With a
+	 * direct scratch buffer, file content does not pass through the heap
+	 */
+	private void receiveFile(ByteBuffer scratch, ArrayList<Frame> frames) throws IOException {
+		int n = (int) Math.min(scratch.remaining(), fileRemaining);
+		ByteBuffer slice = scratch.duplicate();
+		slice.limit(slice.position() + n);
+		while (slice.hasRemaining())
+			file.write(slice);
+		scratch.position(scratch.position() + n);
+		fileRemaining -= n;
+		if (fileRemaining == 0)
+			finishFile(frames);
+	}
+
+	private void finishFile(ArrayList<Frame> frames) throws IOException {
+		file.close();
+		file = null;
+		synchronized (files) {
+			files.add(fileName);
+		}
+		frames.add(fileFrame);
+		fileName = null;
+		fileFrame = null;
+	}
+
+	/**
+	 * Claim the oldest file received on this connection. The caller becomes
+	 * responsible for the file, and must move or delete it
+	 *
+	 * @return The received file, or NULL if there is none
+	 */
+	File takeFile() {
+		synchronized (files) {
+			return files.poll();
+		}
+	}
+
+	/**
+	 * Claim this connection for a worker if it has requests waiting and is not
+	 * already being served
+	 *
+	 * @return True if the caller must schedule a worker for this connection
+	 */
+	synchronized boolean claim() {
+		if (serving || inbox.isEmpty() || closed)
+			return false;
+		serving = true;
+		return true;
+	}
+
+	/**
+	 * Take the next request without waiting, releasing the claim on this
+	 * connection if there is none
+	 *
+	 * @return The next request, or NULL if the inbox is empty
+	 */
+	synchronized Frame nextRequest() {
+		Frame f = inbox.poll();
+		if (f == null)
+			serving = false;
+		else
+			resumeReading();
+		return f;
+	}
+
+	/**
+	 * Wait for the next Frame of an exchange in progress
+	 *
+	 * @param timeout Maximum time to wait, in MS
+	 * @return The next Frame
+	 * @throws IOException If the connection closes, or the Frame does not arrive
+	 *                     in time
+	 */
+	public Frame read(long timeout) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		try {
+			while (true) {
+				Frame f = inbox.poll(Math.min(250, Math.max(1, deadline - System.currentTimeMillis())),
+						TimeUnit.MILLISECONDS);
+				if (f != null) {
+					synchronized (this) {
+						resumeReading();
+					}
+					return f;
+				}
+				if (closed)
+					throw new IOException("Connection to " + remote + " closed");
+				if (System.currentTimeMillis() >= deadline)
+					throw new IOException("Timed out waiting for " + remote);
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted waiting for " + remote, e);
+		}
+	}
+
+	/**
+	 * Queue a Frame to be sent, writing as much of it right away as the socket
+	 * takes
+	 *
+	 * @param f Frame to send
+	 * @throws IOException If the connection is closed
+	 */
+	public void send(Frame f) throws IOException {
+		sendRaw(compressor.compress(f).toBuffers());
+	}
+
+	/**
+	 * Set how Frames sent on this connection are compressed, once the handshake
+	 * has negotiated the codecs the remote Node accepts
+	 *
+	 * @param compressor Compressor for this connection
+	 */
+	void setCompressor(FrameCompressor compressor) {
+		this.compressor = compressor;
+	}
+
+	/**
+	 * Count the traffic of this connection in the metrics of the remote Node
+	 *
+	 * @param metrics Metrics of the remote Node
+	 */
+	void setMetrics(NodeMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Queue raw bytes, such as the handshake line, to be sent
+	 *
+	 * @param s Line to send
+	 * @throws IOException If the connection is closed
+	 */
+	void sendLine(String s) throws IOException {
+		sendRaw(new ByteBuffer[] { ByteBuffer.wrap((s + "\n").getBytes(StandardCharsets.US_ASCII)) });
+	}
+
+	private void sendRaw(ByteBuffer[] bufs) throws IOException {
+		NodeMetrics m = metrics;
+		if (m != null) {
+			long size = 0;
+			for (ByteBuffer b : bufs)
+				size += b.remaining();
+			m.sent(size);
+		}
+		synchronized (outbox) {
+			if (closed)
+				throw new IOException("Connection to " + remote + " closed");
+			if (outbox.isEmpty())
+				ch.write(bufs);
+			for (ByteBuffer b : bufs)
+				if (b.hasRemaining())
+					outbox.add(b);
+			if (!outbox.isEmpty())
+				setInterest(SelectionKey.OP_WRITE, true);
+		}
+	}
+
+	/**
+	 * Write queued data, called by the selector thread once the socket is
+	 * writable
+	 *
+	 * @throws IOException
+	 */
+	void flush() throws IOException {
+		synchronized (outbox) {
+			while (!outbox.isEmpty()) {
+				ByteBuffer b = outbox.peek();
+				ch.write(b);
+				if (b.hasRemaining())
+					return;
+				outbox.poll();
+			}
+			setInterest(SelectionKey.OP_WRITE, false);
+		}
+	}
+
+	private void pauseReading() {
+		synchronized (this) {
+			if (!paused) {
+				paused = true;
+				setInterest(SelectionKey.OP_READ, false);
+			}
+		}
+	}
+
+	// Must hold the lock on this connection
+	private void resumeReading() {
+		if (paused && inbox.size() < MAX_INBOX / 2) {
+			paused = false;
+			setInterest(SelectionKey.OP_READ, true);
+		}
+	}
+
+	private void setInterest(int op, boolean on) {
+		if (key == null || !key.isValid())
+			return;
+		int ops = key.interestOps();
+		key.interestOps(on ? (ops | op) : (ops & ~op));
+		selector.wakeup();
+	}
+
+	void addOutput(RemoteOutput o) {
+		outputs.put(o.getId(), o);
+	}
+
+	void removeOutput(RemoteOutput o) {
+		outputs.remove(o.getId(), o);
+	}
+
+	/**
+	 * Get the output of a process streaming back over this connection
+	 *
+	 * @param id Id of the process
+	 * @return The process's output, or NULL if it has already completed
+	 */
+	RemoteOutput getOutput(int id) {
+		return outputs.get(id);
+	}
+
+	void addSubmission(int id, JProcess p) {
+		submissions.put(id, p);
+	}
+
+	/**
+	 * Whether a submitted process is still wanted, it is not once cancelled
+	 *
+	 * @param id Id of the submission
+	 * @param p  The submitted process
+	 * @return True if the submission has not been cancelled
+	 */
+	boolean hasSubmission(int id, JProcess p) {
+		return submissions.get(id) == p;
+	}
+
+	/**
+	 * Forget a submission, once it has completed or was cancelled
+	 *
+	 * @param id Id of the submission
+	 * @return The submitted process, or NULL if it had already been removed
+	 */
+	JProcess removeSubmission(int id) {
+		return submissions.remove(id);
+	}
+
+	public void close() {
+		closed = true;
+		if (key != null)
+			key.cancel();
+		try {
+			ch.close();
+		} catch (IOException e) {
+		}
+		// Files nobody claimed, and a partially received one, are of no use
+		synchronized (files) {
+			for (File f : files)
+				f.delete();
+			files.clear();
+		}
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {
+			}
+			fileName.delete();
+		}
+	}
+}
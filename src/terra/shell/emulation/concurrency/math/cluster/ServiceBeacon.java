@@ -0,0 +1,142 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+
+import terra.shell.logging.LogManager;
+import terra.shell.logging.Logger;
+
+/**
+ * Announces this Node on a UDP multicast group and listens for the
+ * announcements of other Nodes. A Node hearing an announcement answers the
+ * sender directly, so a newly started Node learns about every Node on the LAN
+ * within one round trip instead of probing the whole subnet.
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+final class ServiceBeacon {
+	private static final String ANNOUNCE = "JSH:ANNOUNCE:", HERE = "JSH:HERE:";
+	private static final int MAX_PACKET = 128;
+
+	private final InetAddress group;
+	private final int port;
+	private final Listener listener;
+	private final Logger log = LogManager.getLogger("ServiceBeacon");
+	private MulticastSocket socket;
+
+	/**
+	 * Create a beacon, nothing is sent or received until start() is called
+	 *
+	 * @param group    Multicast group to announce on
+	 * @param port     UDP port of the group
+	 * @param listener Informed of every Node heard
+	 */
+	public ServiceBeacon(InetAddress group, int port, Listener listener) {
+		this.group = group;
+		this.port = port;
+		this.listener = listener;
+	}
+
+	/**
+	 * Join the multicast group, start listening and announce this Node
+	 *
+	 * @throws IOException If the group could not be joined
+	 */
+	public void start() throws IOException {
+		socket = new MulticastSocket(port);
+		socket.setTimeToLive(1);
+		int joined = 0;
+		Enumeration<NetworkInterface> nics = NetworkInterface.getNetworkInterfaces();
+		while (nics.hasMoreElements()) {
+			NetworkInterface nic = nics.nextElement();
+			try {
+				if (!nic.isUp() || !nic.supportsMulticast())
+					continue;
+				socket.joinGroup(new InetSocketAddress(group, port), nic);
+				joined++;
+			} catch (SocketException e) {
+				log.debug("Unable to join " + group + " on " + nic.getName() + ": " + e.getMessage());
+			}
+		}
+		if (joined == 0) {
+			socket.close();
+			throw new IOException("No multicast capable interface to join " + group + " on");
+		}
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				listen();
+			}
+		});
+		t.setName("ClusterBeacon");
+		t.setDaemon(true);
+		t.start();
+		announce();
+	}
+
+	/**
+	 * Announce this Node to the group, every Node hearing it answers directly
+	 */
+	public void announce() {
+		send(ANNOUNCE, group);
+	}
+
+	private void send(String type, InetAddress to) {
+		byte[] b = (type + Frame.PROTOCOL_VERSION).getBytes(StandardCharsets.US_ASCII);
+		try {
+			socket.send(new DatagramPacket(b, b.length, to, port));
+		} catch (IOException e) {
+			log.debug("Unable to send beacon to " + to + ": " + e.getMessage());
+		}
+	}
+
+	private void listen() {
+		byte[] buf = new byte[MAX_PACKET];
+		while (!socket.isClosed()) {
+			DatagramPacket p = new DatagramPacket(buf, buf.length);
+			try {
+				socket.receive(p);
+			} catch (IOException e) {
+				if (!socket.isClosed())
+					log.err("Beacon failed: " + e.getMessage());
+				return;
+			}
+			String msg = new String(p.getData(), p.getOffset(), p.getLength(), StandardCharsets.US_ASCII);
+			boolean announce = msg.startsWith(ANNOUNCE);
+			if (!announce && !msg.startsWith(HERE))
+				continue;
+			String version = msg.substring(announce ? ANNOUNCE.length() : HERE.length());
+			// Nodes speaking another protocol version could not be connected to anyway
+			if (!version.equals(String.valueOf(Frame.PROTOCOL_VERSION)))
+				continue;
+			InetAddress from = p.getAddress();
+			if (!listener.heard(from))
+				continue;
+			if (announce)
+				send(HERE, from);
+		}
+	}
+
+	public void close() {
+		if (socket != null)
+			socket.close();
+	}
+
+	/**
+	 * Informed of the Nodes a ServiceBeacon hears
+	 */
+	interface Listener {
+		/**
+		 * @param address Address of the Node heard
+		 * @return False if the address belongs to this Node, and must be ignored
+		 */
+		boolean heard(InetAddress address);
+	}
+}
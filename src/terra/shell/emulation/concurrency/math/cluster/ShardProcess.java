@@ -0,0 +1,101 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import terra.shell.utils.JProcess;
+
+/**
+ * One shard of a ClusterStream, run on a remote Node. The shard's elements are
+ * passed through the stream's map and filter stages, and either folded into a
+ * partial result with the stream's accumulator, or collected into a list, which
+ * is returned in a ShardReturn.
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+@JProcess.ReturnType(getReturnType = terra.shell.utils.system.ReturnType.ASYNCHRONOUS)
+@JProcess.Depends(dependencies = { ShardReturn.class })
+public final class ShardProcess extends JProcess {
+
+	private static final long serialVersionUID = -5402117734460905170L;
+
+	// Either the elements of the shard, or the range [from, to) of a ranged stream
+	private final List<?> elements;
+	private final long from, to;
+	// ClusterStream.Mapper and ClusterStream.Filter stages, in order
+	private final List<Object> stages;
+	private final Object identity;
+	// NULL if the elements are collected
+	private final ClusterStream.Accumulator<Object, Object> acc;
+	// Classes of the stages and elements, only needed at the origin
+	private final transient Class<?>[] deps;
+	private ShardReturn rv;
+
+	ShardProcess(List<?> elements, long from, long to, List<Object> stages, Object identity,
+			ClusterStream.Accumulator<Object, Object> acc, Class<?>[] deps) {
+		this.elements = elements;
+		this.from = from;
+		this.to = to;
+		this.stages = stages;
+		this.identity = identity;
+		this.acc = acc;
+		this.deps = deps;
+	}
+
+	@Override
+	public String getName() {
+		return "ClusterStreamShard";
+	}
+
+	@Override
+	public Class<?>[] getDependencies() {
+		Class<?>[] own = super.getDependencies();
+		if (deps == null)
+			return own;
+		Class<?>[] all = new Class<?>[own.length + deps.length];
+		System.arraycopy(own, 0, all, 0, own.length);
+		System.arraycopy(deps, 0, all, own.length, deps.length);
+		return all;
+	}
+
+	@Override
+	public void createReturn() {
+		rv = new ShardReturn(this);
+	}
+
+	@Override
+	public ShardReturn getReturn() {
+		return rv;
+	}
+
+	@Override
+	public boolean start() {
+		Object result = acc == null ? new ArrayList<Object>() : identity;
+		if (elements != null) {
+			for (Object e : elements)
+				result = process(e, result);
+		} else {
+			for (long i = from; i < to; i++)
+				result = process(i, result);
+		}
+		rv.setValues(result);
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Object process(Object v, Object result) {
+		for (Object s : stages) {
+			if (s instanceof ClusterStream.Filter) {
+				if (!((ClusterStream.Filter<Object>) s).test(v))
+					return result;
+			} else
+				v = ((ClusterStream.Mapper<Object, Object>) s).apply(v);
+		}
+		if (acc == null) {
+			((List<Object>) result).add(v);
+			return result;
+		}
+		return acc.apply(result, v);
+	}
+}
@@ -0,0 +1,43 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import terra.shell.utils.JProcess;
+import terra.shell.utils.ReturnValue;
+
+/**
+ * ReturnValue of a ShardProcess, the partial result of its shard
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+public final class ShardReturn extends ReturnValue<Object> {
+
+	private static final long serialVersionUID = 6143915022769840751L;
+
+	private Object result;
+
+	public ShardReturn(JProcess p) {
+		super(p);
+	}
+
+	/**
+	 * @deprecated Use {@link #setValues(Object)} instead
+	 */
+	@Deprecated
+	@Override
+	public boolean processReturn(Object... values) {
+		if (values.length != 1)
+			return false;
+		return setValues(values[0]);
+	}
+
+	@Override
+	public boolean setValues(Object values) {
+		result = values;
+		return true;
+	}
+
+	@Override
+	public Object getReturnValue() {
+		return result;
+	}
+}
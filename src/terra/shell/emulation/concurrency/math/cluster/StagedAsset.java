@@ -0,0 +1,155 @@
+package terra.shell.emulation.concurrency.math.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reference to a named, versioned asset staged on remote Nodes with
+ * ConnectionManager.stage(). A JProcess holds the reference instead of the
+ * asset itself, so that only the reference is sent with every process, and
+ * resolves it once it runs on a Node the asset was staged on.
+ * <p>
+ * In image editing for example, the sub-images are staged on each Node once,
+ * and every edit only sends a small process referencing its sub-image.
+ * <p>
+ * A reference resolves against the assets of the Node which received it, so
+ * several Nodes can run in one JVM. A reference which was never sent, or was
+ * read by a serializer other than JAVA or COMPACT, resolves nowhere.
+ *
+ * @author schirripad@moravian.edu
+ *
+ */
+public final class StagedAsset implements Serializable {
+
+	private static final long serialVersionUID = -2804627314986455873L;
+
+	private final String key, name;
+	private final long version;
+	// Nodes the asset was staged on, only known at the origin
+	private final transient String[] hosts;
+	// Assets of the Node which received the reference
+	private transient AssetStore store;
+
+	StagedAsset(String key, String name, long version, String[] hosts) {
+		this.key = key;
+		this.name = name;
+		this.version = version;
+		this.hosts = hosts;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	String getKey() {
+		return key;
+	}
+
+	/**
+	 * Addresses of the Nodes the asset was staged on
+	 *
+	 * @return Host addresses, empty if this reference was received from another
+	 *         Node
+	 */
+	public String[] getHosts() {
+		return hosts == null ? new String[0] : hosts.clone();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if (in instanceof JProcessRealizer)
+			store = ((JProcessRealizer) in).getAssetStore();
+	}
+
+	private AssetStore.Asset resolve() throws IOException {
+		AssetStore.Asset a = store == null ? null : store.get(key, version);
+		if (a == null)
+			throw new IOException("Version " + version + " of asset " + name + " is not staged on this Node");
+		return a;
+	}
+
+	/**
+	 * Get the content of the asset as staged on this Node. An asset staged as a
+	 * file is read into memory, see file() and map()
+	 *
+	 * @return The asset's bytes, which must not be modified
+	 * @throws IOException If this version of the asset is not staged on this
+	 *                     Node
+	 */
+	public byte[] bytes() throws IOException {
+		AssetStore.Asset a = resolve();
+		if (a.getData() != null)
+			return a.getData();
+		return Files.readAllBytes(a.getFile().toPath());
+	}
+
+	/**
+	 * Get the file holding an asset staged as a file, which must not be modified
+	 *
+	 * @return The asset's file
+	 * @throws IOException If this version of the asset is not staged on this
+	 *                     Node, or was not staged as a file
+	 */
+	public File file() throws IOException {
+		AssetStore.Asset a = resolve();
+		if (a.getFile() == null)
+			throw new IOException("Asset " + name + " was not staged as a file");
+		return a.getFile();
+	}
+
+	/**
+	 * Map an asset staged as a file into memory, read only, without reading it
+	 * onto the heap
+	 *
+	 * @return The mapped content of the asset
+	 * @throws IOException If this version of the asset is not staged on this
+	 *                     Node, was not staged as a file, or is too large to be
+	 *                     mapped at once
+	 */
+	public MappedByteBuffer map() throws IOException {
+		FileChannel ch = FileChannel.open(file().toPath(), StandardOpenOption.READ);
+		try {
+			return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		} finally {
+			ch.close();
+		}
+	}
+
+	/**
+	 * Get an asset staged as an object
+	 *
+	 * @param type Type of the object, its ClassLoader is used to resolve the
+	 *             object's classes
+	 * @return A new copy of the object
+	 * @throws IOException If this version of the asset is not staged on this
+	 *                     Node, or cannot be read as a "type"
+	 */
+	public <T> T get(Class<T> type) throws IOException {
+		JProcessRealizer in = new JProcessRealizer(new ByteArrayInputStream(bytes()));
+		in.setClassLoader(type.getClassLoader());
+		in.setAssetStore(store);
+		try {
+			return type.cast(in.readObject());
+		} catch (ClassNotFoundException | ClassCastException e) {
+			throw new IOException("Asset " + name + " is not a " + type.getName(), e);
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name + "@" + version;
+	}
+}
@@ -1,6 +1,9 @@
 package terra.shell.utils;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.lang.annotation.ElementType;
@@ -8,8 +11,12 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.net.Inet4Address;
+import java.net.InetAddress;
 import java.util.Scanner;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import terra.shell.logging.LogManager;
 import terra.shell.logging.Logger;
@@ -32,7 +39,10 @@ public abstract class JProcess implements Serializable {
 	private static final long serialVersionUID = -4944113269698016157L;
 	private transient boolean stop, isGoing = true, suspend, firstInit = true;
 	private transient Thread t = null;
-	protected UUID u;
+	// Completed once start() has returned, with its result
+	private transient CompletableFuture<Boolean> done;
+	// Written by hand with the origin, see writeObject()
+	protected transient UUID u;
 	private transient UUID sUID;
 	private transient boolean uuidset;
 	private transient Logger log = null;
@@ -42,7 +52,7 @@ public abstract class JProcess implements Serializable {
 	protected transient Scanner sc = null;
 	private transient String name = null;
 	private boolean canBeSerialized = false;
-	private Inet4Address origin;
+	private transient Inet4Address origin;
 
 	public JProcess() {
 		u = JSHProcesses.getValidUUID();
@@ -145,11 +155,49 @@ public abstract class JProcess implements Serializable {
 	public void halt() {
 		if (t == null)
 			return;
-		t.stop();
+		// Once complete, the thread is only finishing up, such as notifying listeners
+		if (!getCompletion().isDone())
+			t.stop();
 		if (sc != null)
 			sc.close();
 		sc = null;
-		System.gc();
+		// A process halted before start() returned did not complete successfully
+		getCompletion().complete(false);
+	}
+
+	/**
+	 * Completion signal of the current, or next, run of this process. The future
+	 * is completed the moment start() returns, with the value start() returned, or
+	 * false if start() threw an exception or the process was halted. Listeners can
+	 * be attached with whenComplete() instead of polling isRunning()
+	 * 
+	 * @return Future completed when this process finishes
+	 */
+	public final synchronized CompletableFuture<Boolean> getCompletion() {
+		if (done == null)
+			done = new CompletableFuture<Boolean>();
+		return done;
+	}
+
+	/**
+	 * Start a new run of this process, a new completion signal is created unless
+	 * nobody has asked for the one of this run yet
+	 */
+	private synchronized CompletableFuture<Boolean> newCompletion() {
+		if (done == null || done.isDone())
+			done = new CompletableFuture<Boolean>();
+		return done;
+	}
+
+	/**
+	 * Wait until "completion" is done, or at most "ms", used by the process
+	 * monitors which also need to check for suspension regularly
+	 */
+	private static void awaitCompletion(CompletableFuture<Boolean> completion, long ms) throws Exception {
+		try {
+			completion.get(ms, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+		}
 	}
 
 	/**
@@ -179,25 +227,29 @@ public abstract class JProcess implements Serializable {
 		sUID = UUID.randomUUID();
 		stop = false;
 		isGoing = true;
+		final CompletableFuture<Boolean> completion = newCompletion();
 		// Create a new thread in which to run this process
 		t = new Thread(new Runnable() {
 			public void run() {
 				// Add the process to the process manager (JSHProcesses)
 				JSHProcesses.addProcess(me);
+				boolean success = false;
 				try {
 					// Run the task assigned to this process
-					if (start())
-						;
-					else
+					success = start();
+					if (!success)
 						log.log("Returned non-true value!");
 				} catch (Exception e) {
 					e.printStackTrace();
 				}
+				// Signal completion once the process no longer reports as running, but before
+				// the monitor is woken up by the interrupt below and halts this thread
+				isGoing = false;
+				stop = true;
+				completion.complete(success);
 				// Cleanup
 				stop();
 				t.interrupt();
-				isGoing = false;
-				stop = true;
 
 				return;
 			}
@@ -207,10 +259,12 @@ public abstract class JProcess implements Serializable {
 			// Run the thread which contains the task to be executed
 			t.start();
 			boolean suspended = false;
-			// Simple process monitor
-			while (!t.isInterrupted() && !stop && isGoing) {
-				// Check every 20ms if the process is either suspended, or stopped
-				Thread.sleep(20);
+			// Simple process monitor, halt() completes the process without its thread
+			// reaching the end
+			while (!t.isInterrupted() && !stop && isGoing && !completion.isDone()) {
+				// Wake as soon as the process completes, otherwise check every 20ms if the
+				// process is either suspended, or stopped
+				awaitCompletion(completion, 20);
 				if (suspend & !suspended) {
 					t.wait();
 					suspended = true;
@@ -267,21 +321,23 @@ public abstract class JProcess implements Serializable {
 		if (!holdup) {
 			s = null;
 		}
+		final CompletableFuture<Boolean> completion = newCompletion();
 		t = new Thread(new Runnable() {
 			public void run() {
 				JSHProcesses.addProcess(me);
+				boolean success = false;
 				try {
-					if (start())
-						;
-					else
+					success = start();
+					if (!success)
 						log.log("Returned non-true value!");
 				} catch (Exception e) {
 					e.printStackTrace();
 				}
-				stop();
-				t.interrupt();
 				isGoing = false;
 				stop = true;
+				completion.complete(success);
+				stop();
+				t.interrupt();
 
 				if (!holdup) {
 					terra.shell.utils.system.ReturnType ret = terra.shell.utils.system.ReturnType.VOID;
@@ -309,8 +365,8 @@ public abstract class JProcess implements Serializable {
 			if (holdup)
 				try {
 					boolean suspended = false;
-					while (!t.isInterrupted() && !stop && isGoing) {
-						Thread.sleep(20);
+					while (!t.isInterrupted() && !stop && isGoing && !completion.isDone()) {
+						awaitCompletion(completion, 20);
 						if (suspend & !suspended) {
 							t.wait();
 							suspended = true;
@@ -425,10 +481,44 @@ public abstract class JProcess implements Serializable {
 		return canBeSerialized;
 	}
 
+	/**
+	 * Classes which must be sent along with this process for it to be realized on
+	 * another Node, beyond those it refers to directly, which are found from its
+	 * bytecode. By default these are listed by the Depends annotation, processes
+	 * whose dependencies are only known at runtime override this
+	 * 
+	 * @return Dependency classes of this process
+	 */
+	public Class<?>[] getDependencies() {
+		if (!getClass().isAnnotationPresent(Depends.class))
+			return new Class<?>[0];
+		return getClass().getAnnotation(Depends.class).dependencies();
+	}
+
+	// The UUID and origin are written by hand, as a UUID and an InetAddress are
+	// far costlier to serialize reflectively than the process itself. Processes
+	// sent in bulk can hand-write their own state the same way
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeLong(u.getMostSignificantBits());
+		out.writeLong(u.getLeastSignificantBits());
+		byte[] addr = origin == null ? new byte[0] : origin.getAddress();
+		out.writeByte(addr.length);
+		out.write(addr);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		u = new UUID(in.readLong(), in.readLong());
+		byte[] addr = new byte[in.readUnsignedByte()];
+		in.readFully(addr);
+		origin = addr.length == 0 ? null : (Inet4Address) InetAddress.getByAddress(addr);
+	}
+
 	// List dependencies for JProcess so it can be reinitialized on other systems
 	// properly
-	// If the JProcess is a nested class, be sure to include the enclosing class as
-	// a dependency
+	// Classes the JProcess refers to are found and sent automatically, only
+	// classes it loads by name through reflection need to be listed
 	@Retention(RetentionPolicy.RUNTIME)
 	@Target({ ElementType.LOCAL_VARIABLE, ElementType.TYPE })
 	public @interface Depends {
@@ -442,6 +532,20 @@ public abstract class JProcess implements Serializable {
 		public terra.shell.utils.system.ReturnType getReturnType() default terra.shell.utils.system.ReturnType.VOID;
 	}
 
+	// Opt in to speculative execution when submitted to the cluster: a process
+	// still running after the given percentile of its class's recent run times is
+	// dispatched a second time to another Node, the first copy to complete wins
+	// and the other is cancelled. Only for processes which may safely run twice
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ ElementType.TYPE })
+	public @interface Speculative {
+		public double percentile() default 95;
+
+		// Delay in MS used until enough run times have been observed, 0 does not
+		// speculate until then
+		public long delay() default 0;
+	}
+
 	public class ReturnObjectWrapper implements Serializable {
 		private Object o;
 